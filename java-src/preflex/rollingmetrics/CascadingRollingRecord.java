@@ -0,0 +1,263 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import preflex.rollingmetrics.bucketstore.CyclicBucketBuffer;
+import preflex.rollingmetrics.bucketstore.IBucketEvictionListener;
+import preflex.rollingmetrics.bucketstore.IBucketStore;
+import preflex.rollingmetrics.bucketstore.ICyclicBucketBuffer;
+import preflex.rollingmetrics.bucketstore.IReducibleCyclicBucketBuffer;
+import preflex.rollingmetrics.bucketstore.MaxBucketStore;
+import preflex.rollingmetrics.bucketstore.SummingBucketStore;
+import preflex.util.Args;
+import preflex.util.LongClock;
+import preflex.util.Pending;
+
+/**
+ * Rolling record with several resolutions (levels), e.g. per-second buckets for the last minute, per-minute buckets
+ * for the last hour and per-hour buckets for the last day. Values are recorded only into the finest level (level 0);
+ * every bucket that falls off the tail of a level is rolled up into the next coarser level. Hence every recorded value
+ * is held by exactly one level at a time, and reading a coarse level merges the finer levels into its buckets.
+ * <pre>
+ * record --> level 0 (sharded) --evicted bucket--> level 1 --evicted bucket--> level 2 --evicted bucket--> (dropped)
+ *            60 x 1 second                         60 x 1 minute               24 x 1 hour
+ * </pre>
+ * Bucket intervals of coarser levels must be multiples of the finer ones, and all levels share one origin, so that a
+ * finer bucket always nests in one coarser bucket. Reads are not atomic across levels - a bucket evicted while reading
+ * may be missed or counted twice for that read.
+ *
+ */
+public class CascadingRollingRecord implements IRollingRecord {
+
+    /** How bucket values are aggregated. */
+    public enum Aggregation {
+        SUM {
+            @Override
+            public long combine(long x, long y) {
+                return x + y;
+            }
+
+            @Override
+            IBucketStore createBucketStore(int bucketCount) {
+                return new SummingBucketStore(bucketCount);
+            }
+        },
+        MAX {
+            @Override
+            public long combine(long x, long y) {
+                return Math.max(x, y);
+            }
+
+            @Override
+            IBucketStore createBucketStore(int bucketCount) {
+                return new MaxBucketStore(bucketCount);
+            }
+        };
+
+        public abstract long combine(long x, long y);
+
+        abstract IBucketStore createBucketStore(int bucketCount);
+    }
+
+    private final int[] bucketCounts;
+    private final int[] bucketIntervals;
+    private final Aggregation aggregation;
+    private final LongClock latestEventIdClock;
+    private final long originEventID;
+
+    /** Buffer per level, finest first. */
+    private final ICyclicBucketBuffer[] levels;
+
+    /**
+     * Create a cascading rolling record.
+     * @param bucketCounts       number of buckets per level, finest level first
+     * @param bucketIntervals    event IDs per bucket per level, each a multiple of the previous one
+     * @param aggregation        aggregation of values within and across buckets
+     * @param latestEventIdClock source of the latest event ID
+     * @param shardCount         number of shards for the finest level (0 = grow with contention)
+     */
+    public CascadingRollingRecord(int[] bucketCounts, int[] bucketIntervals, final Aggregation aggregation,
+            LongClock latestEventIdClock, int shardCount) {
+        Args.notNull(bucketCounts, "bucketCounts");
+        Args.notNull(bucketIntervals, "bucketIntervals");
+        if (bucketCounts.length == 0 || bucketCounts.length != bucketIntervals.length) {
+            throw new IllegalArgumentException("Expected non-empty bucketCounts and bucketIntervals of equal length, " +
+                    "but found " + bucketCounts.length + " and " + bucketIntervals.length);
+        }
+        for (int i = 0; i < bucketCounts.length; i++) {
+            if (bucketCounts[i] <= 0 || bucketIntervals[i] <= 0) {
+                throw new IllegalArgumentException("Expected positive bucket count and interval at level " + i +
+                        ", but found " + bucketCounts[i] + " and " + bucketIntervals[i]);
+            }
+            if (i > 0 && (bucketIntervals[i] <= bucketIntervals[i - 1] ||
+                    bucketIntervals[i] % bucketIntervals[i - 1] != 0)) {
+                throw new IllegalArgumentException("Expected bucket interval at level " + i + " to be a multiple of " +
+                        bucketIntervals[i - 1] + ", but found " + bucketIntervals[i]);
+            }
+        }
+        this.bucketCounts = bucketCounts.clone();
+        this.bucketIntervals = bucketIntervals.clone();
+        this.aggregation = Args.notNull(aggregation, "aggregation");
+        this.latestEventIdClock = Args.notNull(latestEventIdClock, "latestEventIdClock");
+        this.originEventID = latestEventIdClock.next();
+        this.levels = new ICyclicBucketBuffer[bucketCounts.length];
+        // build from the coarsest level, so that every level can roll up into the next coarser one
+        IBucketEvictionListener rollUp = null;
+        for (int i = bucketCounts.length - 1; i > 0; i--) {
+            final CyclicBucketBuffer buffer = new CyclicBucketBuffer(bucketIntervals[i],
+                    aggregation.createBucketStore(bucketCounts[i]), originEventID, new Pending(), false, rollUp);
+            levels[i] = buffer;
+            rollUp = rollUpListener(buffer);
+        }
+        final IBucketEvictionListener finestRollUp = rollUp;
+        final int finestCount = bucketCounts[0];
+        final int finestInterval = bucketIntervals[0];
+        final long origin = originEventID;
+        levels[0] = RollingMetrics.shardedCyclicBucketBuffer(new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return new CyclicBucketBuffer(finestInterval, aggregation.createBucketStore(finestCount), origin,
+                        new Pending(), false, finestRollUp);
+            }
+        }, shardCount);
+    }
+
+    private static IBucketEvictionListener rollUpListener(final ICyclicBucketBuffer coarser) {
+        return new IBucketEvictionListener() {
+            @Override
+            public void evicted(long latestEventID, long[] elements) {
+                if (elements[0] != 0) {
+                    coarser.record(latestEventID, elements[0]);
+                }
+            }
+        };
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public int getBucketCount(int level) {
+        return bucketCounts[level];
+    }
+
+    public int getBucketInterval(int level) {
+        return bucketIntervals[level];
+    }
+
+    public Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    @Override
+    public void record(long value) {
+        levels[0].record(latestEventIdClock.next(), value);
+    }
+
+    @Override
+    public void record(long[] eventIDs, long[] values, int from, int to) {
+        levels[0].record(eventIDs, values, from, to);
+    }
+
+    @Override
+    public void reset() {
+        final long latestEventID = latestEventIdClock.next();
+        for (ICyclicBucketBuffer each: levels) {
+            each.reset(latestEventID);
+        }
+    }
+
+    /** Return the finest level elements, including the head bucket. */
+    @Override
+    public long[] getAllElements() {
+        return getAllElements(0);
+    }
+
+    /** Return the finest level elements, excluding the head bucket. */
+    @Override
+    public long[] getPreviousElements() {
+        return getPreviousElements(0);
+    }
+
+    /** Return the finest level elements as of the specified latest event ID, including the head bucket. */
+    @Override
+    public long[] getAllElements(long latestEventID) {
+        return getAllElements(0, latestEventID);
+    }
+
+    /** Return the finest level elements as of the specified latest event ID, excluding the head bucket. */
+    @Override
+    public long[] getPreviousElements(long latestEventID) {
+        final long[] all = getAllElements(0, latestEventID);
+        return Arrays.copyOfRange(all, 1, all.length);
+    }
+
+    /** Return the highest event ID of the finest level head bucket as of the specified latest event ID. */
+    @Override
+    public long getHeadEventID(long latestEventID) {
+        return headEventID(0, latestEventID);
+    }
+
+    /**
+     * Return the elements (one per bucket, head first) of the specified level, including the head bucket.
+     * @param level level index, 0 being the finest
+     * @return      elements of the level
+     */
+    public long[] getAllElements(int level) {
+        return getAllElements(level, latestEventIdClock.next());
+    }
+
+    private long[] getAllElements(int level, long latestEventID) {
+        // read the finer levels first (finest first), so that they roll their evicted buckets up before the read
+        final long[][] finerElements = new long[level][];
+        for (int finer = 0; finer < level; finer++) {
+            finerElements[finer] = levels[finer].getAllElements(latestEventID);
+        }
+        final long[] result = levels[level].getAllElements(latestEventID);
+        final long headEventID = headEventID(level, latestEventID);
+        for (int finer = 0; finer < level; finer++) {
+            final long[] elements = finerElements[finer];
+            final long finerHeadEventID = headEventID(finer, latestEventID);
+            for (int b = 0; b < elements.length; b++) {
+                if (elements[b] != 0) {
+                    final long eventID = finerHeadEventID - ((long) b) * bucketIntervals[finer];
+                    final long index = (headEventID - eventID) / bucketIntervals[level];
+                    if (index >= 0 && index < result.length) {
+                        result[(int) index] = aggregation.combine(result[(int) index], elements[b]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the elements (one per bucket, head first) of the specified level, excluding the head bucket.
+     * @param level level index, 0 being the finest
+     * @return      elements of the level except the head bucket
+     */
+    public long[] getPreviousElements(int level) {
+        final long[] all = getAllElements(level);
+        return Arrays.copyOfRange(all, 1, all.length);
+    }
+
+    /** Return the highest event ID of the head bucket of a level, once synchronized with the latest event ID. */
+    private long headEventID(int level, long latestEventID) {
+        final long interval = bucketIntervals[level];
+        final long delta = latestEventID - originEventID;
+        final long epochs = (delta <= 0)? -((-delta) / interval): (delta + interval - 1) / interval;  // ceiling
+        return originEventID + epochs * interval;
+    }
+
+}
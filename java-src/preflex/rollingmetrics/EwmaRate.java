@@ -0,0 +1,212 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import preflex.util.Args;
+import preflex.util.LongClock;
+import preflex.util.PaddedAtomicLong;
+import preflex.util.StripedLocal;
+
+/**
+ * Exponentially weighted moving average (EWMA) of the rate of recorded values over one or more windows, in the style
+ * of the Unix load averages (1, 5 and 15 minutes by default). Unlike a rolling sum there is no bucket falling off the
+ * window, so the rate decays smoothly, and a long window costs no more memory than a short one.
+ * <p>
+ * Recorded values are added to a striped accumulator (see {@link StripedLocal}) without any other work. Once every tick
+ * interval the first thread to notice (recording or reading) claims the tick with a CAS, drains the accumulator and
+ * folds the drained count into every average:
+ * <pre>
+ * average = average + alpha * (count - average)     where alpha = 1 - exp(-tickInterval / window)
+ * </pre>
+ * Ticks that elapsed without any thread noticing are folded in one go as ticks with zero count. Averages start at zero.
+ *
+ */
+public class EwmaRate {
+
+    public static final long DEFAULT_TICK_INTERVAL = 5000;  // 5 seconds, in millis
+
+    /** Number of event IDs per rate unit, e.g. 1000 millis for rate per second. */
+    public static final long DEFAULT_RATE_UNIT = 1000;
+
+    private final long tickInterval;
+    private final long rateUnit;
+    private final long[] windows;
+    private final double[] alphas;
+    private final LongClock latestEventIdClock;
+
+    /** Values recorded since the last tick. */
+    private final StripedLocal<PaddedAtomicLong> accumulator;
+
+    /** Event ID where the last tick (claimed, may still be folding) ended. */
+    private final AtomicLong lastTick;
+
+    /** Average count per tick for every window, as double bits. */
+    private final AtomicLongArray averages;
+
+    /**
+     * Create an EWMA rate.
+     * @param tickInterval       number of event IDs per tick
+     * @param rateUnit           number of event IDs per rate unit, e.g. 1000 for rate per second with millis event IDs
+     * @param windows            number of event IDs per window, e.g. 60000 for 1 minute with millis event IDs
+     * @param latestEventIdClock source of the latest event ID
+     * @param shardCount         number of accumulator shards to split recording load (0 = grow with contention)
+     */
+    public EwmaRate(long tickInterval, long rateUnit, long[] windows, LongClock latestEventIdClock, int shardCount) {
+        if (tickInterval <= 0) {
+            throw new IllegalArgumentException("Expected tickInterval to be a positive integer, but found " +
+                    tickInterval);
+        }
+        if (rateUnit <= 0) {
+            throw new IllegalArgumentException("Expected rateUnit to be a positive integer, but found " + rateUnit);
+        }
+        Args.notNull(windows, "windows");
+        if (windows.length == 0) {
+            throw new IllegalArgumentException("Expected at least one window, but found none");
+        }
+        if (shardCount < 0) {
+            throw new IllegalArgumentException(
+                    "Expected 'shardCount' to be 0 (grow with contention) or a positive integer, but found " +
+                    shardCount);
+        }
+        this.tickInterval = tickInterval;
+        this.rateUnit = rateUnit;
+        this.windows = windows.clone();
+        this.alphas = new double[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            if (windows[i] < tickInterval) {
+                throw new IllegalArgumentException("Expected every window to be at least tickInterval (" +
+                        tickInterval + "), but found " + windows[i]);
+            }
+            alphas[i] = 1 - Math.exp(-((double) tickInterval) / windows[i]);
+        }
+        this.latestEventIdClock = Args.notNull(latestEventIdClock, "latestEventIdClock");
+        final Callable<PaddedAtomicLong> supplier = new Callable<PaddedAtomicLong>() {
+            @Override
+            public PaddedAtomicLong call() throws Exception {
+                return new PaddedAtomicLong();
+            }
+        };
+        this.accumulator = (shardCount == 0)? StripedLocal.create(supplier): StripedLocal.create(shardCount, supplier);
+        this.lastTick = new AtomicLong(latestEventIdClock.next());
+        this.averages = new AtomicLongArray(windows.length);  // 0L is the bits of 0.0
+    }
+
+    public long getTickInterval() {
+        return tickInterval;
+    }
+
+    public long getRateUnit() {
+        return rateUnit;
+    }
+
+    public int getWindowCount() {
+        return windows.length;
+    }
+
+    public long getWindow(int index) {
+        return windows[index];
+    }
+
+    /**
+     * Fold the accumulated values into the averages if one or more ticks elapsed, unless another thread claimed them.
+     * @param latestEventID latest event ID
+     */
+    private void tickIfDue(long latestEventID) {
+        final long last = lastTick.get();
+        final long elapsedTicks = (latestEventID - last) / tickInterval;
+        if (elapsedTicks <= 0 || !lastTick.compareAndSet(last, last + elapsedTicks * tickInterval)) {
+            return;
+        }
+        long count = 0;
+        for (final PaddedAtomicLong each: accumulator.getAll()) {
+            count += each.getAndSet(0);
+        }
+        for (int i = 0; i < alphas.length; i++) {
+            final double alpha = alphas[i];
+            final double idleDecay = Math.pow(1 - alpha, elapsedTicks - 1);  // ticks after the first one are idle
+            long prevBits;
+            double next;
+            do {
+                prevBits = averages.get(i);
+                final double prev = Double.longBitsToDouble(prevBits);
+                next = (prev + alpha * (count - prev)) * idleDecay;
+            } while (!averages.compareAndSet(i, prevBits, Double.doubleToRawLongBits(next)));
+        }
+    }
+
+    /**
+     * Record the specified value, e.g. 1 for an event.
+     * @param value value to add
+     */
+    public void record(long value) {
+        tickIfDue(latestEventIdClock.next());
+        final PaddedAtomicLong cell = accumulator.get();
+        final long prev = cell.get();
+        if (!cell.compareAndSet(prev, prev + value)) {  // contention, move to another cell
+            accumulator.contended().addAndGet(value);
+        }
+    }
+
+    /**
+     * Record the specified range of values in one go.
+     * @param values values to add
+     * @param from   start index (inclusive)
+     * @param to     end index (exclusive)
+     */
+    public void record(long[] values, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+        }
+        record(sum);
+    }
+
+    /**
+     * Return the average rate over the specified window, in values per rate unit.
+     * @param index window index
+     * @return      average rate
+     */
+    public double getRate(int index) {
+        tickIfDue(latestEventIdClock.next());
+        return Double.longBitsToDouble(averages.get(index)) * rateUnit / tickInterval;
+    }
+
+    /**
+     * Return the average rates over all windows, in values per rate unit.
+     * @return average rate per window, in the order of the windows
+     */
+    public double[] getRates() {
+        tickIfDue(latestEventIdClock.next());
+        final double[] result = new double[alphas.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Double.longBitsToDouble(averages.get(i)) * rateUnit / tickInterval;
+        }
+        return result;
+    }
+
+    /**
+     * Discard the accumulated values and reset the averages to zero.
+     */
+    public void reset() {
+        lastTick.set(latestEventIdClock.next());
+        for (final PaddedAtomicLong each: accumulator.getAll()) {
+            each.set(0);
+        }
+        for (int i = 0; i < alphas.length; i++) {
+            averages.set(i, 0);
+        }
+    }
+
+}
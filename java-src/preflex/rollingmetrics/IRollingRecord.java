@@ -22,6 +22,17 @@ public interface IRollingRecord {
      */
     void record(final long value);
 
+    /**
+     * Store a batch of values, each with its own event ID (e.g. timestamp), in the specified range of the arrays.
+     * Values are grouped by bucket and, where the buckets allow (e.g. sum or max), pre-aggregated so that every
+     * touched bucket is updated only once.
+     * @param eventIDs event IDs
+     * @param values   long integer values to store or effect, one per event ID
+     * @param from     start index (inclusive)
+     * @param to       end index (exclusive)
+     */
+    void record(final long[] eventIDs, final long[] values, final int from, final int to);
+
     /** Reset all counter data. */
     void reset();
 
@@ -37,4 +48,26 @@ public interface IRollingRecord {
      */
     long[] getPreviousElements();
 
+    /**
+     * Get all rolling element data as of the specified latest event ID, including the current bucket/window.
+     * @param latestEventID latest event ID, not older than any recorded event
+     * @return all rolling element data
+     */
+    long[] getAllElements(final long latestEventID);
+
+    /**
+     * Get all rolling element data as of the specified latest event ID, excluding the current bucket/window.
+     * @param latestEventID latest event ID, not older than any recorded event
+     * @return all rolling element data except the current bucket/window
+     */
+    long[] getPreviousElements(final long latestEventID);
+
+    /**
+     * Return the highest event ID of the current bucket/window as of the specified latest event ID, i.e. the bucket
+     * boundary the elements retrieved with the same latest event ID are aligned to.
+     * @param latestEventID latest event ID
+     * @return highest event ID of the current bucket/window
+     */
+    long getHeadEventID(final long latestEventID);
+
 }
@@ -10,19 +10,40 @@
 
 package preflex.rollingmetrics;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
+import preflex.rollingmetrics.bucketstore.AbstractMappedBucketStore;
 import preflex.rollingmetrics.bucketstore.CyclicBucketBuffer;
+import preflex.rollingmetrics.bucketstore.HistogramBucketStore;
+import preflex.rollingmetrics.bucketstore.HyperLogLogBucketStore;
 import preflex.rollingmetrics.bucketstore.IBucketStore;
 import preflex.rollingmetrics.bucketstore.ICyclicBucketBuffer;
 import preflex.rollingmetrics.bucketstore.IReducibleCyclicBucketBuffer;
 import preflex.rollingmetrics.bucketstore.MaxBucketStore;
+import preflex.rollingmetrics.bucketstore.MappedMaxBucketStore;
+import preflex.rollingmetrics.bucketstore.MappedSummingBucketStore;
+import preflex.rollingmetrics.bucketstore.OffHeapMaxBucketStore;
+import preflex.rollingmetrics.bucketstore.OffHeapSummingBucketStore;
+import preflex.rollingmetrics.bucketstore.PaddedMaxBucketStore;
+import preflex.rollingmetrics.bucketstore.PaddedSummingBucketStore;
+import preflex.rollingmetrics.bucketstore.ReservoirBucketStore;
+import preflex.rollingmetrics.bucketstore.SketchBucketStore;
+import preflex.rollingmetrics.bucketstore.StatsBucketStore;
 import preflex.rollingmetrics.bucketstore.StoringBucketStore;
 import preflex.rollingmetrics.bucketstore.SummingBucketStore;
+import preflex.rollingmetrics.bucketstore.TopKBucketStore;
+import preflex.util.KllSketch;
+import preflex.util.LogLinearHistogram;
+import preflex.util.LongClock;
+import preflex.util.OffHeapSlab;
 import preflex.util.Pending;
-import preflex.util.RandomLocal;
+import preflex.util.Stats;
+import preflex.util.StripedLocal;
 
 /**
  * Utility class for creating rolling metrics objects.
@@ -73,35 +94,71 @@ public final class RollingMetrics {
 
     /**
      * Internal method to wrap a rolling token-bucket into a {@link IRollingRecord} instance.
-     * @param ratb                  the {@link CyclicBucketBuffer} instance
-     * @param latestEventIdSupplier supplier of latest event ID
-     * @return                      wrapper {@link IRollingRecord} instance
+     * @param ratb               the {@link CyclicBucketBuffer} instance
+     * @param bucketInterval     difference between min (inclusive) and max (inclusive) event ID per bucket
+     * @param originEventID      event ID the buffer was created at, which the bucket boundaries are aligned to
+     * @param latestEventIdClock source of latest event ID
+     * @return                   wrapper {@link IRollingRecord} instance
      */
-    private static IRollingRecord createRollingMetrics(final ICyclicBucketBuffer ratb,
-            final Callable<Long> latestEventIdSupplier) {
+    private static IRollingRecord createRollingMetrics(final ICyclicBucketBuffer ratb, final int bucketInterval,
+            final long originEventID, final LongClock latestEventIdClock) {
         return new IRollingRecord() {
             @Override
             public void reset() {
-                ratb.reset(get(latestEventIdSupplier));
+                ratb.reset(latestEventIdClock.next());
             }
 
             @Override
             public void record(final long value) {
-                ratb.record(get(latestEventIdSupplier), value);
+                ratb.record(latestEventIdClock.next(), value);
+            }
+
+            @Override
+            public void record(final long[] eventIDs, final long[] values, final int from, final int to) {
+                ratb.record(eventIDs, values, from, to);
             }
 
             @Override
             public long[] getPreviousElements() {
-                return ratb.getTailElements(get(latestEventIdSupplier));
+                return ratb.getTailElements(latestEventIdClock.next());
             }
 
             @Override
             public long[] getAllElements() {
-                return ratb.getAllElements(get(latestEventIdSupplier));
+                return ratb.getAllElements(latestEventIdClock.next());
+            }
+
+            @Override
+            public long[] getPreviousElements(final long latestEventID) {
+                return ratb.getTailElements(latestEventID);
+            }
+
+            @Override
+            public long[] getAllElements(final long latestEventID) {
+                return ratb.getAllElements(latestEventID);
+            }
+
+            @Override
+            public long getHeadEventID(final long latestEventID) {
+                return headEventID(originEventID, bucketInterval, latestEventID);
             }
         };
     }
 
+    /**
+     * Return the highest event ID of the head bucket once synchronized with the specified latest event ID, i.e. the
+     * lowest bucket boundary (aligned to the origin event ID) not less than the latest event ID.
+     * @param originEventID  event ID the bucket boundaries are aligned to
+     * @param bucketInterval difference between min (inclusive) and max (inclusive) event ID per bucket
+     * @param latestEventID  latest event ID
+     * @return               highest event ID of the head bucket
+     */
+    static long headEventID(long originEventID, long bucketInterval, long latestEventID) {
+        final long delta = latestEventID - originEventID;
+        final long epochs = (delta <= 0)? -((-delta) / bucketInterval): (delta + bucketInterval - 1) / bucketInterval;
+        return originEventID + epochs * bucketInterval;
+    }
+
 
     // -------------------
     // Public API: Generic
@@ -124,18 +181,67 @@ public final class RollingMetrics {
     };
 
 
+    public static final LongClock MILLI_TIME_CLOCK = new LongClock() {
+        @Override
+        public long next() {
+            return System.currentTimeMillis();
+        }
+    };
+
+
+    public static final LongClock NANO_TIME_CLOCK = new LongClock() {
+        @Override
+        public long next() {
+            return System.nanoTime();
+        }
+    };
+
+
+    /**
+     * Adapt a {@link Callable} supplier of event IDs as a {@link LongClock} instance.
+     * @param latestEventIdSupplier supplier of the latest event ID
+     * @return                      {@link LongClock} instance
+     */
+    public static LongClock asLongClock(final Callable<Long> latestEventIdSupplier) {
+        if (latestEventIdSupplier == MILLI_TIME_SUPPLIER) {
+            return MILLI_TIME_CLOCK;
+        }
+        if (latestEventIdSupplier == NANO_TIME_SUPPLIER) {
+            return NANO_TIME_CLOCK;
+        }
+        return new LongClock() {
+            @Override
+            public long next() {
+                return get(latestEventIdSupplier);
+            }
+        };
+    }
+
+
     /**
      * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingCount} instance that counts
      * recording-occurrences.
      * @param bucketCount           number of buckets to create
      * @param bucketInterval        difference between min (inclusive) and max (inclusive) event ID per bucket
-     * @param latestEventIdSupplier supplier of the latest event ID
-     * @param shardCount            number of shards to create to split recording load (0 = auto-detect)
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
      * @return                      an {@link IRollingCount} instance
      */
     public static IRollingCount createRollingCount(final int bucketCount, final int bucketInterval,
-            final Callable<Long> latestEventIdSupplier, int shardCount) {
-        return createRollingCount(createRollingSum(bucketCount, bucketInterval, latestEventIdSupplier, shardCount));
+            final LongClock latestEventIdClock, int shardCount) {
+        return createRollingCount(bucketCount, bucketInterval, latestEventIdClock, shardCount, false);
+    }
+
+
+    /**
+     * Same as {@link #createRollingCount(int, int, LongClock, int)}, optionally padding the buckets and shards against
+     * false sharing (at the cost of more memory) for heavily contended counters.
+     * @param padded whether to pad buckets and shards against false sharing
+     */
+    public static IRollingCount createRollingCount(final int bucketCount, final int bucketInterval,
+            final LongClock latestEventIdClock, int shardCount, boolean padded) {
+        return createRollingCount(createRollingSum(bucketCount, bucketInterval, latestEventIdClock, shardCount,
+                padded));
     }
 
 
@@ -144,20 +250,55 @@ public final class RollingMetrics {
      * highest recorded numbers and throws away the rest.
      * @param bucketCount           number of buckets to create
      * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
-     * @param latestEventIdSupplier supplier of the latest event ID
-     * @param shardCount            number of shards to create to split recording load (0 = auto-detect)
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
      * @return                      an {@link IRollingRecord} instance
      */
     public static IRollingRecord createRollingMax(final int bucketCount, final int bucketInterval,
-            final Callable<Long> latestEventIdSupplier, int shardCount) {
-        final Callable<IBucketStore> bucketStoreFactory = maxBucketsFactory(bucketCount);
+            final LongClock latestEventIdClock, int shardCount) {
+        return createRollingMax(bucketCount, bucketInterval, latestEventIdClock, shardCount, false);
+    }
+
+
+    /**
+     * Same as {@link #createRollingMax(int, int, LongClock, int)}, optionally padding the buckets and shards against
+     * false sharing (at the cost of more memory) for heavily contended metrics.
+     * @param padded whether to pad buckets and shards against false sharing
+     */
+    public static IRollingRecord createRollingMax(final int bucketCount, final int bucketInterval,
+            final LongClock latestEventIdClock, int shardCount, final boolean padded) {
+        final Callable<IBucketStore> bucketStoreFactory = maxBucketsFactory(bucketCount, padded);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
         Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
             @Override
             public IReducibleCyclicBucketBuffer call() throws Exception {
-                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, get(latestEventIdSupplier));
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID, padded);
             }
         };
-        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), latestEventIdSupplier);
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), bucketInterval,
+                originEventID, latestEventIdClock);
+    }
+
+
+    /**
+     * Same as {@link #createRollingMax(int, int, LongClock, int)}, keeping the buckets in the specified off-heap slab.
+     * With shard count 1 the heap cost per metric is a few small objects, irrespective of the bucket count. With shard
+     * count 0 every shard grown under contention allocates its buckets from the slab once, and is kept upon reset.
+     * @param slab off-heap slab to allocate the buckets of every shard from
+     */
+    public static IRollingRecord createRollingMax(final int bucketCount, final int bucketInterval,
+            final LongClock latestEventIdClock, int shardCount, final OffHeapSlab slab) {
+        final Callable<IBucketStore> bucketStoreFactory = offHeapMaxBucketsFactory(bucketCount, slab);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID);
+            }
+        };
+        // keep the shards upon reset, as their slab slots are never freed
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount, false),
+                bucketInterval, originEventID, latestEventIdClock);
     }
 
 
@@ -166,44 +307,371 @@ public final class RollingMetrics {
      * recorded numbers.
      * @param bucketCount           number of buckets to create
      * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
-     * @param latestEventIdSupplier supplier of the latest event ID
-     * @param shardCount            number of shards to create to split recording load (0 = auto-detect)
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
      * @return                      an {@link IRollingRecord} instance
      */
     public static IRollingRecord createRollingSum(final int bucketCount, final int bucketInterval,
-            final Callable<Long> latestEventIdSupplier, int shardCount) {
-        final Callable<IBucketStore> bucketStoreFactory = summingBucketsFactory(bucketCount);
+            final LongClock latestEventIdClock, int shardCount) {
+        return createRollingSum(bucketCount, bucketInterval, latestEventIdClock, shardCount, false);
+    }
+
+
+    /**
+     * Same as {@link #createRollingSum(int, int, LongClock, int)}, optionally padding the buckets and shards against
+     * false sharing (at the cost of more memory) for heavily contended metrics.
+     * @param padded whether to pad buckets and shards against false sharing
+     */
+    public static IRollingRecord createRollingSum(final int bucketCount, final int bucketInterval,
+            final LongClock latestEventIdClock, int shardCount, final boolean padded) {
+        final Callable<IBucketStore> bucketStoreFactory = summingBucketsFactory(bucketCount, padded);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
         Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
             @Override
             public IReducibleCyclicBucketBuffer call() throws Exception {
-                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, get(latestEventIdSupplier));
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID, padded);
             }
         };
-        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), latestEventIdSupplier);
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), bucketInterval,
+                originEventID, latestEventIdClock);
+    }
+
+
+    /**
+     * Same as {@link #createRollingSum(int, int, LongClock, int)}, keeping the buckets in the specified off-heap slab.
+     * With shard count 1 the heap cost per metric is a few small objects, irrespective of the bucket count. With shard
+     * count 0 every shard grown under contention allocates its buckets from the slab once, and is kept upon reset.
+     * @param slab off-heap slab to allocate the buckets of every shard from
+     */
+    public static IRollingRecord createRollingSum(final int bucketCount, final int bucketInterval,
+            final LongClock latestEventIdClock, int shardCount, final OffHeapSlab slab) {
+        final Callable<IBucketStore> bucketStoreFactory = offHeapSummingBucketsFactory(bucketCount, slab);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID);
+            }
+        };
+        // keep the shards upon reset, as their slab slots are never freed
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount, false),
+                bucketInterval, originEventID, latestEventIdClock);
     }
 
 
     /**
      * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that stores the
      * recorded numbers. When events exceed bucket capacity, older elements are overwritten by newer; in effect only
-     * max last N (bucketSize) elements are stored per bucket.
+     * max last N (bucketSize) elements are stored per bucket. Retrieved elements are sorted in ascending order; see
+     * {@link #sortedTailBucketBuffer(ICyclicBucketBuffer, int, long, AtomicLong)}.
      * @param bucketCount           number of buckets to create
      * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
      * @param bucketSize            number of elements (capacity) per bucket
-     * @param latestEventIdSupplier supplier of the latest event ID
-     * @param shardCount            number of shards to create to split recording load (0 = auto-detect)
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
      * @return                      an {@link IRollingRecord} instance
      */
     public static IRollingRecord createRollingStore(final int bucketCount, final int bucketInterval,
-            final int bucketSize, final Callable<Long> latestEventIdSupplier, int shardCount) {
+            final int bucketSize, final LongClock latestEventIdClock, int shardCount) {
         final Callable<IBucketStore> bucketStoreFactory = storingBucketsFactory(bucketCount, bucketSize);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        final AtomicLong resetCounter = new AtomicLong();  // shared by all shards
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return new CyclicBucketBuffer(bucketInterval, get(bucketStoreFactory), originEventID, new Pending(),
+                        false, null, resetCounter);
+            }
+        };
+        return createRollingMetrics(sortedTailBucketBuffer(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount),
+                bucketInterval, originEventID, resetCounter), bucketInterval, originEventID, latestEventIdClock);
+    }
+
+    /**
+     * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that stores a uniform
+     * random sample (reservoir) of the recorded numbers. When events exceed bucket capacity, every event of the bucket
+     * has an equal chance of being retained; see {@link ReservoirBucketStore}. Retrieved elements are sorted in
+     * ascending order; see {@link #sortedTailBucketBuffer(ICyclicBucketBuffer, int, long, AtomicLong)}.
+     * @param bucketCount           number of buckets to create
+     * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
+     * @param bucketSize            number of elements (capacity) per bucket
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
+     * @return                      an {@link IRollingRecord} instance
+     */
+    public static IRollingRecord createRollingReservoir(final int bucketCount, final int bucketInterval,
+            final int bucketSize, final LongClock latestEventIdClock, int shardCount) {
+        final Callable<IBucketStore> bucketStoreFactory = reservoirBucketsFactory(bucketCount, bucketSize);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        final AtomicLong resetCounter = new AtomicLong();  // shared by all shards
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return new CyclicBucketBuffer(bucketInterval, get(bucketStoreFactory), originEventID, new Pending(),
+                        false, null, resetCounter);
+            }
+        };
+        return createRollingMetrics(sortedTailBucketBuffer(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount),
+                bucketInterval, originEventID, resetCounter), bucketInterval, originEventID, latestEventIdClock);
+    }
+
+    /**
+     * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that records every
+     * number into a mergeable quantile sketch per bucket. Retrieved elements are a single sketch array (see
+     * {@link KllSketch}) merged across the buckets and shards.
+     * @param bucketCount           number of buckets to create
+     * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
+     * @param k                     sketch parameter, trading memory (about 3k values per bucket) for accuracy
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
+     * @return                      an {@link IRollingRecord} instance
+     */
+    public static IRollingRecord createRollingSketch(final int bucketCount, final int bucketInterval,
+            final int k, final LongClock latestEventIdClock, int shardCount) {
+        final Callable<IBucketStore> bucketStoreFactory = sketchBucketsFactory(bucketCount, k);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID);
+            }
+        };
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), bucketInterval,
+                originEventID, latestEventIdClock);
+    }
+
+    /**
+     * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that counts every
+     * recorded number into a fixed-size log-linear histogram per bucket. Retrieved elements are a single histogram
+     * array (see {@link LogLinearHistogram}) merged across the buckets.
+     * @param bucketCount           number of buckets to create
+     * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
+     * @param histogram             histogram layout for every bucket
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
+     * @return                      an {@link IRollingRecord} instance
+     */
+    public static IRollingRecord createRollingHistogram(final int bucketCount, final int bucketInterval,
+            final LogLinearHistogram histogram, final LongClock latestEventIdClock, int shardCount) {
+        final Callable<IBucketStore> bucketStoreFactory = histogramBucketsFactory(bucketCount, histogram);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID);
+            }
+        };
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), bucketInterval,
+                originEventID, latestEventIdClock);
+    }
+
+    /**
+     * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that estimates the
+     * number of distinct values recorded, using a HyperLogLog sketch per bucket. Recorded values must be 64-bit hashes
+     * (see {@link HyperLogLogBucketStore#hash(long)}). Retrieved elements are the register words merged across the
+     * buckets, to be estimated with {@link HyperLogLogBucketStore#estimate(long[])}.
+     * @param bucketCount           number of buckets to create
+     * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
+     * @param precision             number of hash bits to select a register, i.e. 2^precision registers per bucket
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
+     * @return                      an {@link IRollingRecord} instance
+     */
+    public static IRollingRecord createRollingCardinality(final int bucketCount, final int bucketInterval,
+            final int precision, final LongClock latestEventIdClock, int shardCount) {
+        final Callable<IBucketStore> bucketStoreFactory = hyperLogLogBucketsFactory(bucketCount, precision);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID);
+            }
+        };
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), bucketInterval,
+                originEventID, latestEventIdClock);
+    }
+
+    /**
+     * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that tracks the top
+     * K most frequent keys, using a count-min sketch and up to K candidate keys per bucket. Recorded values must be
+     * 64-bit key hashes. Retrieved elements are the top keys merged across the buckets; see {@link TopKBucketStore}.
+     * @param bucketCount           number of buckets to create
+     * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
+     * @param k                     number of top keys to track
+     * @param depth                 number of count-min sketch rows
+     * @param width                 number of count-min sketch counters per row (power of two)
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
+     * @return                      an {@link IRollingRecord} instance
+     */
+    public static IRollingRecord createRollingTopK(final int bucketCount, final int bucketInterval, final int k,
+            final int depth, final int width, final LongClock latestEventIdClock, int shardCount) {
+        final Callable<IBucketStore> bucketStoreFactory = topKBucketsFactory(bucketCount, k, depth, width);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
         Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
             @Override
             public IReducibleCyclicBucketBuffer call() throws Exception {
-                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, get(latestEventIdSupplier));
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID);
             }
         };
-        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), latestEventIdSupplier);
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), bucketInterval,
+                originEventID, latestEventIdClock);
+    }
+
+    /**
+     * Given bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that keeps count,
+     * sum, sum of squares, min and max of the recorded numbers per bucket. Retrieved elements are a single stats array
+     * (see {@link StatsBucketStore}) merged across the buckets.
+     * @param bucketCount           number of buckets to create
+     * @param bucketInterval        difference between min (inclusive) and max (inclusive) events per bucket
+     * @param latestEventIdClock    source of the latest event ID
+     * @param shardCount            number of shards to create to split recording load (0 = grow with contention)
+     * @return                      an {@link IRollingRecord} instance
+     */
+    public static IRollingRecord createRollingStats(final int bucketCount, final int bucketInterval,
+            final LongClock latestEventIdClock, int shardCount) {
+        final Callable<IBucketStore> bucketStoreFactory = statsBucketsFactory(bucketCount);
+        final long originEventID = latestEventIdClock.next();  // shared by all shards, including ones added later
+        Callable<IReducibleCyclicBucketBuffer> cyclicBufferSupplier = new Callable<IReducibleCyclicBucketBuffer>() {
+            @Override
+            public IReducibleCyclicBucketBuffer call() throws Exception {
+                return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, originEventID);
+            }
+        };
+        return createRollingMetrics(shardedCyclicBucketBuffer(cyclicBufferSupplier, shardCount), bucketInterval,
+                originEventID, latestEventIdClock);
+    }
+
+    /**
+     * Create a {@link CascadingRollingRecord} instance that sums the recorded numbers at several resolutions, e.g.
+     * <tt>createCascadingRollingSum(new int[] {60, 60, 24}, new int[] {1000, 60000, 3600000}, clock, 0)</tt> for
+     * per-second, per-minute and per-hour sums over the last minute, hour and day respectively.
+     * @param bucketCounts       number of buckets per level, finest level first
+     * @param bucketIntervals    event IDs per bucket per level, each a multiple of the previous one
+     * @param latestEventIdClock source of the latest event ID
+     * @param shardCount         number of shards for the finest level (0 = grow with contention)
+     * @return                   a {@link CascadingRollingRecord} instance
+     */
+    public static CascadingRollingRecord createCascadingRollingSum(final int[] bucketCounts,
+            final int[] bucketIntervals, final LongClock latestEventIdClock, int shardCount) {
+        return new CascadingRollingRecord(bucketCounts, bucketIntervals, CascadingRollingRecord.Aggregation.SUM,
+                latestEventIdClock, shardCount);
+    }
+
+    /**
+     * Given a file, bucket count and event-IDs-per-bucket count, create a {@link IRollingRecord} instance that adds up
+     * the recorded numbers in buckets kept in the memory-mapped file. Recorded numbers survive a restart, i.e. another
+     * instance created with the same file, bucket count and bucket interval resumes with the buckets of the previous
+     * one. Other processes may read the file (see {@link AbstractMappedBucketStore#readElements(OffHeapSlab, int, long,
+     * boolean)}). Event IDs must be wall-clock based, e.g. {@link #MILLI_TIME_CLOCK} but not {@link #NANO_TIME_CLOCK}.
+     * The buckets are not sharded.
+     * @param file               file to keep the buckets in, created if it does not exist
+     * @param bucketCount        number of buckets to create
+     * @param bucketInterval     difference between min (inclusive) and max (inclusive) events per bucket
+     * @param latestEventIdClock source of the latest event ID
+     * @return                   an {@link IRollingRecord} instance
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static IRollingRecord createPersistentRollingSum(final File file, final int bucketCount,
+            final int bucketInterval, final LongClock latestEventIdClock) throws IOException {
+        final OffHeapSlab slab = OffHeapSlab.map(file, AbstractMappedBucketStore.HEADER_LENGTH + bucketCount);
+        final AbstractMappedBucketStore buckets = new MappedSummingBucketStore(bucketCount, bucketInterval, slab,
+                latestEventIdClock.next());
+        return createRollingMetrics(new CyclicBucketBuffer(bucketInterval, buckets, buckets.getOriginEventID(),
+                new Pending()), bucketInterval, buckets.getOriginEventID(), latestEventIdClock);
+    }
+
+
+    /**
+     * Same as {@link #createPersistentRollingSum(File, int, int, LongClock)}, except that it keeps only the highest
+     * recorded numbers.
+     */
+    public static IRollingRecord createPersistentRollingMax(final File file, final int bucketCount,
+            final int bucketInterval, final LongClock latestEventIdClock) throws IOException {
+        final OffHeapSlab slab = OffHeapSlab.map(file, AbstractMappedBucketStore.HEADER_LENGTH + bucketCount);
+        final AbstractMappedBucketStore buckets = new MappedMaxBucketStore(bucketCount, bucketInterval, slab,
+                latestEventIdClock.next());
+        return createRollingMetrics(new CyclicBucketBuffer(bucketInterval, buckets, buckets.getOriginEventID(),
+                new Pending()), bucketInterval, buckets.getOriginEventID(), latestEventIdClock);
+    }
+
+    // ---------- Callable<Long> event ID supplier variants ----------
+
+    /** See {@link #createRollingCount(int, int, LongClock, int)}. */
+    public static IRollingCount createRollingCount(final int bucketCount, final int bucketInterval,
+            final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingCount(bucketCount, bucketInterval, asLongClock(latestEventIdSupplier), shardCount);
+    }
+
+    /** See {@link #createRollingMax(int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingMax(final int bucketCount, final int bucketInterval,
+            final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingMax(bucketCount, bucketInterval, asLongClock(latestEventIdSupplier), shardCount);
+    }
+
+    /** See {@link #createRollingSum(int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingSum(final int bucketCount, final int bucketInterval,
+            final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingSum(bucketCount, bucketInterval, asLongClock(latestEventIdSupplier), shardCount);
+    }
+
+    /** See {@link #createRollingStore(int, int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingStore(final int bucketCount, final int bucketInterval,
+            final int bucketSize, final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingStore(bucketCount, bucketInterval, bucketSize, asLongClock(latestEventIdSupplier),
+                shardCount);
+    }
+
+    /** See {@link #createRollingReservoir(int, int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingReservoir(final int bucketCount, final int bucketInterval,
+            final int bucketSize, final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingReservoir(bucketCount, bucketInterval, bucketSize, asLongClock(latestEventIdSupplier),
+                shardCount);
+    }
+
+    /** See {@link #createRollingSketch(int, int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingSketch(final int bucketCount, final int bucketInterval,
+            final int k, final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingSketch(bucketCount, bucketInterval, k, asLongClock(latestEventIdSupplier), shardCount);
+    }
+
+    /** See {@link #createRollingHistogram(int, int, LogLinearHistogram, LongClock, int)}. */
+    public static IRollingRecord createRollingHistogram(final int bucketCount, final int bucketInterval,
+            final LogLinearHistogram histogram, final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingHistogram(bucketCount, bucketInterval, histogram, asLongClock(latestEventIdSupplier),
+                shardCount);
+    }
+
+    /** See {@link #createRollingStats(int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingStats(final int bucketCount, final int bucketInterval,
+            final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingStats(bucketCount, bucketInterval, asLongClock(latestEventIdSupplier), shardCount);
+    }
+
+    /** See {@link #createRollingTopK(int, int, int, int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingTopK(final int bucketCount, final int bucketInterval, final int k,
+            final int depth, final int width, final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingTopK(bucketCount, bucketInterval, k, depth, width, asLongClock(latestEventIdSupplier),
+                shardCount);
+    }
+
+    /** See {@link #createRollingCardinality(int, int, int, LongClock, int)}. */
+    public static IRollingRecord createRollingCardinality(final int bucketCount, final int bucketInterval,
+            final int precision, final Callable<Long> latestEventIdSupplier, int shardCount) {
+        return createRollingCardinality(bucketCount, bucketInterval, precision, asLongClock(latestEventIdSupplier),
+                shardCount);
+    }
+
+    /** See {@link #createPersistentRollingSum(File, int, int, LongClock)}. */
+    public static IRollingRecord createPersistentRollingSum(final File file, final int bucketCount,
+            final int bucketInterval, final Callable<Long> latestEventIdSupplier) throws IOException {
+        return createPersistentRollingSum(file, bucketCount, bucketInterval, asLongClock(latestEventIdSupplier));
+    }
+
+    /** See {@link #createPersistentRollingMax(File, int, int, LongClock)}. */
+    public static IRollingRecord createPersistentRollingMax(final File file, final int bucketCount,
+            final int bucketInterval, final Callable<Long> latestEventIdSupplier) throws IOException {
+        return createPersistentRollingMax(file, bucketCount, bucketInterval, asLongClock(latestEventIdSupplier));
     }
 
     // ---------- rolling metrics buckets ----------
@@ -214,10 +682,21 @@ public final class RollingMetrics {
      * @return            factory of buckets
      */
     public static Callable<IBucketStore> maxBucketsFactory(final int bucketCount) {
+        return maxBucketsFactory(bucketCount, false);
+    }
+
+    /**
+     * Return a factory of buckets that only stores the maximum integer value in a bucket, optionally padded against
+     * false sharing.
+     * @param bucketCount number of buckets
+     * @param padded      whether to pad every bucket to its own cache lines
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> maxBucketsFactory(final int bucketCount, final boolean padded) {
         return new Callable<IBucketStore>() {
             @Override
             public IBucketStore call() throws Exception {
-                return new MaxBucketStore(bucketCount);
+                return padded? new PaddedMaxBucketStore(bucketCount): new MaxBucketStore(bucketCount);
             }
         };
     }
@@ -228,10 +707,51 @@ public final class RollingMetrics {
      * @return            factory of buckets
      */
     public static Callable<IBucketStore> summingBucketsFactory(final int bucketCount) {
+        return summingBucketsFactory(bucketCount, false);
+    }
+
+    /**
+     * Return a factory of buckets that only stores the sum of integer values in a bucket, optionally padded against
+     * false sharing.
+     * @param bucketCount number of buckets
+     * @param padded      whether to pad every bucket to its own cache lines
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> summingBucketsFactory(final int bucketCount, final boolean padded) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return padded? new PaddedSummingBucketStore(bucketCount): new SummingBucketStore(bucketCount);
+            }
+        };
+    }
+
+    /**
+     * Return a factory of buckets that only stores the maximum integer value in a bucket, in an off-heap slab.
+     * @param bucketCount number of buckets
+     * @param slab        off-heap slab to allocate the buckets from
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> offHeapMaxBucketsFactory(final int bucketCount, final OffHeapSlab slab) {
         return new Callable<IBucketStore>() {
             @Override
             public IBucketStore call() throws Exception {
-                return new SummingBucketStore(bucketCount);
+                return new OffHeapMaxBucketStore(bucketCount, slab);
+            }
+        };
+    }
+
+    /**
+     * Return a factory of buckets that only stores the sum of integer values in a bucket, in an off-heap slab.
+     * @param bucketCount number of buckets
+     * @param slab        off-heap slab to allocate the buckets from
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> offHeapSummingBucketsFactory(final int bucketCount, final OffHeapSlab slab) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return new OffHeapSummingBucketStore(bucketCount, slab);
             }
         };
     }
@@ -250,36 +770,266 @@ public final class RollingMetrics {
         };
     }
 
+    /**
+     * Return a factory of buckets that keep a uniform random sample of the integer values per bucket.
+     * @param bucketCount    number of buckets
+     * @param bucketCapacity max number of values sampled per bucket
+     * @return               factory of buckets
+     */
+    public static Callable<IBucketStore> reservoirBucketsFactory(final int bucketCount, final int bucketCapacity) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return new ReservoirBucketStore(bucketCount, bucketCapacity);
+            }
+        };
+    }
+
+    /**
+     * Return a factory of buckets that record the integer values into a quantile sketch per bucket.
+     * @param bucketCount number of buckets
+     * @param k           sketch parameter
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> sketchBucketsFactory(final int bucketCount, final int k) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return new SketchBucketStore(bucketCount, k);
+            }
+        };
+    }
+
+    /**
+     * Return a factory of buckets that counts the integer values in a log-linear histogram per bucket.
+     * @param bucketCount number of buckets
+     * @param histogram   histogram layout
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> histogramBucketsFactory(final int bucketCount,
+            final LogLinearHistogram histogram) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return new HistogramBucketStore(bucketCount, histogram);
+            }
+        };
+    }
+
+    /**
+     * Return a factory of buckets that keep summary statistics of the integer values per bucket.
+     * @param bucketCount number of buckets
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> statsBucketsFactory(final int bucketCount) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return new StatsBucketStore(bucketCount);
+            }
+        };
+    }
+
+    /**
+     * Return a factory of buckets that keep a HyperLogLog sketch of the hashed integer values per bucket.
+     * @param bucketCount number of buckets
+     * @param precision   number of hash bits to select a register
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> hyperLogLogBucketsFactory(final int bucketCount, final int precision) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return new HyperLogLogBucketStore(bucketCount, precision);
+            }
+        };
+    }
+
+    /**
+     * Return a factory of buckets that track the top K most frequent key hashes per bucket.
+     * @param bucketCount number of buckets
+     * @param k           number of top keys to track
+     * @param depth       number of count-min sketch rows
+     * @param width       number of count-min sketch counters per row (power of two)
+     * @return            factory of buckets
+     */
+    public static Callable<IBucketStore> topKBucketsFactory(final int bucketCount, final int k, final int depth,
+            final int width) {
+        return new Callable<IBucketStore>() {
+            @Override
+            public IBucketStore call() throws Exception {
+                return new TopKBucketStore(bucketCount, k, depth, width);
+            }
+        };
+    }
+
     // ---------- rolling metrics store ----------
 
+    /** Sorted tail elements of a cyclic bucket buffer, along with the head epoch they were retrieved at. */
+    private static final class SortedTail {
+        private final long epoch;
+        private final long resetCount;
+        private final long[] elements;
+
+        SortedTail(long epoch, long resetCount, long[] elements) {
+            this.epoch = epoch;
+            this.resetCount = resetCount;
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * Wrap the specified {@link ICyclicBucketBuffer} such that retrieved elements are sorted in ascending order, by
+     * merging their sorted runs (see {@link Stats#sortRuns(long[])}). That is cheap when every bucket retrieves a
+     * sorted run of values, like {@link StoringBucketStore} does. The sorted tail (the buckets except the head) is
+     * cached per head epoch, i.e. it is computed once per bucket interval and shared by all readers of that interval.
+     * Values recorded into the tail buckets after the tail is cached (e.g. late batches with explicit event IDs) become
+     * visible from the next bucket interval. The cache is also tagged with the number of resets applied to the buffer,
+     * because a reset may be applied later than requested (see {@link CyclicBucketBuffer#reset(long)}).
+     * @param buffer         buffer to wrap
+     * @param bucketInterval difference between min (inclusive) and max (inclusive) event ID per bucket
+     * @param originEventID  event ID the buffer was created at
+     * @param resetCounter   counter incremented by the buffer (all its shards) once a reset is applied
+     * @return               buffer retrieving sorted elements
+     */
+    private static ICyclicBucketBuffer sortedTailBucketBuffer(final ICyclicBucketBuffer buffer,
+            final int bucketInterval, final long originEventID, final AtomicLong resetCounter) {
+        return new ICyclicBucketBuffer() {
+            private final Object lock = new Object();
+            private volatile SortedTail cachedTail;  // null when nothing is cached
+
+            private long epochOf(long latestEventID) {
+                // same as -Math.floorDiv(originEventID - latestEventID, bucketInterval), not available in Java 7
+                final long delta = originEventID - latestEventID;
+                final long quotient = delta / bucketInterval;
+                return ((delta % bucketInterval != 0) && (delta < 0))? 1 - quotient: -quotient;
+            }
+
+            @Override
+            public void record(long eventID, long value) {
+                buffer.record(eventID, value);
+            }
+
+            @Override
+            public void record(long[] eventIDs, long[] values, int from, int to) {
+                buffer.record(eventIDs, values, from, to);
+            }
+
+            @Override
+            public void reset(long newLatestEventID) {
+                buffer.reset(newLatestEventID);  // the cached tail goes stale when the reset is applied
+            }
+
+            @Override
+            public long[] getAllElements() {
+                return Stats.sortRuns(buffer.getAllElements());
+            }
+
+            @Override
+            public long[] getAllElements(long latestEventID) {
+                return Stats.sortRuns(buffer.getAllElements(latestEventID));
+            }
+
+            @Override
+            public long[] getTailElements() {
+                return Stats.sortRuns(buffer.getTailElements());
+            }
+
+            @Override
+            public long[] getTailElements(long latestEventID) {
+                final long epoch = epochOf(latestEventID);
+                SortedTail tail = cachedTail;
+                if (tail == null || tail.epoch != epoch || tail.resetCount != resetCounter.get()) {
+                    synchronized (lock) {
+                        // read the reset count before the elements, so that a reset applied while reading them leaves
+                        // the cached tail stale
+                        final long resetCount = resetCounter.get();
+                        tail = cachedTail;
+                        if (tail == null || tail.epoch != epoch || tail.resetCount != resetCount) {
+                            tail = new SortedTail(epoch, resetCount,
+                                    Stats.sortRuns(buffer.getTailElements(latestEventID)));
+                            cachedTail = tail;
+                        }
+                    }
+                }
+                return tail.elements.clone();  // callers own the returned array
+            }
+        };
+    }
+
     public static IReducibleCyclicBucketBuffer cyclicBucketBuffer(int bucketInterval,
             Callable<? extends IBucketStore> bucketStoreFactory, long latestEventID) {
-        return new CyclicBucketBuffer(bucketInterval, get(bucketStoreFactory), latestEventID, new Pending());
+        return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, latestEventID, false);
+    }
+
+    public static IReducibleCyclicBucketBuffer cyclicBucketBuffer(int bucketInterval,
+            Callable<? extends IBucketStore> bucketStoreFactory, long latestEventID, boolean padded) {
+        return cyclicBucketBuffer(bucketInterval, bucketStoreFactory, latestEventID, new Pending(), padded);
+    }
+
+    /**
+     * Create a {@link CyclicBucketBuffer} that runs its deferred actions via the specified {@link Pending} instance,
+     * e.g. {@link preflex.util.RingBufferPending}. Every buffer needs its own {@link Pending} instance.
+     * @param bucketInterval     difference between min (inclusive) and max (inclusive) event ID per bucket
+     * @param bucketStoreFactory factory of the bucket store
+     * @param latestEventID      latest event ID
+     * @param pending            non-blocking, atomic executor
+     * @param padded             whether to pad the buffer state against false sharing
+     * @return                   cyclic bucket buffer
+     */
+    public static IReducibleCyclicBucketBuffer cyclicBucketBuffer(int bucketInterval,
+            Callable<? extends IBucketStore> bucketStoreFactory, long latestEventID, Pending pending,
+            boolean padded) {
+        return new CyclicBucketBuffer(bucketInterval, get(bucketStoreFactory), latestEventID, pending, padded);
     }
 
     /**
      * Create a sharded (striped) version of {@link ICyclicBucketBuffer} where the write load (update) is distributed
      * across a bunch of shards. Note that shards may be out of sync - coordinated synchronization is enforced at the
-     * time of reading the recorded result.
+     * time of reading the recorded result. Every recording thread sticks to a shard until it runs into contention
+     * there (see {@link StripedLocal}). Readers reduce one snapshot of the shard set, so they see the union of all
+     * shards even while the set grows. With shard count 0, a reset deflates the shard set back to one shard and then
+     * empties it, so that a burst of contention does not cost memory and read time forever. Note that only an
+     * explicit reset deflates the shard set, rotating buckets does not.
      * @param supplier   supplier {@link IReducibleCyclicBucketBuffer} instance for each shard
-     * @param shardCount number of shards, 0 implies auto-detect, positive integer implies actual shard count
+     * @param shardCount number of shards, 0 implies start with one shard and grow with contention up to the number of
+     *                   CPU cores, positive integer implies actual shard count
      * @return           sharded instance of {@link ICyclicBucketBuffer}
      * @throws {{@link IllegalArgumentException} when shardCount is a negative integer
      */
     public static ICyclicBucketBuffer shardedCyclicBucketBuffer(
             Callable<? extends IReducibleCyclicBucketBuffer> supplier, int shardCount) {
+        return shardedCyclicBucketBuffer(supplier, shardCount, true);
+    }
+
+    /**
+     * Same as {@link #shardedCyclicBucketBuffer(Callable, int)}, optionally keeping the grown shards upon reset (reset
+     * in place) instead of deflating the shard set. Shards whose buckets are allocated from an {@link OffHeapSlab} must
+     * be kept, because slab slots are never freed - a regrown shard would allocate new slots every time.
+     * @param deflate whether a reset deflates the shard set back to one shard when shard count is 0
+     */
+    public static ICyclicBucketBuffer shardedCyclicBucketBuffer(
+            Callable<? extends IReducibleCyclicBucketBuffer> supplier, int shardCount, boolean deflate) {
         if (shardCount < 0) {
             throw new IllegalArgumentException(
-                    "Expected 'shardCount' to be 0 (auto-detect) or a positive integer, but found " + shardCount);
+                    "Expected 'shardCount' to be 0 (grow with contention) or a positive integer, but found " +
+                    shardCount);
         }
         if (shardCount == 1) {
             return get(supplier);
         }
-        final RandomLocal<? extends IReducibleCyclicBucketBuffer> shards = RandomLocal.create(
-                shardCount == 0? RandomLocal.defaultShardCount(): shardCount, supplier);
+        final boolean adaptive = (shardCount == 0);
+        final boolean deflating = adaptive && deflate;
+        final StripedLocal<? extends IReducibleCyclicBucketBuffer> shards = adaptive?
+                StripedLocal.create(supplier): StripedLocal.create(shardCount, supplier);
         return new ICyclicBucketBuffer() {
             @Override
             public void reset(long newLatestEventID) {
+                if (deflating) {
+                    // drop the grown shards before resetting, so that no record made after the reset lands in a
+                    // dropped shard; records in flight to the dropped shards are discarded as if reset
+                    shards.shrink(1);
+                }
                 for (ICyclicBucketBuffer buffer: shards.getAll()) {
                     buffer.reset(newLatestEventID);
                 }
@@ -287,7 +1037,22 @@ public final class RollingMetrics {
 
             @Override
             public void record(long eventID, long value) {
-                shards.get().record(eventID, value);
+                final StripedLocal.Cell<? extends IReducibleCyclicBucketBuffer> shard = shards.enter();
+                try {
+                    shard.get().record(eventID, value);
+                } finally {
+                    shard.exit();
+                }
+            }
+
+            @Override
+            public void record(long[] eventIDs, long[] values, int from, int to) {
+                final StripedLocal.Cell<? extends IReducibleCyclicBucketBuffer> shard = shards.enter();
+                try {
+                    shard.get().record(eventIDs, values, from, to);
+                } finally {
+                    shard.exit();
+                }
             }
 
             @Override
@@ -0,0 +1,287 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import preflex.rollingmetrics.bucketstore.IReducible;
+
+/**
+ * Immutable point-in-time copy of the elements of rolling metrics (e.g. bucket counts or a histogram), with a compact
+ * versioned binary encoding to ship metrics between nodes, and a merge of snapshots from many nodes using the
+ * {@link IReducible} semantics of the bucket store, i.e. the same way shards are reduced.
+ * <p>
+ * The head event ID of a snapshot is the highest event ID of the head bucket of the rolling metrics, which the elements
+ * are aligned to. Nodes create their rolling metrics at different times, so their bucket boundaries differ; snapshots
+ * captured by different nodes at the same time have head event IDs less than one bucket interval apart. Encoding:
+ * <pre>
+ * +-------+---------+-------+-----------------+---------------+---------------+------------------------+
+ * | MAGIC | VERSION | FLAGS | bucket interval | head event ID | element count | element deltas         |
+ * | 2 B   | 1 B     | 1 B   | varint          | zigzag varint | varint        | zigzag varint (each)   |
+ * +-------+---------+-------+-----------------+---------------+---------------+------------------------+
+ * </pre>
+ * Every element is encoded as the difference from the previous element, so runs of equal values (e.g. empty buckets or
+ * histogram slots) take one byte per element.
+ *
+ */
+public final class RollingSnapshot {
+
+    private static final int MAGIC_0 = 'P';
+    private static final int MAGIC_1 = 'R';
+
+    public static final int VERSION = 1;
+
+    /** Max number of elements a decoded snapshot may have, e.g. 64 buckets of a 4096-slot histogram is 256K. */
+    public static final int MAX_ELEMENT_COUNT = 1 << 24;
+
+    /** Number of elements allocated up front when decoding, grown as elements are actually read. */
+    private static final int INITIAL_DECODE_CAPACITY = 1024;
+
+    private static final int FLAG_INCLUDES_HEAD = 1;
+
+    private final int bucketInterval;
+    private final long headEventID;
+    private final boolean includesHead;
+    private final long[] elements;
+
+    public RollingSnapshot(int bucketInterval, long headEventID, boolean includesHead, long[] elements) {
+        if (bucketInterval <= 0) {
+            throw new IllegalArgumentException("Expected bucketInterval to be a positive integer, but found " +
+                    bucketInterval);
+        }
+        this.bucketInterval = bucketInterval;
+        this.headEventID = headEventID;
+        this.includesHead = includesHead;
+        this.elements = elements.clone();
+    }
+
+    /**
+     * Capture a snapshot of the specified rolling metrics, reading the elements and the head event ID as of the same
+     * latest event ID.
+     * @param record         rolling metrics
+     * @param bucketInterval bucket interval of the rolling metrics
+     * @param latestEventID  latest event ID, e.g. current time in milliseconds, not older than any recorded event
+     * @param includeHead    whether to include the current bucket (see {@link IRollingRecord#getAllElements(long)}),
+     *                       or not (see {@link IRollingRecord#getPreviousElements(long)})
+     * @return               snapshot
+     */
+    public static RollingSnapshot capture(IRollingRecord record, int bucketInterval, long latestEventID,
+            boolean includeHead) {
+        final long[] elements = includeHead? record.getAllElements(latestEventID):
+            record.getPreviousElements(latestEventID);
+        return new RollingSnapshot(bucketInterval, record.getHeadEventID(latestEventID), includeHead, elements);
+    }
+
+    public int getBucketInterval() {
+        return bucketInterval;
+    }
+
+    public long getHeadEventID() {
+        return headEventID;
+    }
+
+    public boolean includesHead() {
+        return includesHead;
+    }
+
+    /**
+     * Return a copy of the elements.
+     * @return elements
+     */
+    public long[] getElements() {
+        return elements.clone();
+    }
+
+    // ----- merge -----
+
+    /**
+     * Merge the snapshots using the specified reducer (e.g. the bucket store of the rolling metrics). The snapshots
+     * must be captured at about the same time, i.e. with head event IDs less than one bucket interval apart; the
+     * merged snapshot has the latest head event ID. Snapshots a bucket interval or more behind the latest one (stale)
+     * are rejected rather than dropped, so that a lagging node does not silently vanish from the merged result. Capture
+     * all snapshots with the same latest event ID to avoid that.
+     * @param reducer   reducer of elements, as used for reducing shards
+     * @param snapshots snapshots to merge, with the same bucket interval and head inclusion
+     * @return          merged snapshot
+     * @throws IllegalArgumentException if there is no snapshot, the snapshots are not compatible, or any is stale
+     */
+    public static RollingSnapshot merge(IReducible reducer, List<RollingSnapshot> snapshots) {
+        if (snapshots.isEmpty()) {
+            throw new IllegalArgumentException("Expected at least one snapshot to merge, but found none");
+        }
+        final RollingSnapshot first = snapshots.get(0);
+        long latestHead = Long.MIN_VALUE;
+        for (final RollingSnapshot each: snapshots) {
+            if (each.bucketInterval != first.bucketInterval || each.includesHead != first.includesHead) {
+                throw new IllegalArgumentException("Expected snapshots with bucket interval " + first.bucketInterval +
+                        " and includesHead=" + first.includesHead + ", but found " + each);
+            }
+            latestHead = Math.max(latestHead, each.headEventID);
+        }
+        final List<long[]> colls = new ArrayList<>(snapshots.size());
+        for (final RollingSnapshot each: snapshots) {
+            if (latestHead - each.headEventID >= first.bucketInterval) {
+                throw new IllegalArgumentException("Expected snapshots with head event ID within one bucket interval " +
+                        "of " + latestHead + ", but found stale " + each);
+            }
+            colls.add(each.elements);
+        }
+        return new RollingSnapshot(first.bucketInterval, latestHead, first.includesHead, reducer.reduce(colls));
+    }
+
+    // ----- encoding -----
+
+    /**
+     * Encode the snapshot.
+     * @return encoded bytes
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + elements.length);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write to in-memory stream", e);  // never happens
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the encoded snapshot to the specified stream. The encoding is self-delimiting, so snapshots may be written
+     * back to back.
+     * @param out output stream
+     * @throws IOException if the stream cannot be written to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        out.write(includesHead? FLAG_INCLUDES_HEAD: 0);
+        writeVarLong(out, bucketInterval);
+        writeVarLong(out, zigzag(headEventID));
+        writeVarLong(out, elements.length);
+        long prev = 0;
+        for (final long each: elements) {
+            writeVarLong(out, zigzag(each - prev));
+            prev = each;
+        }
+    }
+
+    /**
+     * Decode a snapshot.
+     * @param bytes encoded bytes
+     * @return      snapshot
+     * @throws IllegalArgumentException if the bytes are not a valid encoded snapshot
+     */
+    public static RollingSnapshot fromBytes(byte[] bytes) {
+        try {
+            return readFrom(new ByteArrayInputStream(bytes));
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Expected encoded snapshot, but found truncated bytes", e);
+        } catch (IOException e) {  // in-memory stream cannot fail, so the content is bad
+            throw new IllegalArgumentException("Expected encoded snapshot, but found bad bytes", e);
+        }
+    }
+
+    /**
+     * Read an encoded snapshot from the specified stream.
+     * @param in input stream
+     * @return   snapshot
+     * @throws IOException if the stream cannot be read, ends prematurely ({@link EOFException}), or claims more than
+     *                     {@link #MAX_ELEMENT_COUNT} elements
+     * @throws IllegalArgumentException if the stream does not contain a valid encoded snapshot
+     */
+    public static RollingSnapshot readFrom(InputStream in) throws IOException {
+        final int magic0 = readByte(in);
+        final int magic1 = readByte(in);
+        if (magic0 != MAGIC_0 || magic1 != MAGIC_1) {
+            throw new IllegalArgumentException("Expected encoded snapshot, but found bad magic bytes " + magic0 +
+                    ", " + magic1);
+        }
+        final int version = readByte(in);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Expected snapshot version " + VERSION + ", but found " + version);
+        }
+        final int flags = readByte(in);
+        final long bucketInterval = readVarLong(in);
+        if (bucketInterval <= 0 || bucketInterval > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Expected bucket interval to be a positive integer, but found " +
+                    bucketInterval);
+        }
+        final long headEventID = unzigzag(readVarLong(in));
+        final long count = readVarLong(in);
+        if (count < 0 || count > MAX_ELEMENT_COUNT) {
+            throw new IOException("Expected element count to be between 0 and " + MAX_ELEMENT_COUNT +
+                    ", but found " + count);
+        }
+        // the count is untrusted, so allocate only as much as the elements actually read
+        long[] elements = new long[(int) Math.min(count, INITIAL_DECODE_CAPACITY)];
+        long prev = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == elements.length) {
+                elements = Arrays.copyOf(elements, (int) Math.min(count, 2L * elements.length));
+            }
+            prev += unzigzag(readVarLong(in));
+            elements[i] = prev;
+        }
+        return new RollingSnapshot((int) bucketInterval, headEventID, (flags & FLAG_INCLUDES_HEAD) != 0, elements);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of encoded snapshot");
+        }
+        return b;
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            final int b = readByte(in);
+            result |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Expected a varint of at most 10 bytes, but found a longer one");
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + ':' + "{bucketInterval=" + bucketInterval + ", headEventID=" +
+                headEventID + ", includesHead=" + includesHead + ", elementCount=" + elements.length + "}";
+    }
+
+}
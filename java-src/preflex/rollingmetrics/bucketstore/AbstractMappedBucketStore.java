@@ -0,0 +1,210 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import preflex.util.Args;
+import preflex.util.OffHeapSlab;
+
+/**
+ * Value bucket store that keeps its buckets and the head position in an {@link OffHeapSlab} backed by a memory-mapped
+ * file (see {@link OffHeapSlab#map(java.io.File, int)}), so that the recorded values survive a restart and can be read
+ * by other processes (see {@link #readElements(OffHeapSlab, int, long, boolean)}). Slots are laid out as follows:
+ * <pre>
+ * +-------+---------+------+--------------+-----------------+-----------------+-------+----------+-- ... --+
+ * | MAGIC | VERSION | KIND | BUCKET_COUNT | BUCKET_INTERVAL | ORIGIN_EVENT_ID | EPOCH | reserved | buckets |
+ * +-------+---------+------+--------------+-----------------+-----------------+-------+----------+-- ... --+
+ * </pre>
+ * When the slab already holds a store of the same kind, bucket count and bucket interval, the store attaches to it and
+ * resumes from the saved head position. Otherwise the slots are initialized afresh. The header is written last, so a
+ * store interrupted while initializing is initialized again next time.
+ * <p>
+ * Event IDs must be wall-clock based (e.g. {@link System#currentTimeMillis()}) to be meaningful across restarts.
+ * Updates are written to the page cache right away and survive a process crash, but not necessarily a system crash
+ * (see {@link OffHeapSlab#force()}).
+ *
+ */
+public abstract class AbstractMappedBucketStore implements IPersistentBucketStore {
+
+    /** "PRFLXRM" followed by a zero byte, reads reversed in case of a byte order mismatch. */
+    public static final long MAGIC = 0x5052464C58524D00L;
+    public static final long VERSION = 1;
+
+    public static final long KIND_SUM = 1;
+    public static final long KIND_MAX = 2;
+
+    // header slots
+    private static final int MAGIC_SLOT = 0;
+    private static final int VERSION_SLOT = 1;
+    private static final int KIND_SLOT = 2;
+    private static final int BUCKET_COUNT_SLOT = 3;
+    private static final int BUCKET_INTERVAL_SLOT = 4;
+    private static final int ORIGIN_EVENT_ID_SLOT = 5;
+    private static final int EPOCH_SLOT = 6;
+
+    public static final int HEADER_LENGTH = 8;
+
+    protected final OffHeapSlab slab;
+
+    /** Slot index of the header. */
+    private final int base;
+
+    private final int bucketCount;
+    private final int bucketInterval;
+    private final long originEventID;
+
+    /**
+     * Attach to the store in the slab, or initialize the slab if it does not hold a matching store.
+     * @param bucketCount    number of buckets
+     * @param bucketInterval difference between min (inclusive) and max (inclusive) event ID per bucket
+     * @param slab           slab, usually backed by a memory-mapped file, with a capacity of at least
+     *                       {@link #HEADER_LENGTH} + bucketCount slots
+     * @param kind           kind of the store, e.g. {@link #KIND_SUM}
+     * @param latestEventID  latest event ID, becomes the origin event ID when the slab is initialized
+     */
+    protected AbstractMappedBucketStore(int bucketCount, int bucketInterval, OffHeapSlab slab, long kind,
+            long latestEventID) {
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Expected bucketCount to be a positive integer, but found " +
+                    bucketCount);
+        }
+        if (bucketInterval <= 0) {
+            throw new IllegalArgumentException("Expected a positive bucketInterval, but found " + bucketInterval);
+        }
+        this.slab = Args.notNull(slab, "slab");
+        this.bucketCount = bucketCount;
+        this.bucketInterval = bucketInterval;
+        this.base = slab.allocate(HEADER_LENGTH + bucketCount);
+        if (isValid(slab, base) && slab.get(base + KIND_SLOT) == kind &&
+                slab.get(base + BUCKET_COUNT_SLOT) == bucketCount &&
+                slab.get(base + BUCKET_INTERVAL_SLOT) == bucketInterval) {
+            this.originEventID = slab.get(base + ORIGIN_EVENT_ID_SLOT);
+        } else {
+            slab.set(base + MAGIC_SLOT, 0);
+            for (int i = 0; i < bucketCount; i++) {
+                slab.set(base + HEADER_LENGTH + i, 0);
+            }
+            slab.set(base + VERSION_SLOT, VERSION);
+            slab.set(base + KIND_SLOT, kind);
+            slab.set(base + BUCKET_COUNT_SLOT, bucketCount);
+            slab.set(base + BUCKET_INTERVAL_SLOT, bucketInterval);
+            slab.set(base + ORIGIN_EVENT_ID_SLOT, latestEventID);
+            slab.set(base + EPOCH_SLOT, 0);
+            slab.set(base + MAGIC_SLOT, MAGIC);
+            this.originEventID = latestEventID;
+        }
+    }
+
+    private static boolean isValid(OffHeapSlab slab, int base) {
+        return slab.getCapacity() - base >= HEADER_LENGTH && slab.get(base + MAGIC_SLOT) == MAGIC &&
+                slab.get(base + VERSION_SLOT) == VERSION && slab.get(base + BUCKET_COUNT_SLOT) > 0 &&
+                slab.get(base + BUCKET_INTERVAL_SLOT) > 0 &&
+                slab.getCapacity() - base - HEADER_LENGTH >= slab.get(base + BUCKET_COUNT_SLOT);
+    }
+
+    /**
+     * Return slab slot index of the specified bucket.
+     * @param bucketIndex bucket index
+     * @return            slot index in {@link #slab}
+     */
+    protected final int offset(int bucketIndex) {
+        return base + HEADER_LENGTH + bucketIndex;
+    }
+
+    /**
+     * Return slab slot index of the header of this store.
+     * @return slot index in the slab
+     */
+    public int getBase() {
+        return base;
+    }
+
+    @Override
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    @Override
+    public int getBucketInterval() {
+        return bucketInterval;
+    }
+
+    @Override
+    public long getOriginEventID() {
+        return originEventID;
+    }
+
+    @Override
+    public long getEpoch() {
+        return slab.get(base + EPOCH_SLOT);
+    }
+
+    @Override
+    public void setEpoch(long epoch) {
+        slab.set(base + EPOCH_SLOT, epoch);
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        slab.set(offset(bucketIndex), 0);
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final long[] result = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = slab.get(offset(indices[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Read the bucket values (head first) of the store at the specified slot index of a slab, typically mapped
+     * read-only from the file of another process (see {@link OffHeapSlab#mapReadOnly(java.io.File)}). The buckets
+     * are aligned to the specified latest event ID, i.e. buckets that would have been recycled by then read as zero,
+     * without updating the slab. Values read while the owning process rotates the buckets may be off by a bucket.
+     * @param slab          slab holding the store
+     * @param base          slot index of the store header, 0 for the first store in the slab
+     * @param latestEventID latest event ID to align the buckets to
+     * @param includeHead   whether to include the head bucket
+     * @return              bucket values, head (if included) first and the oldest bucket last
+     * @throws IllegalArgumentException if the slab does not hold a store at the specified slot index
+     */
+    public static long[] readElements(OffHeapSlab slab, int base, long latestEventID, boolean includeHead) {
+        if (base < 0 || !isValid(slab, base)) {
+            throw new IllegalArgumentException("Expected a mapped bucket store at slot " + base + ", but found none");
+        }
+        final int bucketCount = (int) slab.get(base + BUCKET_COUNT_SLOT);
+        final long bucketInterval = slab.get(base + BUCKET_INTERVAL_SLOT);
+        final long originEventID = slab.get(base + ORIGIN_EVENT_ID_SLOT);
+        final long savedEpoch = slab.get(base + EPOCH_SLOT);
+        // same as CyclicBucketBuffer: the head bucket is the first one whose last event ID is not less than latest
+        final long currentEpoch = Math.max(savedEpoch, -floorDiv(originEventID - latestEventID, bucketInterval));
+        final long[] result = new long[bucketCount - (includeHead? 0: 1)];
+        for (int i = 0; i < result.length; i++) {
+            final long epoch = currentEpoch - i - (includeHead? 0: 1);  // epoch of the bucket
+            if (epoch <= savedEpoch && epoch > savedEpoch - bucketCount) {
+                final int remainder = (int) (-epoch % bucketCount);
+                final int arrayIndex = remainder < 0? remainder + bucketCount: remainder;
+                result[i] = slab.get(base + HEADER_LENGTH + arrayIndex);
+            }
+        }
+        return result;
+    }
+
+    private static long floorDiv(long x, long y) {
+        final long quotient = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            return quotient - 1;
+        }
+        return quotient;
+    }
+
+}
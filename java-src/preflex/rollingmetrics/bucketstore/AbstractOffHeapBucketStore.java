@@ -0,0 +1,87 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import preflex.util.Args;
+import preflex.util.OffHeapSlab;
+
+/**
+ * Value bucket store that keeps one long slot per bucket in a shared {@link OffHeapSlab} instead of an on-heap array,
+ * so that very many metrics cost only a small fixed-size object each on the heap. Every store allocates a header slot,
+ * holding the bucket count, followed by the bucket slots:
+ * <pre>
+ * +--------------+----------+----------+-- ... --+------------------------+
+ * | bucket count | bucket 0 | bucket 1 |         | bucket (bucketCount-1) |
+ * +--------------+----------+----------+-- ... --+------------------------+
+ * </pre>
+ * The slots are allocated upon construction and never freed, so every shard of a sharded metric allocates its own
+ * slots for the lifetime of the slab. A full slab fails the construction with {@link IllegalStateException}.
+ *
+ */
+public abstract class AbstractOffHeapBucketStore implements IBucketStore {
+
+    public static final int HEADER_LENGTH = 1;
+
+    protected final OffHeapSlab slab;
+
+    /** Slot index of the header. */
+    private final int base;
+
+    private final int bucketCount;
+
+    public AbstractOffHeapBucketStore(int bucketCount, OffHeapSlab slab) {
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Expected bucketCount to be a positive integer, but found " +
+                    bucketCount);
+        }
+        this.slab = Args.notNull(slab, "slab");
+        this.bucketCount = bucketCount;
+        this.base = slab.allocate(HEADER_LENGTH + bucketCount);
+        slab.set(base, bucketCount);
+    }
+
+    /**
+     * Return slab slot index of the specified bucket.
+     * @param bucketIndex bucket index
+     * @return            slot index in {@link #slab}
+     */
+    protected final int offset(int bucketIndex) {
+        return base + HEADER_LENGTH + bucketIndex;
+    }
+
+    /**
+     * Return slab slot index of the header of this store.
+     * @return slot index in the slab
+     */
+    public int getBase() {
+        return base;
+    }
+
+    @Override
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        slab.set(offset(bucketIndex), 0);
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final long[] result = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = slab.get(offset(indices[i]));
+        }
+        return result;
+    }
+
+}
@@ -14,20 +14,57 @@ import java.util.concurrent.atomic.AtomicLongArray;
 
 public abstract class AbstractValueBucketStore implements IBucketStore {
 
+    /**
+     * Number of long elements spanned by a padded bucket, i.e. 128 bytes - two cache lines, to also defeat adjacent
+     * cache-line prefetch.
+     */
+    public static final int PADDED_STRIDE = 16;
+
     protected final AtomicLongArray bucketElements;
 
+    /** Number of buckets. */
+    private final int bucketCount;
+
+    /** Number of elements between two adjacent buckets, 1 when unpadded. */
+    private final int stride;
+
     public AbstractValueBucketStore(int bucketCount) {
-        this.bucketElements = new AtomicLongArray(bucketCount);
+        this(bucketCount, 1);
+    }
+
+    /**
+     * Create a value bucket store where every bucket is spaced `stride` elements apart. A stride greater than 1 also
+     * leaves a stride-wide gap before the first and after the last bucket, so that no bucket shares a cache line with
+     * its neighbours, nor with the array header or objects adjacent on the heap.
+     * @param bucketCount number of buckets
+     * @param stride      number of elements between two adjacent buckets
+     */
+    protected AbstractValueBucketStore(int bucketCount, int stride) {
+        if (stride <= 0) {
+            throw new IllegalArgumentException("Expected a positive stride, but found " + stride);
+        }
+        this.bucketCount = bucketCount;
+        this.stride = stride;
+        this.bucketElements = new AtomicLongArray(stride == 1? bucketCount: (bucketCount + 2) * stride);
+    }
+
+    /**
+     * Return array offset of the specified bucket.
+     * @param bucketIndex bucket index
+     * @return            offset in {@link #bucketElements}
+     */
+    protected final int offset(int bucketIndex) {
+        return stride == 1? bucketIndex: (bucketIndex + 1) * stride;
     }
 
     @Override
     public int getBucketCount() {
-        return bucketElements.length();
+        return bucketCount;
     }
 
     @Override
     public void reset(int bucketIndex) {
-        bucketElements.set(bucketIndex, 0);
+        bucketElements.set(offset(bucketIndex), 0);
     }
 
     @Override
@@ -35,7 +72,7 @@ public abstract class AbstractValueBucketStore implements IBucketStore {
         final long[] result = new long[indices.length];
         for (int i = 0; i < indices.length; i++) {
             final int bucketIndex = indices[i];
-            result[i] = bucketElements.get(bucketIndex);
+            result[i] = bucketElements.get(offset(bucketIndex));
         }
         return result;
     }
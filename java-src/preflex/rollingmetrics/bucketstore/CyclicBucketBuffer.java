@@ -13,6 +13,7 @@ package preflex.rollingmetrics.bucketstore;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
+import preflex.util.PaddedAtomicLong;
 import preflex.util.Pending;
 
 /**
@@ -50,11 +51,43 @@ import preflex.util.Pending;
  * 4. `headArrayIndex` always moves up in synchronization with monotonically increasing `latestEventID`
  * 5. `latestEventID` is always updated (relative to its old value) in multiples of `bucketInterval`
  * 6. Buckets in the bucket-store are referenced using arrayIndex in CyclicBucketsBuffer
+ * <p>
+ * Both `headArrayIndex` and `latestEventID` are derived from a single epoch word (the number of buckets rotated since
+ * `originEventID`), so the head advances with one CAS and without locks or allocation:
+ * <pre>
+ *  63                                         2    1    0
+ * +--------------------------------------------+----+----+
+ * |                   epoch                    |WIPE|ROT |
+ * +--------------------------------------------+----+----+
+ *
+ * latestEventID  = originEventID + epoch * bucketInterval
+ * headArrayIndex = (-epoch) mod bucketCount
+ * </pre>
+ * A writer that finds its event ahead of the head sets ROT (claims the rotation), clears the recycled buckets and
+ * publishes the new epoch. Writers racing an in-flight rotation record into the old head bucket, which is never
+ * recycled by a rotation of fewer than `bucketCount` buckets. Only when the entire window is wiped (WIPE, after an idle
+ * gap of at least one full window, or upon reset) do writers wait for the wipe to finish.
+ * <p>
+ * Readers never sleep: they help drain the deferred actions (resets) if no other thread is running them, then read
+ * the buckets of one epoch and retry a bounded number of times if the epoch moved while reading.
+ * <p>
+ * With an {@link IPersistentBucketStore} the buffer takes the origin event ID and the initial epoch from the store, and
+ * saves every new epoch to the store before publishing it, so that a buffer attached to the store later resumes with
+ * the same head.
  */
 public class CyclicBucketBuffer implements IReducibleCyclicBucketBuffer {
 
-    /** Magic constant for "array index not found" scenario. */
-    private static final int ARRAY_INDEX_NOT_FOUND = -1;
+    /** State bit: rotation is in progress. */
+    private static final long ROTATING = 1;
+
+    /** State bit: the in-progress rotation wipes all buckets. */
+    private static final long WIPING = 2;
+
+    /** Number of low state bits used as flags, the epoch occupies the rest. */
+    private static final int EPOCH_SHIFT = 2;
+
+    /** Max number of times a reader retries when the epoch moves while reading the buckets. */
+    private static final int MAX_READ_RETRIES = 2;
 
     /** Pool of all buffer IDs. */
     private static final AtomicLong BUFFER_ID_POOL = new AtomicLong();
@@ -74,16 +107,63 @@ public class CyclicBucketBuffer implements IReducibleCyclicBucketBuffer {
     /** Non-blocking, atomic executor. */
     private final Pending pending;
 
-    /** Internal update lock. */
-    private final Object updateLock = new Object();
+    /** Latest event ID at epoch 0. */
+    private final long originEventID;
 
-    /** Zero based array-index for the head bucket, always 0 <= headArrayIndex < bucketCount. */
-    private volatile int headArrayIndex = 0;
+    /** Epoch (bucket rotations since origin) shifted by {@link #EPOCH_SHIFT}, plus rotation flags. */
+    private final AtomicLong state;
 
-    /** Latest known event ID. */
-    private volatile long latestEventID;
+    /** Receives buckets falling off the tail, may be null. */
+    private final IBucketEvictionListener evictionListener;
+
+    /** Persistent bucket storage to save the epoch to, null if the bucket storage is not persistent. */
+    private final IPersistentBucketStore persistentBuckets;
+
+    /** Incremented once a reset is applied, may be null. */
+    private final AtomicLong resetCounter;
 
     public CyclicBucketBuffer(int bucketInterval, IBucketStore bucketStore, long latestEventID, Pending pending) {
+        this(bucketInterval, bucketStore, latestEventID, pending, false);
+    }
+
+    /**
+     * Create a cyclic bucket buffer.
+     * @param bucketInterval difference between min (inclusive) and max (inclusive) event ID per bucket
+     * @param bucketStore    bucket storage
+     * @param latestEventID  latest event ID
+     * @param pending        non-blocking, atomic executor
+     * @param padded         whether to pad the state word against false sharing with adjacent objects (other shards)
+     */
+    public CyclicBucketBuffer(int bucketInterval, IBucketStore bucketStore, long latestEventID, Pending pending,
+            boolean padded) {
+        this(bucketInterval, bucketStore, latestEventID, pending, padded, null);
+    }
+
+    /**
+     * Create a cyclic bucket buffer that hands over the buckets falling off the tail to the specified listener.
+     * @param bucketInterval   difference between min (inclusive) and max (inclusive) event ID per bucket
+     * @param bucketStore      bucket storage
+     * @param latestEventID    latest event ID
+     * @param pending          non-blocking, atomic executor
+     * @param padded           whether to pad the state word against false sharing with adjacent objects
+     * @param evictionListener receives the evicted buckets before they are recycled, null implies none
+     * @throws IllegalArgumentException if bucketStore is an {@link IPersistentBucketStore} with a different
+     *         bucketInterval, in which case the latestEventID argument is ignored in favour of the saved origin
+     */
+    public CyclicBucketBuffer(int bucketInterval, IBucketStore bucketStore, long latestEventID, Pending pending,
+            boolean padded, IBucketEvictionListener evictionListener) {
+        this(bucketInterval, bucketStore, latestEventID, pending, padded, evictionListener, null);
+    }
+
+    /**
+     * Create a cyclic bucket buffer that counts the applied resets, e.g. to invalidate values derived from the buckets.
+     * A reset may be applied later than it is requested (see {@link #reset(long)}), so the counter is incremented only
+     * once the buckets are actually reset. Buffers may share a counter.
+     * @param resetCounter counter incremented once a reset is applied, null implies none
+     * @see #CyclicBucketBuffer(int, IBucketStore, long, Pending, boolean, IBucketEvictionListener)
+     */
+    public CyclicBucketBuffer(int bucketInterval, IBucketStore bucketStore, long latestEventID, Pending pending,
+            boolean padded, IBucketEvictionListener evictionListener, AtomicLong resetCounter) {
         if (bucketInterval <= 0) {
             throw new IllegalArgumentException("Expected a positive bucketInterval, but found " + bucketInterval);
         }
@@ -91,95 +171,240 @@ public class CyclicBucketBuffer implements IReducibleCyclicBucketBuffer {
         this.bucketInterval = bucketInterval;
         this.buckets = bucketStore;
         this.pending = pending;
-        this.latestEventID = latestEventID;
+        this.state = padded? new PaddedAtomicLong(): new AtomicLong();
+        this.evictionListener = evictionListener;
+        this.resetCounter = resetCounter;
+        if (bucketStore instanceof IPersistentBucketStore) {
+            this.persistentBuckets = (IPersistentBucketStore) bucketStore;
+            if (persistentBuckets.getBucketInterval() != bucketInterval) {
+                throw new IllegalArgumentException("Expected bucketInterval to be " +
+                        persistentBuckets.getBucketInterval() + " as in the persistent bucket store, but found " +
+                        bucketInterval);
+            }
+            this.originEventID = persistentBuckets.getOriginEventID();
+            this.state.set(persistentBuckets.getEpoch() << EPOCH_SHIFT);
+        } else {
+            this.persistentBuckets = null;
+            this.originEventID = latestEventID;
+        }
     }
 
-
-    /** Given eventID, return (potentially out-of-range) bucketIndex. */
-    private int findBucketIndex(long eventID) {
-    	final long diff = latestEventID - eventID;
-        final int remainder = (int) diff % bucketInterval;
-        final int quotient = (int) diff / bucketInterval;
-        if (remainder >= 0) {  // we ignore (1) zero remainder for negative diff, (2) all remainder for positive diff
-            return quotient;
-        } else /* remainder < 0, which implies diff is negative */ {
+    private static long floorDiv(long x, long y) {
+        final long quotient = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
             return quotient - 1;
         }
+        return quotient;
     }
 
-    private int bucket2ArrayIndex(int bucketIndex) {
-        if (bucketIndex < 0 || bucketIndex >= bucketCount) {
-            return ARRAY_INDEX_NOT_FOUND;
-        }
-        return (bucketIndex + headArrayIndex) % bucketCount;
+    private static long epochOf(long state) {
+        return state >> EPOCH_SHIFT;
     }
 
-    @SuppressWarnings("unused")
-    private int array2BucketIndex(int arrayIndex) {
-        return (arrayIndex - headArrayIndex + bucketCount) % bucketCount;
+    private long latestEventID(long epoch) {
+        return originEventID + epoch * bucketInterval;
     }
 
-    private int syncHeadAndGetArrayIndex(long eventID) {
-        final int computedBucketIndex = findBucketIndex(eventID);
-        if (computedBucketIndex >= 0) {  // possibly the most common case (during heavy load)
-            return bucket2ArrayIndex(computedBucketIndex);
-        } else {  // bucketIndex was found to be negative
-            synchronized (updateLock) {
-                final int bucketIndex = findBucketIndex(eventID);  // re-compute due to race condition
-                if (bucketIndex >= 0) {
-                    return bucket2ArrayIndex(computedBucketIndex);
-                } else if (bucketIndex == -1) { // possibly 2nd most common case (during load) after bucketIndex >= 0
-                    if (--headArrayIndex < 0) {
-                        headArrayIndex = bucketCount - 1; // roll over by one bucket
-                    }
-                    buckets.reset(headArrayIndex);
-                    this.latestEventID += this.bucketInterval;  // bump by one bucket
-                    return headArrayIndex;
-                } else /* bucketIndex is negative here */ if (bucketIndex > -bucketCount) {
-                    final int oldHead = headArrayIndex;
-                    headArrayIndex += bucketIndex;
-                    if (headArrayIndex < 0) {
-                        headArrayIndex += bucketCount; // roll over by several buckets
-                    }
-                    for (int i = 0; i < bucketCount; i++) {
-                        if ((headArrayIndex > oldHead && (i < oldHead || i >= headArrayIndex))  // after roll over
-                                || (headArrayIndex < oldHead && (i < oldHead && i >= headArrayIndex))) {  // no roll over
-                            buckets.reset(i);
-                        }
-                    }
-                    this.latestEventID += (-bucketIndex) * (long) this.bucketInterval;  // bump by shifted buckets
-                    return headArrayIndex;
-                } else /* bucketIndex <= -bucketCount */ {
-                    for (int i = 0; i < bucketCount; i++) {
-                        buckets.reset(i);
+    /** Given epoch and eventID, return (potentially out-of-range) bucketIndex. */
+    private long findBucketIndex(long epoch, long eventID) {
+        return floorDiv(latestEventID(epoch) - eventID, bucketInterval);
+    }
+
+    private int headArrayIndex(long epoch) {
+        final int remainder = (int) (-epoch % bucketCount);
+        return remainder < 0? remainder + bucketCount: remainder;
+    }
+
+    private int bucket2ArrayIndex(long epoch, int bucketIndex) {
+        return (bucketIndex + headArrayIndex(epoch)) % bucketCount;
+    }
+
+    /**
+     * Having claimed the rotation, clear the buckets that are recycled when moving the head by `shift` buckets. Every
+     * evicted bucket is handed to the eviction listener even if the listener fails for another bucket.
+     * @param epoch current epoch
+     * @param shift number of buckets to move the head by
+     * @return      the first exception thrown by the eviction listener (others suppressed by it), null if none
+     */
+    private RuntimeException clearRecycledBuckets(long epoch, long shift) {
+        RuntimeException failure = null;
+        if (evictionListener != null) {
+            // the bucket recycled for epoch (epoch + i) last held epoch (epoch + i - bucketCount)
+            for (long i = 1, n = Math.min(shift, bucketCount); i <= n; i++) {
+                final long evictedEpoch = epoch + i - bucketCount;
+                try {
+                    evictionListener.evicted(latestEventID(evictedEpoch),
+                            buckets.getElements(new int[] { headArrayIndex(evictedEpoch) }));
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
                     }
-                    this.headArrayIndex = 0;
-                    this.latestEventID = eventID;  // reset to supplied eventID because everything zapped
-                    return headArrayIndex; // we synced headIndex, so return bucketIndex 0
                 }
             }
         }
+        if (shift >= bucketCount) {
+            for (int i = 0; i < bucketCount; i++) {
+                buckets.reset(i);
+            }
+        } else {
+            for (long i = 1; i <= shift; i++) {
+                buckets.reset(headArrayIndex(epoch + i));
+            }
+        }
+        return failure;
+    }
+
+    /** Publish the specified epoch, ending the rotation. */
+    private void publishEpoch(long epoch) {
+        if (persistentBuckets != null) {
+            persistentBuckets.setEpoch(epoch);
+        }
+        state.set(epoch << EPOCH_SHIFT);
+    }
+
+    /**
+     * Try to move the head from the observed state by `shift` buckets. Return true on success, false if another thread
+     * changed the state in the meantime. The rotation always ends, even if the eviction listener fails; the failure is
+     * then rethrown to the rotating thread once the new epoch is published.
+     */
+    private boolean tryRotate(long observedState, long epoch, long shift) {
+        final long claimedState = observedState | ROTATING | (shift >= bucketCount? WIPING: 0);
+        if (state.compareAndSet(observedState, claimedState)) {
+            RuntimeException failure = null;
+            try {
+                failure = clearRecycledBuckets(epoch, shift);
+            } finally {
+                publishEpoch(epoch + shift);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return true;
+        }
+        return false;
     }
 
-    private void recordInternal(int arrayIndex, long value) {
-        if (arrayIndex >= 0 && arrayIndex < bucketCount) {  // ignore the out-of-bounds index values
-            buckets.record(arrayIndex, value);
+    /**
+     * Move the head (if required) to include the specified event ID, and return the epoch the event ID belongs to.
+     * Wait only for in-flight rotations to finish.
+     */
+    private long syncEpoch(long eventID) {
+        while (true) {
+            final long s = state.get();
+            if ((s & ROTATING) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final long epoch = epochOf(s);
+            final long bucketIndex = findBucketIndex(epoch, eventID);
+            if (bucketIndex >= 0) {
+                return epoch;
+            }
+            if (tryRotate(s, epoch, -bucketIndex)) {
+                return epoch - bucketIndex;
+            }
         }
     }
 
     @Override
     public void record(final long eventID, final long value) {
-        final int bucketIndex = findBucketIndex(eventID);
-        if (bucketIndex >= 0) {  // requires no sync?
-            recordInternal(bucket2ArrayIndex(bucketIndex), value);  // process directly, not via pending
-        } else {  // requires sync
-            pending.runPending(new Runnable() {
-                @Override
-                public void run() {
-                    final int arrayIndex = syncHeadAndGetArrayIndex(eventID);
-                    recordInternal(arrayIndex, value);
+        while (true) {
+            final long s = state.get();
+            final long epoch = epochOf(s);
+            final long bucketIndex = findBucketIndex(epoch, eventID);
+            if (bucketIndex >= 0) {  // the most common case: event belongs to the head or an existing tail bucket
+                if (bucketIndex < bucketCount) {  // ignore events that fell off the tail
+                    buckets.record(bucket2ArrayIndex(epoch, (int) bucketIndex), value);
+                }
+                return;
+            }
+            if ((s & ROTATING) == 0) {  // event is ahead of the head, move the head
+                final boolean rotated;
+                try {
+                    rotated = tryRotate(s, epoch, -bucketIndex);
+                } catch (RuntimeException e) {  // rotated, but the eviction listener failed
+                    buckets.record(headArrayIndex(epoch - bucketIndex), value);
+                    throw e;
                 }
-            });
+                if (rotated) {
+                    buckets.record(headArrayIndex(epoch - bucketIndex), value);
+                    return;
+                }
+            } else if ((s & WIPING) == 0) {  // rotation in progress, old head is not recycled so record into it
+                buckets.record(headArrayIndex(epoch), value);
+                return;
+            } else {  // entire window is being wiped, wait for it to finish
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Record a batch of events. The head is moved once for the latest event of the batch, then the values are grouped
+     * by bucket. With an {@link IAggregatingBucketStore} the values are pre-aggregated locally and every touched bucket
+     * is updated once, otherwise every value is recorded on its own.
+     */
+    @Override
+    public void record(final long[] eventIDs, final long[] values, final int from, final int to) {
+        if (from < 0 || from > to || to > eventIDs.length || to > values.length) {
+            throw new IndexOutOfBoundsException("Expected 0 <= from <= to <= " +
+                    Math.min(eventIDs.length, values.length) + ", but found from=" + from + " and to=" + to);
+        }
+        if (from == to) {
+            return;
+        }
+        long maxEventID = eventIDs[from];
+        for (int i = from + 1; i < to; i++) {
+            maxEventID = Math.max(maxEventID, eventIDs[i]);
+        }
+        RuntimeException failure = null;
+        long epoch;
+        try {
+            epoch = syncEpoch(maxEventID);
+        } catch (RuntimeException e) {  // rotated, but the eviction listener failed - record the batch before throwing
+            failure = e;
+            epoch = syncEpoch(maxEventID);
+        }
+        if (!(buckets instanceof IAggregatingBucketStore)) {
+            for (int i = from; i < to; i++) {
+                record(eventIDs[i], values[i]);
+            }
+        } else {
+            recordAggregated(epoch, eventIDs, values, from, to);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void recordAggregated(final long epoch, final long[] eventIDs, final long[] values, final int from,
+            final int to) {
+        final IAggregatingBucketStore store = (IAggregatingBucketStore) buckets;
+        final long[] aggregates = new long[bucketCount];
+        final boolean[] touched = new boolean[bucketCount];
+        for (int i = from; i < to; i++) {
+            final long bucketIndex = findBucketIndex(epoch, eventIDs[i]);
+            if (bucketIndex < bucketCount) {  // ignore events that fell off the tail
+                final int b = (int) bucketIndex;
+                aggregates[b] = touched[b]? store.aggregate(aggregates[b], values[i]): values[i];
+                touched[b] = true;
+            }
+        }
+        // apply at the current epoch, as the head may have moved since
+        long s = state.get();
+        while ((s & ROTATING) != 0) {
+            Thread.yield();
+            s = state.get();
+        }
+        final long currentEpoch = epochOf(s);
+        final long shift = currentEpoch - epoch;
+        for (int b = 0; b < bucketCount; b++) {
+            final long bucketIndex = b + shift;
+            if (touched[b] && bucketIndex >= 0 && bucketIndex < bucketCount) {
+                store.record(bucket2ArrayIndex(currentEpoch, (int) bucketIndex), aggregates[b]);
+            }
         }
     }
 
@@ -193,21 +418,29 @@ public class CyclicBucketBuffer implements IReducibleCyclicBucketBuffer {
         pending.run(new Runnable() {
             @Override
             public void run() {
-                for (int i = 0; i < bucketCount; i++) {
-                    buckets.reset(i);
-                }
-                // the following already happens atomically (linearizable via Pending) except reporting calls
-                synchronized (updateLock) {
-                    CyclicBucketBuffer.this.headArrayIndex = 0;
-                    CyclicBucketBuffer.this.latestEventID = newLatestEventID;
+                final long newEpoch = -floorDiv(originEventID - newLatestEventID, bucketInterval);
+                while (true) {
+                    final long s = state.get();
+                    if ((s & ROTATING) != 0) {
+                        Thread.yield();
+                    } else if (state.compareAndSet(s, s | ROTATING | WIPING)) {
+                        for (int i = 0; i < bucketCount; i++) {
+                            buckets.reset(i);
+                        }
+                        publishEpoch(newEpoch);
+                        if (resetCounter != null) {
+                            resetCounter.incrementAndGet();
+                        }
+                        return;
+                    }
                 }
             }
         });
     }
 
-    private int[] arrayIndices(boolean includeHead) {
+    private int[] arrayIndices(long epoch, boolean includeHead) {
         int[] arrayIndices = new int[bucketCount - (includeHead? 0: 1)];
-        for (int i = 0, index = headArrayIndex + (includeHead? 0: 1); i < arrayIndices.length; i++, index++) {
+        for (int i = 0, index = headArrayIndex(epoch) + (includeHead? 0: 1); i < arrayIndices.length; i++, index++) {
             if (index >= bucketCount) {
                 index = 0;
             }
@@ -218,39 +451,40 @@ public class CyclicBucketBuffer implements IReducibleCyclicBucketBuffer {
 
     @Override
     public long[] getAllElements() {
-        return buckets.getElements(arrayIndices(true));
+        return buckets.getElements(arrayIndices(epochOf(state.get()), true));
     }
 
-    @Override
-    public long[] getAllElements(long latestEventID) {
-        while (!pending.isEmpty()) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+    /**
+     * Read the buckets (with or without the head) of one epoch that includes the specified event ID. Deferred actions
+     * are drained first on a best-effort basis, without waiting for other threads.
+     */
+    private long[] readElements(long latestEventID, boolean includeHead) {
+        if (!pending.isEmpty()) {
+            pending.drain();
+        }
+        long epoch = syncEpoch(latestEventID);
+        for (int retry = 0;; retry++) {
+            final long[] elements = buckets.getElements(arrayIndices(epoch, includeHead));
+            if (state.get() == (epoch << EPOCH_SHIFT) || retry >= MAX_READ_RETRIES) {
+                return elements;
             }
+            epoch = syncEpoch(latestEventID);  // rotated or reset while reading, read again
         }
-        syncHeadAndGetArrayIndex(latestEventID);
-        return buckets.getElements(arrayIndices(true));
+    }
+
+    @Override
+    public long[] getAllElements(long latestEventID) {
+        return readElements(latestEventID, true);
     }
 
     @Override
     public long[] getTailElements() {
-        return buckets.getElements(arrayIndices(false));
+        return buckets.getElements(arrayIndices(epochOf(state.get()), false));
     }
 
     @Override
     public long[] getTailElements(long latestEventID) {
-        while (!pending.isEmpty()) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-        syncHeadAndGetArrayIndex(latestEventID);
-        int[] indices = arrayIndices(false);
-        return buckets.getElements(indices);
+        return readElements(latestEventID, false);
     }
 
 }
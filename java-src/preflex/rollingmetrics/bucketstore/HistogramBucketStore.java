@@ -0,0 +1,95 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import preflex.util.Args;
+import preflex.util.LogLinearHistogram;
+
+/**
+ * Bucket store that records every value into a fixed-size {@link LogLinearHistogram} per bucket. Unlike
+ * {@link StoringBucketStore} no value is ever overwritten, and the memory footprint does not depend on the number of
+ * recorded values. Retrieved elements are a single histogram array merged across the requested buckets.
+ *
+ */
+public class HistogramBucketStore implements IBucketStore {
+
+    private final LogLinearHistogram histogram;
+    private final int bucketCount;
+
+    /** Length of histogram array per bucket. */
+    private final int stride;
+
+    private final AtomicLongArray bucketElements;
+
+    public HistogramBucketStore(int bucketCount, LogLinearHistogram histogram) {
+        this.histogram = Args.notNull(histogram, "histogram");
+        this.bucketCount = bucketCount;
+        this.stride = histogram.getLength();
+        this.bucketElements = new AtomicLongArray(bucketCount * stride);
+    }
+
+    public LogLinearHistogram getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    @Override
+    public void record(int bucketIndex, long value) {
+        final long v = Math.max(0, value);
+        final int baseOffset = bucketIndex * stride;
+        bucketElements.incrementAndGet(baseOffset + histogram.slotOf(v));
+        bucketElements.addAndGet(baseOffset + histogram.sumIndex(), v);
+        final int maxOffset = baseOffset + histogram.maxIndex();
+        long prev;
+        do {
+            prev = bucketElements.get(maxOffset);
+        } while (v > prev && !bucketElements.compareAndSet(maxOffset, prev, v));
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        final int baseOffset = bucketIndex * stride;
+        for (int i = 0; i < stride; i++) {
+            bucketElements.set(baseOffset + i, 0);
+        }
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final long[] result = new long[stride];
+        final long[] each = new long[stride];
+        for (int i = 0; i < indices.length; i++) {
+            final int baseOffset = indices[i] * stride;
+            for (int j = 0; j < stride; j++) {
+                each[j] = bucketElements.get(baseOffset + j);
+            }
+            histogram.merge(result, each);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] reduce(List<long[]> colls) {
+        final long[] result = new long[stride];
+        for (final long[] other: colls) {
+            histogram.merge(result, other);
+        }
+        return result;
+    }
+
+}
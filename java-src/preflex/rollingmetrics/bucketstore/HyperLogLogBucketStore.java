@@ -0,0 +1,197 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bucket store that keeps a HyperLogLog sketch per bucket to estimate the number of distinct values recorded, without
+ * storing the values. Recorded values must be well distributed 64-bit hashes (see {@link #hash(long)}); the top
+ * precision bits of a hash select a register, and the register keeps the max rank (position of the first 1-bit) of the
+ * remaining bits. Every register is a byte, and eight registers are packed into a long word updated by a lock-free CAS
+ * max, so a bucket takes 2^precision bytes (16 bytes to 16 KB for precision 4 to 14).
+ * <pre>
+ * long word (8 registers)
+ * +------------+------------+-- ... --+------------+
+ * | register 7 | register 6 |         | register 0 |
+ * +------------+------------+-- ... --+------------+
+ * </pre>
+ * Retrieved elements are the register words merged (register-wise max) across the requested buckets, which is the
+ * sketch of the union of the buckets. The standard error of the estimate is about 1.04/sqrt(2^precision).
+ *
+ */
+public class HyperLogLogBucketStore implements IBucketStore {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 14;
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static final int REGISTERS_PER_WORD_SHIFT = 3;
+    private static final int REGISTERS_PER_WORD = 1 << REGISTERS_PER_WORD_SHIFT;
+    private static final int REGISTER_BITS = 8;
+    private static final long REGISTER_MASK = 0xFFL;
+
+    private final int precision;
+
+    /** Number of register words per bucket. */
+    private final int stride;
+
+    private final AtomicLongArray bucketElements;
+
+    public HyperLogLogBucketStore(int bucketCount, int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Expected precision to be between " + MIN_PRECISION + " and " +
+                    MAX_PRECISION + " (both inclusive), but found " + precision);
+        }
+        this.precision = precision;
+        this.stride = (1 << precision) >> REGISTERS_PER_WORD_SHIFT;
+        this.bucketElements = new AtomicLongArray(bucketCount * stride);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    @Override
+    public int getBucketCount() {
+        return bucketElements.length() / stride;
+    }
+
+    /**
+     * Spread the bits of a value (e.g. a long integer key, or a 32-bit hash code) across all 64 bits, using the
+     * MurmurHash3 64-bit finalizer.
+     * @param value value to hash
+     * @return      64-bit hash
+     */
+    public static long hash(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Record a pre-hashed value.
+     * @param bucketIndex bucket index
+     * @param hash        64-bit hash of the value
+     */
+    @Override
+    public void record(int bucketIndex, long hash) {
+        final int register = (int) (hash >>> (Long.SIZE - precision));
+        // mark the bit right after the remaining bits, so that the rank is bounded even when they are all zero
+        final long rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        final int offset = bucketIndex * stride + (register >> REGISTERS_PER_WORD_SHIFT);
+        final int shift = (register & (REGISTERS_PER_WORD - 1)) * REGISTER_BITS;
+        long prev;
+        do {
+            prev = bucketElements.get(offset);
+            if (((prev >>> shift) & REGISTER_MASK) >= rank) {
+                return;
+            }
+        } while (!bucketElements.compareAndSet(offset, prev, (prev & ~(REGISTER_MASK << shift)) | (rank << shift)));
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        final int base = bucketIndex * stride;
+        for (int i = 0; i < stride; i++) {
+            bucketElements.set(base + i, 0);
+        }
+    }
+
+    /**
+     * Merge (register-wise max) the source register words into the destination register words.
+     * @param dest destination register words
+     * @param src  source register words
+     */
+    public static void merge(final long[] dest, final long[] src) {
+        if (dest.length != src.length) {
+            throw new IllegalArgumentException("Expected register words of size " + dest.length + " but found " +
+                    src.length);
+        }
+        for (int i = 0; i < dest.length; i++) {
+            final long d = dest[i];
+            final long s = src[i];
+            long merged = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += REGISTER_BITS) {
+                merged |= Math.max((d >>> shift) & REGISTER_MASK, (s >>> shift) & REGISTER_MASK) << shift;
+            }
+            dest[i] = merged;
+        }
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final long[] result = new long[stride];
+        final long[] each = new long[stride];
+        for (int i = 0; i < indices.length; i++) {
+            final int base = indices[i] * stride;
+            for (int j = 0; j < stride; j++) {
+                each[j] = bucketElements.get(base + j);
+            }
+            merge(result, each);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] reduce(List<long[]> colls) {
+        final long[] result = new long[stride];
+        for (final long[] other: colls) {
+            merge(result, other);
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the number of distinct values from register words, using linear counting for small cardinalities.
+     * @param registerWords register words of any supported precision
+     * @return              estimated number of distinct values
+     */
+    public static long estimate(final long[] registerWords) {
+        final int registerCount = registerWords.length << REGISTERS_PER_WORD_SHIFT;
+        if (Integer.bitCount(registerCount) != 1 || registerCount < (1 << MIN_PRECISION)) {
+            throw new IllegalArgumentException("Expected register words for 2^" + MIN_PRECISION +
+                    " or more (power of two) registers, but found " + registerWords.length + " words");
+        }
+        double sum = 0;
+        int zeroCount = 0;
+        for (final long word: registerWords) {
+            for (int shift = 0; shift < Long.SIZE; shift += REGISTER_BITS) {
+                final int rank = (int) ((word >>> shift) & REGISTER_MASK);
+                sum += 1.0 / (1L << rank);
+                if (rank == 0) {
+                    zeroCount++;
+                }
+            }
+        }
+        final double m = registerCount;
+        final double estimate = alpha(registerCount) * m * m / sum;
+        if (estimate <= 2.5 * m && zeroCount > 0) {
+            return Math.round(m * Math.log(m / zeroCount));  // linear counting
+        }
+        return Math.round(estimate);
+    }
+
+    private static double alpha(int registerCount) {
+        switch (registerCount) {
+        case 16: return 0.673;
+        case 32: return 0.697;
+        case 64: return 0.709;
+        default: return 0.7213 / (1 + 1.079 / registerCount);
+        }
+    }
+
+}
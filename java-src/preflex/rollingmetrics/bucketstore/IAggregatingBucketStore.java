@@ -0,0 +1,22 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+/**
+ * Bucket store where recording two values into a bucket has the same effect as recording their aggregate once, e.g. a
+ * sum or a max. Such values can be pre-aggregated per bucket before recording, as in a batch.
+ *
+ */
+public interface IAggregatingBucketStore extends IBucketStore {
+
+    public long aggregate(long x, long y);
+
+}
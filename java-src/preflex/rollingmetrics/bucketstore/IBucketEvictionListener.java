@@ -0,0 +1,30 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+/**
+ * Receives the data of buckets that fall off the tail of a {@link CyclicBucketBuffer} as the head moves, just before
+ * the buckets are recycled. Not invoked for buckets discarded by a reset. The listener is invoked by the thread that
+ * moves the head, while other threads wait for the move to finish; it should be quick and should not throw. If it
+ * throws, the remaining buckets are still evicted and the buffer keeps working, and the exception is rethrown to the
+ * thread that moved the head, after its own values are recorded.
+ *
+ */
+public interface IBucketEvictionListener {
+
+    /**
+     * Handle an evicted bucket.
+     * @param latestEventID highest event ID that the bucket covered
+     * @param elements      bucket data as returned by {@link IBucketStore#getElements(int[])}
+     */
+    public void evicted(long latestEventID, long[] elements);
+
+}
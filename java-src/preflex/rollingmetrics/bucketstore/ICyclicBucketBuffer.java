@@ -14,6 +14,15 @@ public interface ICyclicBucketBuffer {
 
     public void record(long eventID, long value);
 
+    /**
+     * Record a batch of events, each with its own event ID and value, in the specified range of the arrays.
+     * @param eventIDs event IDs
+     * @param values   values, one per event ID
+     * @param from     start index (inclusive)
+     * @param to       end index (exclusive)
+     */
+    public void record(long[] eventIDs, long[] values, int from, int to);
+
     public void reset(long newLatestEventID);
 
     public long[] getAllElements();
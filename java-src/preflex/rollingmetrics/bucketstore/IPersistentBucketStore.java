@@ -0,0 +1,37 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+/**
+ * Bucket store that outlives the process, e.g. in a memory-mapped file. Besides the buckets it keeps the position of
+ * the head (see {@link CyclicBucketBuffer}), so that a buffer attached to the store after a restart resumes from where
+ * the previous buffer left off.
+ *
+ */
+public interface IPersistentBucketStore extends IBucketStore {
+
+    public int getBucketInterval();
+
+    /**
+     * Return the latest event ID at epoch 0.
+     * @return origin event ID
+     */
+    public long getOriginEventID();
+
+    /**
+     * Return the last published epoch, i.e. the number of buckets rotated since the origin event ID.
+     * @return epoch
+     */
+    public long getEpoch();
+
+    public void setEpoch(long epoch);
+
+}
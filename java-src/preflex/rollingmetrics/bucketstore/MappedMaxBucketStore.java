@@ -0,0 +1,42 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import java.util.List;
+
+import preflex.util.OffHeapSlab;
+
+/**
+ * Memory-mapped variant of {@link MaxBucketStore}, see {@link AbstractMappedBucketStore}.
+ *
+ */
+public class MappedMaxBucketStore extends AbstractMappedBucketStore implements IAggregatingBucketStore {
+
+    public MappedMaxBucketStore(int bucketCount, int bucketInterval, OffHeapSlab slab, long latestEventID) {
+        super(bucketCount, bucketInterval, slab, KIND_MAX, latestEventID);
+    }
+
+    @Override
+    public void record(int bucketIndex, long value) {
+        slab.max(offset(bucketIndex), value);
+    }
+
+    @Override
+    public long aggregate(long x, long y) {
+        return Math.max(x, y);
+    }
+
+    @Override
+    public long[] reduce(List<long[]> colls) {
+        return MaxBucketStore.max(colls);
+    }
+
+}
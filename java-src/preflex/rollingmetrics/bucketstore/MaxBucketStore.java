@@ -12,22 +12,41 @@ package preflex.rollingmetrics.bucketstore;
 
 import java.util.List;
 
-public class MaxBucketStore extends AbstractValueBucketStore {
+public class MaxBucketStore extends AbstractValueBucketStore implements IAggregatingBucketStore {
 
     public MaxBucketStore(int bucketCount) {
         super(bucketCount);
     }
 
+    protected MaxBucketStore(int bucketCount, int stride) {
+        super(bucketCount, stride);
+    }
+
     @Override
     public void record(int bucketIndex, long value) {
+        final int offset = offset(bucketIndex);
         long prev;
         do {
-            prev = bucketElements.get(bucketIndex);
-        } while (value > prev && !bucketElements.compareAndSet(bucketIndex, prev, value));
+            prev = bucketElements.get(offset);
+        } while (value > prev && !bucketElements.compareAndSet(offset, prev, value));
+    }
+
+    @Override
+    public long aggregate(long x, long y) {
+        return Math.max(x, y);
     }
 
     @Override
     public long[] reduce(List<long[]> colls) {
+        return max(colls);
+    }
+
+    /**
+     * Element-wise max of the specified arrays of equal size.
+     * @param colls arrays to reduce
+     * @return      reduced array
+     */
+    public static long[] max(List<long[]> colls) {
         if (colls.isEmpty()) {
             return new long[0];
         }
@@ -0,0 +1,25 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+/**
+ * Cache-line padded variant of {@link SummingBucketStore}, where every bucket occupies {@link #PADDED_STRIDE}
+ * elements so that threads updating the buckets of different shards do not contend on the same cache lines (false
+ * sharing).
+ *
+ */
+public class PaddedSummingBucketStore extends SummingBucketStore {
+
+    public PaddedSummingBucketStore(int bucketCount) {
+        super(bucketCount, PADDED_STRIDE);
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bucket store that keeps a uniform random sample of the recorded values per bucket using reservoir sampling
+ * (Algorithm R). Unlike {@link StoringBucketStore}, which keeps only the last N values of a bucket, every value
+ * recorded in a bucket has an equal chance of being retained, so bursts at the start of a bucket interval are not
+ * under-sampled.
+ * <p>
+ * Recording is lock-free: the first N values of a bucket are stored in the order they arrive, and every later value
+ * (the n-th, counting from 1) replaces a random slot with probability N/n, and is skipped otherwise. Retrieved elements
+ * are the concatenated samples of the requested buckets, each bucket contributing up to N values irrespective of the
+ * number of values recorded in it.
+ *
+ */
+public class ReservoirBucketStore implements IBucketStore {
+
+    /** Max number of elements per bucket. */
+    private final int bucketCapacity;
+    private final AtomicLongArray bucketElements;
+
+    /** Number of values recorded (seen) per bucket, including the skipped ones. */
+    private final AtomicLongArray bucketSeenCounts;
+
+    public ReservoirBucketStore(int bucketCount, int bucketCapacity) {
+        if (bucketCapacity <= 0) {
+            throw new IllegalArgumentException("Expected bucketCapacity to be a positive integer, but found " +
+                    bucketCapacity);
+        }
+        this.bucketCapacity = bucketCapacity;
+        this.bucketElements = new AtomicLongArray(bucketCount * bucketCapacity);
+        this.bucketSeenCounts = new AtomicLongArray(bucketCount);
+    }
+
+    @Override
+    public int getBucketCount() {
+        return bucketSeenCounts.length();
+    }
+
+    @Override
+    public void record(int bucketIndex, long value) {
+        final long seen = bucketSeenCounts.getAndIncrement(bucketIndex);
+        final long slot = (seen < bucketCapacity)? seen: ThreadLocalRandom.current().nextLong(seen + 1);
+        if (slot < bucketCapacity) {
+            bucketElements.set(bucketIndex * bucketCapacity + (int) slot, value);
+        }
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        bucketSeenCounts.set(bucketIndex, 0);
+    }
+
+    /**
+     * Return the number of values recorded (including the ones not retained in the sample) in the specified bucket.
+     * @param bucketIndex bucket index
+     * @return            number of recorded values
+     */
+    public long getSeenCount(int bucketIndex) {
+        return bucketSeenCounts.get(bucketIndex);
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final long[] coll = new long[bucketElements.length()];
+        int dest = 0;
+        for (int i = 0; i < indices.length; i++) {
+            final int bucketIndex = indices[i];
+            final int baseOffset = bucketIndex * bucketCapacity;
+            final int nElements = (int) Math.min(bucketSeenCounts.get(bucketIndex), bucketCapacity);
+            for (int j = 0; j < nElements; j++) {
+                coll[dest++] = bucketElements.get(baseOffset + j);
+            }
+        }
+        return Arrays.copyOfRange(coll, 0, dest);
+    }
+
+    @Override
+    public long[] reduce(List<long[]> colls) {
+        int destSize = 0;
+        for (final long[] each: colls) {
+            destSize += each.length;
+        }
+        final long[] dest = new long[destSize];
+        int destPos = 0;
+        for (final long[] each: colls) {
+            System.arraycopy(each, 0, dest, destPos, each.length);
+            destPos += each.length;
+        }
+        return dest;
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import java.util.List;
+
+import preflex.util.KllSketch;
+
+/**
+ * Bucket store that records every value into a {@link KllSketch} quantile sketch per bucket. Unlike
+ * {@link StoringBucketStore} no value is skipped, and unlike {@link HistogramBucketStore} the error is bounded in rank
+ * rather than in value, with no need to know the value range upfront. Memory stays bounded (about 3k values per bucket)
+ * regardless of the number of recorded values. Retrieved elements are a single sketch array merged across the
+ * requested buckets, and shards are reduced by merging their sketch arrays.
+ * <p>
+ * Every bucket sketch is guarded by its own monitor, so concurrent recording into the same bucket is serialized; shard
+ * the buffer to spread write contention across threads.
+ *
+ */
+public class SketchBucketStore implements IBucketStore {
+
+    private final int k;
+    private final KllSketch[] sketches;
+
+    public SketchBucketStore(int bucketCount, int k) {
+        this.k = k;
+        this.sketches = new KllSketch[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            sketches[i] = new KllSketch(k);
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public int getBucketCount() {
+        return sketches.length;
+    }
+
+    @Override
+    public void record(int bucketIndex, long value) {
+        final KllSketch sketch = sketches[bucketIndex];
+        synchronized (sketch) {
+            sketch.update(value);
+        }
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        final KllSketch sketch = sketches[bucketIndex];
+        synchronized (sketch) {
+            sketch.reset();
+        }
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final KllSketch result = new KllSketch(k);
+        for (int i = 0; i < indices.length; i++) {
+            final KllSketch sketch = sketches[indices[i]];
+            final long[] each;
+            synchronized (sketch) {
+                each = sketch.toArray();
+            }
+            result.merge(each);
+        }
+        return result.toArray();
+    }
+
+    @Override
+    public long[] reduce(List<long[]> colls) {
+        return KllSketch.merge(k, colls);
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bucket store that keeps the summary statistics (count, sum, sum of squares, min and max) of the recorded values per
+ * bucket, each bucket padded to its own cache line. No sample is stored, so retrieving mean, variance, min and max
+ * costs O(buckets) without sorting. Retrieved elements are a single stats array merged across the requested buckets:
+ * <pre>
+ * +-------+-----+-------------------------+-----+-----+
+ * | COUNT | SUM | SUM OF SQUARES (double) | MIN | MAX |
+ * +-------+-----+-------------------------+-----+-----+
+ * </pre>
+ * Count, sum, min and max merge exactly. The sum of squares is a double (stored as raw long bits) to avoid overflow,
+ * so the variance is subject to floating point precision.
+ *
+ */
+public class StatsBucketStore implements IBucketStore {
+
+    public static final int COUNT = 0;
+    public static final int SUM = 1;
+    public static final int SUM_OF_SQUARES = 2;
+    public static final int MIN = 3;
+    public static final int MAX = 4;
+
+    /** Length of a stats array. */
+    public static final int LENGTH = 5;
+
+    /** Number of longs (a cache line) per bucket. */
+    private static final int STRIDE = 8;
+
+    private static final long EMPTY_SUM_OF_SQUARES = Double.doubleToRawLongBits(0.0);
+
+    private final int bucketCount;
+
+    private final AtomicLongArray bucketElements;
+
+    public StatsBucketStore(int bucketCount) {
+        this.bucketCount = bucketCount;
+        this.bucketElements = new AtomicLongArray(bucketCount * STRIDE);
+        for (int i = 0; i < bucketCount; i++) {
+            reset(i);
+        }
+    }
+
+    @Override
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    @Override
+    public void record(int bucketIndex, long value) {
+        final int base = bucketIndex * STRIDE;
+        bucketElements.incrementAndGet(base + COUNT);
+        bucketElements.addAndGet(base + SUM, value);
+        final double square = ((double) value) * value;
+        long prev;
+        do {
+            prev = bucketElements.get(base + SUM_OF_SQUARES);
+        } while (!bucketElements.compareAndSet(base + SUM_OF_SQUARES, prev,
+                Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + square)));
+        do {
+            prev = bucketElements.get(base + MIN);
+        } while (value < prev && !bucketElements.compareAndSet(base + MIN, prev, value));
+        do {
+            prev = bucketElements.get(base + MAX);
+        } while (value > prev && !bucketElements.compareAndSet(base + MAX, prev, value));
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        final int base = bucketIndex * STRIDE;
+        bucketElements.set(base + COUNT, 0);
+        bucketElements.set(base + SUM, 0);
+        bucketElements.set(base + SUM_OF_SQUARES, EMPTY_SUM_OF_SQUARES);
+        bucketElements.set(base + MIN, Long.MAX_VALUE);
+        bucketElements.set(base + MAX, Long.MIN_VALUE);
+    }
+
+    private static long[] emptyStats() {
+        return new long[] { 0, 0, EMPTY_SUM_OF_SQUARES, Long.MAX_VALUE, Long.MIN_VALUE };
+    }
+
+    /**
+     * Merge (add) the source stats array into the destination stats array.
+     * @param dest destination stats array
+     * @param src  source stats array
+     */
+    public static void merge(final long[] dest, final long[] src) {
+        if (src.length != LENGTH) {
+            throw new IllegalArgumentException("Expected stats array to be of size " + LENGTH + " but found " +
+                    src.length);
+        }
+        dest[COUNT] += src[COUNT];
+        dest[SUM] += src[SUM];
+        dest[SUM_OF_SQUARES] = Double.doubleToRawLongBits(Double.longBitsToDouble(dest[SUM_OF_SQUARES]) +
+                Double.longBitsToDouble(src[SUM_OF_SQUARES]));
+        dest[MIN] = Math.min(dest[MIN], src[MIN]);
+        dest[MAX] = Math.max(dest[MAX], src[MAX]);
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final long[] result = emptyStats();
+        final long[] each = new long[LENGTH];
+        for (int i = 0; i < indices.length; i++) {
+            final int base = indices[i] * STRIDE;
+            for (int j = 0; j < LENGTH; j++) {
+                each[j] = bucketElements.get(base + j);
+            }
+            merge(result, each);
+        }
+        return result;
+    }
+
+    @Override
+    public long[] reduce(List<long[]> colls) {
+        final long[] result = emptyStats();
+        for (final long[] other: colls) {
+            merge(result, other);
+        }
+        return result;
+    }
+
+    // ----- stats array functions -----
+
+    public static long count(final long[] stats) {
+        return stats[COUNT];
+    }
+
+    public static long sum(final long[] stats) {
+        return stats[SUM];
+    }
+
+    /**
+     * Return the minimum recorded value, 0 if empty.
+     * @param stats stats array
+     * @return      minimum value
+     */
+    public static long min(final long[] stats) {
+        return (stats[COUNT] == 0 || stats[MIN] == Long.MAX_VALUE)? 0: stats[MIN];  // guard racing first record
+    }
+
+    /**
+     * Return the maximum recorded value, 0 if empty.
+     * @param stats stats array
+     * @return      maximum value
+     */
+    public static long max(final long[] stats) {
+        return (stats[COUNT] == 0 || stats[MAX] == Long.MIN_VALUE)? 0: stats[MAX];  // guard racing first record
+    }
+
+    /**
+     * Return the average of recorded values, 0 if empty.
+     * @param stats stats array
+     * @return      mean value
+     */
+    public static double mean(final long[] stats) {
+        return stats[COUNT] == 0? 0: ((double) stats[SUM]) / stats[COUNT];
+    }
+
+    /**
+     * Return the population variance of recorded values, 0 if empty.
+     * @param stats stats array
+     * @return      variance
+     */
+    public static double variance(final long[] stats) {
+        final long count = stats[COUNT];
+        if (count == 0) {
+            return 0;
+        }
+        final double mean = mean(stats);
+        final double variance = Double.longBitsToDouble(stats[SUM_OF_SQUARES]) / count - mean * mean;
+        return Math.max(0, variance);  // guard against tiny negative results of rounding errors
+    }
+
+    /**
+     * Return the population standard deviation of recorded values, 0 if empty.
+     * @param stats stats array
+     * @return      standard deviation
+     */
+    public static double stddev(final long[] stats) {
+        return Math.sqrt(variance(stats));
+    }
+
+}
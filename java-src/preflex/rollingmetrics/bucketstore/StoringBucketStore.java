@@ -14,18 +14,49 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Bucket store that keeps the last N recorded values per bucket. Retrieved elements are the values of the requested
+ * buckets, every bucket contributing a run of values sorted in ascending order, which lets readers sort the elements
+ * by merging the runs (see {@link preflex.util.Stats#sortRuns(long[])}). Every bucket is sorted once per change: the
+ * sorted values are cached (doubling the memory footprint) until the bucket is recorded into or reset, so a closed
+ * bucket is sorted only once no matter how many times it is read.
+ *
+ */
 public class StoringBucketStore implements IBucketStore {
 
+    /** Sorted values of a bucket, along with the bucket version they were sorted at. */
+    private static final class SortedValues {
+        private final long version;
+        private final long[] values;
+
+        SortedValues(long version, long[] values) {
+            this.version = version;
+            this.values = values;
+        }
+    }
+
     /** Max number of elements per bucket. */
     private final int bucketCapacity;
     private final AtomicLongArray bucketElements;
     private final AtomicIntegerArray bucketLengths;
 
+    /** Number of values completely stored per bucket, lagging behind the bucket length while values are stored. */
+    private final AtomicIntegerArray bucketCommits;
+
+    /** Number of resets per bucket. */
+    private final AtomicIntegerArray bucketGenerations;
+
+    private final AtomicReferenceArray<SortedValues> sortedValues;
+
     public StoringBucketStore(int bucketCount, int bucketCapacity) {
         this.bucketCapacity = bucketCapacity;
         this.bucketElements = new AtomicLongArray(bucketCount * bucketCapacity);
         this.bucketLengths = new AtomicIntegerArray(bucketCount);
+        this.bucketCommits = new AtomicIntegerArray(bucketCount);
+        this.bucketGenerations = new AtomicIntegerArray(bucketCount);
+        this.sortedValues = new AtomicReferenceArray<>(bucketCount);
     }
 
     @Override
@@ -37,26 +68,55 @@ public class StoringBucketStore implements IBucketStore {
     public void record(int bucketIndex, long value) {
         int offset = bucketIndex * bucketCapacity + (bucketLengths.getAndIncrement(bucketIndex) % bucketCapacity);
         bucketElements.set(offset, value);
+        bucketCommits.incrementAndGet(bucketIndex);
     }
 
     @Override
     public void reset(int bucketIndex) {
+        // bump the generation last, so that values sorted before the reset are never cached under the new generation
         bucketLengths.set(bucketIndex, 0);
+        bucketCommits.set(bucketIndex, 0);
+        bucketGenerations.incrementAndGet(bucketIndex);
+    }
+
+    /** Return the sorted values of the bucket, from the cache if the bucket has not changed since last sorted. */
+    private long[] getSortedValues(int bucketIndex) {
+        final int generation = bucketGenerations.get(bucketIndex);
+        final int length = bucketLengths.get(bucketIndex);
+        final long version = (((long) generation) << Integer.SIZE) | (length & 0xFFFFFFFFL);
+        final SortedValues cached = sortedValues.get(bucketIndex);
+        if (cached != null && cached.version == version) {
+            return cached.values;
+        }
+        // cache only if no value was being stored, and the bucket did not change while copying
+        final boolean committed = bucketCommits.get(bucketIndex) == length;
+        final int baseOffset = bucketIndex * bucketCapacity;
+        final long[] values = new long[Math.min(length, bucketCapacity)];
+        for (int j = 0; j < values.length; j++) {
+            values[j] = bucketElements.get(baseOffset + j);
+        }
+        Arrays.sort(values);
+        if (committed && bucketLengths.get(bucketIndex) == length && bucketGenerations.get(bucketIndex) == generation) {
+            sortedValues.set(bucketIndex, new SortedValues(version, values));
+        }
+        return values;
     }
 
     @Override
     public long[] getElements(int[] indices) {
-        final long[] coll = new long[bucketElements.length()];
-        int dest = 0;
+        final long[][] runs = new long[indices.length][];
+        int size = 0;
         for (int i = 0; i < indices.length; i++) {
-            final int bucketIndex = indices[i];
-            final int baseOffset = bucketIndex * bucketCapacity;
-            final int nElements = Math.min(bucketLengths.get(bucketIndex), bucketCapacity);
-            for (int j = 0; j < nElements; j++) {
-                coll[dest++] = bucketElements.get(baseOffset + j);
-            }
+            runs[i] = getSortedValues(indices[i]);
+            size += runs[i].length;
+        }
+        final long[] result = new long[size];
+        int dest = 0;
+        for (final long[] run: runs) {
+            System.arraycopy(run, 0, result, dest, run.length);
+            dest += run.length;
         }
-        return Arrays.copyOfRange(coll, 0, dest);
+        return result;
     }
 
     @Override
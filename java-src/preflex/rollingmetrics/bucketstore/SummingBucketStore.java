@@ -12,19 +12,37 @@ package preflex.rollingmetrics.bucketstore;
 
 import java.util.List;
 
-public class SummingBucketStore extends AbstractValueBucketStore {
+public class SummingBucketStore extends AbstractValueBucketStore implements IAggregatingBucketStore {
 
     public SummingBucketStore(int bucketCount) {
         super(bucketCount);
     }
 
+    protected SummingBucketStore(int bucketCount, int stride) {
+        super(bucketCount, stride);
+    }
+
     @Override
     public void record(int bucketIndex, long value) {
-        bucketElements.addAndGet(bucketIndex, value);
+        bucketElements.addAndGet(offset(bucketIndex), value);
+    }
+
+    @Override
+    public long aggregate(long x, long y) {
+        return x + y;
     }
 
     @Override
     public long[] reduce(List<long[]> colls) {
+        return sum(colls);
+    }
+
+    /**
+     * Element-wise sum of the specified arrays of equal size.
+     * @param colls arrays to reduce
+     * @return      reduced array
+     */
+    public static long[] sum(List<long[]> colls) {
         if (colls.isEmpty()) {
             return new long[0];
         }
@@ -0,0 +1,280 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics.bucketstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bucket store that tracks the heavy hitters (top K most frequent keys) per bucket. Recorded values are 64-bit key
+ * hashes. Every bucket holds a count-min sketch (depth rows of width counters) estimating the frequency of any key,
+ * plus a small set of up to K candidate keys with the highest estimates seen so far.
+ * <p>
+ * Recording updates the sketch with atomic increments. Only a key whose estimate beats the lowest candidate (read
+ * without locking) takes the bucket monitor to update the candidates, so the common case of a light key is lock-free.
+ * Retrieved elements merge the requested buckets (and shards, on reduce) by adding up the sketches and re-estimating
+ * the union of the candidates against the merged sketch:
+ * <pre>
+ * +-------+------------+--------+------------+-- ... --+-------------------------+
+ * | TOTAL | TOP_COUNT  | hash 0 | estimate 0 |         | sketch (depth x width)  |
+ * +-------+------------+--------+------------+-- ... --+-------------------------+
+ * </pre>
+ * Estimates never undercount; they may overcount by about TOTAL * e / width with probability 1 - e^-depth.
+ *
+ */
+public class TopKBucketStore implements IBucketStore {
+
+    public static final int TOTAL = 0;
+    public static final int TOP_COUNT = 1;
+
+    /** Offset of the top (hash, estimate) pairs, sorted by estimate in descending order. */
+    public static final int TOP_OFFSET = 2;
+
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_WIDTH = 512;
+
+    private final int bucketCount;
+    private final int k;
+    private final int depth;
+    private final int width;
+    private final int widthMask;
+
+    /** Sketch counters of all buckets, bucket after bucket. */
+    private final AtomicLongArray sketches;
+
+    /** Per bucket threshold estimate to become a candidate - the lowest candidate estimate when full, 0 otherwise. */
+    private final AtomicLongArray thresholds;
+
+    /** Per bucket candidate hashes and estimates, guarded by the candidate arrays of the bucket. */
+    private final long[][] candidateHashes;
+    private final long[][] candidateEstimates;
+    private final int[] candidateCounts;
+
+    public TopKBucketStore(int bucketCount, int k, int depth, int width) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("Expected k to be a positive integer, but found " + k);
+        }
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Expected depth to be a positive integer, but found " + depth);
+        }
+        if (width <= 0 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("Expected width to be a positive power of two, but found " + width);
+        }
+        this.bucketCount = bucketCount;
+        this.k = k;
+        this.depth = depth;
+        this.width = width;
+        this.widthMask = width - 1;
+        this.sketches = new AtomicLongArray(bucketCount * depth * width);
+        this.thresholds = new AtomicLongArray(bucketCount);
+        this.candidateHashes = new long[bucketCount][k];
+        this.candidateEstimates = new long[bucketCount][k];
+        this.candidateCounts = new int[bucketCount];
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /** Return the sketch column of a key hash in the specified row, using double hashing of the two hash halves. */
+    private int column(long hash, int row) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> Integer.SIZE) | 1;  // odd, so that rows differ
+        return (h1 + row * h2) & widthMask;
+    }
+
+    @Override
+    public void record(int bucketIndex, long hash) {
+        final int base = bucketIndex * depth * width;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, sketches.incrementAndGet(base + row * width + column(hash, row)));
+        }
+        if (estimate > thresholds.get(bucketIndex)) {
+            offerCandidate(bucketIndex, hash, estimate);
+        }
+    }
+
+    private void offerCandidate(int bucketIndex, long hash, long estimate) {
+        final long[] hashes = candidateHashes[bucketIndex];
+        final long[] estimates = candidateEstimates[bucketIndex];
+        synchronized (hashes) {
+            final int count = candidateCounts[bucketIndex];
+            int lowest = 0;
+            for (int i = 0; i < count; i++) {
+                if (hashes[i] == hash) {  // already a candidate
+                    estimates[i] = Math.max(estimates[i], estimate);
+                    return;
+                }
+                if (estimates[i] < estimates[lowest]) {
+                    lowest = i;
+                }
+            }
+            if (count < k) {
+                hashes[count] = hash;
+                estimates[count] = estimate;
+                candidateCounts[bucketIndex] = count + 1;
+            } else if (estimate > estimates[lowest]) {
+                hashes[lowest] = hash;
+                estimates[lowest] = estimate;
+            }
+            if (candidateCounts[bucketIndex] == k) {
+                long min = Long.MAX_VALUE;
+                for (int i = 0; i < k; i++) {
+                    min = Math.min(min, estimates[i]);
+                }
+                thresholds.set(bucketIndex, min);
+            }
+        }
+    }
+
+    @Override
+    public void reset(int bucketIndex) {
+        final int base = bucketIndex * depth * width;
+        for (int i = 0, n = depth * width; i < n; i++) {
+            sketches.set(base + i, 0);
+        }
+        synchronized (candidateHashes[bucketIndex]) {
+            candidateCounts[bucketIndex] = 0;
+            thresholds.set(bucketIndex, 0);
+        }
+    }
+
+    /** Return the elements of a single bucket, with candidate estimates as recorded (not re-estimated). */
+    private long[] getBucketElements(int bucketIndex) {
+        final long[] hashes = candidateHashes[bucketIndex];
+        final long[] estimates = candidateEstimates[bucketIndex];
+        final long[] result;
+        synchronized (hashes) {
+            final int count = candidateCounts[bucketIndex];
+            result = new long[TOP_OFFSET + 2 * count + depth * width];
+            result[TOP_COUNT] = count;
+            for (int i = 0; i < count; i++) {
+                result[TOP_OFFSET + 2 * i] = hashes[i];
+                result[TOP_OFFSET + 2 * i + 1] = estimates[i];
+            }
+        }
+        final int sketchOffset = TOP_OFFSET + 2 * (int) result[TOP_COUNT];
+        final int base = bucketIndex * depth * width;
+        for (int i = 0, n = depth * width; i < n; i++) {
+            result[sketchOffset + i] = sketches.get(base + i);
+        }
+        // every recorded key increments exactly one counter per row, so the first row adds up to the total
+        for (int i = 0; i < width; i++) {
+            result[TOTAL] += result[sketchOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public long[] getElements(int[] indices) {
+        final List<long[]> colls = new ArrayList<>(indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            colls.add(getBucketElements(indices[i]));
+        }
+        return reduce(colls);
+    }
+
+    @Override
+    public long[] reduce(List<long[]> colls) {
+        final long[] sketch = new long[depth * width];
+        final Set<Long> hashes = new HashSet<>();
+        long total = 0;
+        for (final long[] each: colls) {
+            final int count = topCount(each);
+            for (int i = 0; i < count; i++) {
+                hashes.add(topHash(each, i));
+            }
+            final int sketchOffset = TOP_OFFSET + 2 * count;
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] += each[sketchOffset + i];
+            }
+            total += each[TOTAL];
+        }
+        // re-estimate the union of candidates against the merged sketch, and keep the top K
+        final long[][] top = new long[hashes.size()][];
+        int n = 0;
+        for (final long hash: hashes) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, sketch[row * width + column(hash, row)]);
+            }
+            top[n++] = new long[] { hash, estimate };
+        }
+        Arrays.sort(top, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] x, long[] y) {
+                return Long.compare(y[1], x[1]);
+            }
+        });
+        final int count = Math.min(k, top.length);
+        final long[] result = new long[TOP_OFFSET + 2 * count + sketch.length];
+        result[TOTAL] = total;
+        result[TOP_COUNT] = count;
+        for (int i = 0; i < count; i++) {
+            result[TOP_OFFSET + 2 * i] = top[i][0];
+            result[TOP_OFFSET + 2 * i + 1] = top[i][1];
+        }
+        System.arraycopy(sketch, 0, result, TOP_OFFSET + 2 * count, sketch.length);
+        return result;
+    }
+
+    // ----- elements functions -----
+
+    /**
+     * Return the total number of keys recorded.
+     * @param elements retrieved elements
+     * @return         total count
+     */
+    public static long total(final long[] elements) {
+        return elements[TOTAL];
+    }
+
+    /**
+     * Return the number of top keys, up to K.
+     * @param elements retrieved elements
+     * @return         number of top keys
+     */
+    public static int topCount(final long[] elements) {
+        return (int) elements[TOP_COUNT];
+    }
+
+    /**
+     * Return the hash of the i-th top key, the 0-th being the most frequent.
+     * @param elements retrieved elements
+     * @param i        index of the top key
+     * @return         key hash
+     */
+    public static long topHash(final long[] elements, int i) {
+        return elements[TOP_OFFSET + 2 * i];
+    }
+
+    /**
+     * Return the estimated count of the i-th top key, the 0-th being the most frequent.
+     * @param elements retrieved elements
+     * @param i        index of the top key
+     * @return         estimated count
+     */
+    public static long topEstimate(final long[] elements, int i) {
+        return elements[TOP_OFFSET + 2 * i + 1];
+    }
+
+}
@@ -0,0 +1,272 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+/**
+ * Fixed-size log-linear (HDR style) histogram layout. Values below 2^precisionBits get a slot each; every power of two
+ * above that is split into 2^precisionBits linear sub-slots, so the relative error stays within 1/2^precisionBits.
+ * <pre>
+ * histogram array (length = slotCount + 2)
+ *
+ * +--------+--------+-- ... --+------------------+-----+-----+
+ * | slot 0 | slot 1 |         | slot (count - 1) | SUM | MAX |
+ * +--------+--------+-- ... --+------------------+-----+-----+
+ * </pre>
+ * Slots hold the count of values, followed by the exact sum and the exact maximum of all recorded values. Negative
+ * values are recorded as zero, values above maxValue are counted in the highest slot.
+ *
+ */
+public final class LogLinearHistogram {
+
+    /** Internal constant for 100%. */
+    private static final int HUNDRED_PERCENT = 100;
+
+    /** Max precision bits allowed, so that a histogram never needs more than a few million slots. */
+    public static final int MAX_PRECISION_BITS = 16;
+
+    /** Highest value tracked with precision. */
+    private final long maxValue;
+
+    /** Number of bits to determine the number of linear sub-slots per power of two. */
+    private final int precisionBits;
+
+    /** Number of linear sub-slots per power of two. */
+    private final long subSlotCount;
+
+    /** Number of value slots. */
+    private final int slotCount;
+
+    public LogLinearHistogram(long maxValue, int precisionBits) {
+        if (maxValue <= 0) {
+            throw new IllegalArgumentException("Expected a positive maxValue, but found " + maxValue);
+        }
+        if (precisionBits <= 0 || precisionBits > MAX_PRECISION_BITS) {
+            throw new IllegalArgumentException("Expected precisionBits to be between 1 and " + MAX_PRECISION_BITS +
+                    " (both inclusive), but found " + precisionBits);
+        }
+        this.maxValue = maxValue;
+        this.precisionBits = precisionBits;
+        this.subSlotCount = 1L << precisionBits;
+        this.slotCount = slotOf(maxValue) + 1;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    public int getPrecisionBits() {
+        return precisionBits;
+    }
+
+    /**
+     * Return the number of value slots in the histogram.
+     * @return number of value slots
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Return the length of a histogram array, i.e. value slots followed by sum and max.
+     * @return length of a histogram array
+     */
+    public int getLength() {
+        return slotCount + 2;
+    }
+
+    /**
+     * Return the index of the element that holds the sum of all recorded values.
+     * @return index of the sum element
+     */
+    public int sumIndex() {
+        return slotCount;
+    }
+
+    /**
+     * Return the index of the element that holds the maximum of all recorded values.
+     * @return index of the max element
+     */
+    public int maxIndex() {
+        return slotCount + 1;
+    }
+
+    /**
+     * Given a value, return the slot it is counted in.
+     * @param value value to find the slot for
+     * @return      slot index
+     */
+    public int slotOf(long value) {
+        final long v = Math.max(0, Math.min(value, maxValue));
+        if (v < subSlotCount) {
+            return (int) v;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(v);
+        final int shift = exponent - precisionBits;
+        return (int) (((shift + 1L) << precisionBits) + ((v >>> shift) - subSlotCount));
+    }
+
+    /**
+     * Return the lowest value that is counted in the specified slot.
+     * @param slot slot index
+     * @return     lowest value for the slot
+     */
+    public long lowestValueOf(int slot) {
+        if (slot < subSlotCount) {
+            return slot;
+        }
+        final int shift = (slot >>> precisionBits) - 1;
+        return (subSlotCount + (slot & (subSlotCount - 1))) << shift;
+    }
+
+    /**
+     * Return the highest value that is counted in the specified slot.
+     * @param slot slot index
+     * @return     highest value for the slot
+     */
+    public long highestValueOf(int slot) {
+        if (slot < subSlotCount) {
+            return slot;
+        }
+        final int shift = (slot >>> precisionBits) - 1;
+        return lowestValueOf(slot) + (1L << shift) - 1;
+    }
+
+    // ----- histogram array functions -----
+
+    private void assertHistogram(final long[] histogram) {
+        if (histogram == null) {
+            throw new IllegalArgumentException("Argument histogram is NULL");
+        }
+        if (histogram.length != getLength()) {
+            throw new IllegalArgumentException("Expected histogram array to be of size " + getLength() +
+                    " but found " + histogram.length);
+        }
+    }
+
+    /**
+     * Merge (add) the source histogram array into the destination histogram array.
+     * @param dest destination histogram array
+     * @param src  source histogram array
+     */
+    public void merge(final long[] dest, final long[] src) {
+        assertHistogram(dest);
+        assertHistogram(src);
+        final int maxIndex = maxIndex();
+        for (int i = 0; i < maxIndex; i++) {
+            dest[i] += src[i];
+        }
+        dest[maxIndex] = Math.max(dest[maxIndex], src[maxIndex]);
+    }
+
+    /**
+     * Return the number of values recorded in the histogram array.
+     * @param histogram histogram array
+     * @return          number of recorded values
+     */
+    public long count(final long[] histogram) {
+        assertHistogram(histogram);
+        long result = 0;
+        for (int i = 0; i < slotCount; i++) {
+            result += histogram[i];
+        }
+        return result;
+    }
+
+    /**
+     * Return the exact sum of values recorded in the histogram array.
+     * @param histogram histogram array
+     * @return          sum of recorded values
+     */
+    public long sum(final long[] histogram) {
+        assertHistogram(histogram);
+        return histogram[sumIndex()];
+    }
+
+    /**
+     * Return the exact maximum of values recorded in the histogram array.
+     * @param histogram histogram array
+     * @return          maximum recorded value
+     */
+    public long max(final long[] histogram) {
+        assertHistogram(histogram);
+        return histogram[maxIndex()];
+    }
+
+    /**
+     * Return the lowest value of the lowest non-empty slot in the histogram array, 0 if empty.
+     * @param histogram histogram array
+     * @return          minimum recorded value (within histogram precision)
+     */
+    public long min(final long[] histogram) {
+        assertHistogram(histogram);
+        for (int i = 0; i < slotCount; i++) {
+            if (histogram[i] > 0) {
+                return lowestValueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the average of values recorded in the histogram array, 0 if empty.
+     * @param histogram histogram array
+     * @return          average of recorded values
+     */
+    public double mean(final long[] histogram) {
+        final long count = count(histogram);
+        if (count == 0) {
+            return 0;
+        }
+        return ((double) sum(histogram)) / count;
+    }
+
+    /**
+     * Percentile calculation as per the
+     * <a href="http://en.wikipedia.org/wiki/Percentile#Definition_of_the_Nearest_Rank_method">Nearest Rank method</a>,
+     * consistent with {@link Stats#percentile(long[], double)}. The highest value of the matching slot is returned,
+     * capped at the exact maximum.
+     * @param histogram histogram array
+     * @param percent   percent to compute percentile for
+     * @return          percentile value
+     */
+    public long percentile(final long[] histogram, final double percent) {
+        final long count = count(histogram);
+        if (count == 0) {
+            return 0;
+        }
+        if (percent < 0 || percent > HUNDRED_PERCENT) {
+            throw new IllegalArgumentException("Invalid percentile: " + percent);
+        }
+        final long max = max(histogram);
+        if (percent == HUNDRED_PERCENT) {
+            return max;
+        }
+        final long rank = Math.round((percent * count) / HUNDRED_PERCENT);
+        if (rank < 1) {
+            return 0;
+        }
+        long seen = 0;
+        for (int i = 0; i < slotCount; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + ':' + "{maxValue=" + maxValue + ", precisionBits=" + precisionBits +
+                ", slotCount=" + slotCount + "}";
+    }
+
+}
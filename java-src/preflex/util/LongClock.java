@@ -0,0 +1,26 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+/**
+ * Source of monotonically increasing long integer event IDs, e.g. current time. Unlike {@link
+ * java.util.concurrent.Callable} of {@link Long} it neither boxes the value nor throws checked exceptions.
+ *
+ */
+public interface LongClock {
+
+    /**
+     * Return the latest event ID.
+     * @return latest event ID
+     */
+    long next();
+
+}
@@ -0,0 +1,252 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sun.misc.Unsafe;
+
+/**
+ * Fixed-capacity region of long slots in a direct (off-heap) {@link ByteBuffer}, shared by many metrics. Every metric
+ * allocates a contiguous range of slots once, and then reads and updates its slots with volatile semantics and atomic
+ * operations (add, CAS, max) addressed via {@code sun.misc.Unsafe}. The slab costs a few objects on the heap no matter
+ * how many slots it holds, and the garbage collector never scans or copies the slots.
+ * <pre>
+ * +------------------------+------------------------+-- ... --+-----------------+
+ * | metric A (header, ...) | metric B (header, ...) |         | free slots      |
+ * +------------------------+------------------------+-- ... --+-----------------+
+ * </pre>
+ * Slots are never freed individually; the whole slab is released when it becomes unreachable. Every access is bounds
+ * checked, so that a bad slot index fails with an exception instead of corrupting memory.
+ * <p>
+ * A slab may also be backed by a memory-mapped file (see {@link #map(File, int)}), in which case the slots survive a
+ * restart and can be read by other processes. Slots are stored in the native byte order.
+ *
+ */
+public class OffHeapSlab {
+
+    private static final int SLOT_BYTES = 8;
+
+    private static final Unsafe UNSAFE;
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        Unsafe unsafe = null;
+        long addressOffset = -1;
+        try {
+            final Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = (Unsafe) theUnsafe.get(null);
+            addressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Exception | LinkageError e) {
+            unsafe = null;  // not supported on this JVM
+        }
+        UNSAFE = unsafe;
+        ADDRESS_OFFSET = addressOffset;
+    }
+
+    /** Referenced to keep the memory alive as long as the slab is reachable. */
+    private final ByteBuffer buffer;
+
+    /** Address of the first slot, aligned to slot size. */
+    private final long address;
+
+    private final int capacity;
+    private final boolean readOnly;
+    private final AtomicInteger allocated = new AtomicInteger(0);
+
+    /**
+     * Create a slab of the specified number of long slots, all set to zero.
+     * @param capacity number of long slots
+     * @throws UnsupportedOperationException if the JVM does not support off-heap atomic access
+     */
+    public OffHeapSlab(int capacity) {
+        this(ByteBuffer.allocateDirect(validCapacity(capacity) * SLOT_BYTES + SLOT_BYTES),  // extra slot to align
+                capacity, false);
+    }
+
+    private OffHeapSlab(ByteBuffer buffer, int capacity, boolean readOnly) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Off-heap atomic access is not supported on this JVM");
+        }
+        this.capacity = capacity;
+        this.readOnly = readOnly;
+        this.buffer = buffer;
+        final long base = UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+        this.address = (base + SLOT_BYTES - 1) & ~((long) SLOT_BYTES - 1);
+    }
+
+    private static int validCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Expected capacity to be a positive integer, but found " + capacity);
+        }
+        if (capacity > (Integer.MAX_VALUE - SLOT_BYTES) / SLOT_BYTES) {
+            throw new IllegalArgumentException("Expected capacity to be at most " +
+                    ((Integer.MAX_VALUE - SLOT_BYTES) / SLOT_BYTES) + ", but found " + capacity);
+        }
+        return capacity;
+    }
+
+    /**
+     * Create a slab backed by the specified file mapped into memory, creating or extending the file (with zeroes) to
+     * the specified number of long slots as required. Existing slots of the file are retained.
+     * @param file     file to map
+     * @param capacity number of long slots
+     * @return         memory-mapped slab
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static OffHeapSlab map(File file, int capacity) throws IOException {
+        final long size = ((long) validCapacity(capacity)) * SLOT_BYTES;
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // the mapping remains valid after the channel is closed
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new OffHeapSlab(buffer, capacity, false);
+        }
+    }
+
+    /**
+     * Create a read-only slab backed by the specified existing file mapped into memory, e.g. to read the metrics of
+     * another process. Updating the slab throws {@link ReadOnlyBufferException}.
+     * @param file file to map
+     * @return     read-only memory-mapped slab spanning the whole file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static OffHeapSlab mapReadOnly(File file) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final int capacity = validCapacity((int) Math.min(raf.length() / SLOT_BYTES, Integer.MAX_VALUE));
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    ((long) capacity) * SLOT_BYTES);
+            return new OffHeapSlab(buffer, capacity, true);
+        }
+    }
+
+    /**
+     * Write the slots to the storage device if the slab is backed by a memory-mapped file, do nothing otherwise.
+     */
+    public void force() {
+        if (buffer instanceof MappedByteBuffer && !readOnly) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * Return true if the JVM supports off-heap atomic access, false otherwise.
+     * @return whether off-heap slabs can be created
+     */
+    public static boolean isSupported() {
+        return UNSAFE != null;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Return the number of slots allocated so far.
+     * @return number of allocated slots
+     */
+    public int getAllocated() {
+        return Math.min(allocated.get(), capacity);
+    }
+
+    /**
+     * Allocate a contiguous range of slots, all set to zero.
+     * @param slotCount number of slots to allocate
+     * @return          index of the first allocated slot
+     * @throws IllegalStateException if the slab does not have enough free slots
+     */
+    public int allocate(int slotCount) {
+        if (slotCount <= 0) {
+            throw new IllegalArgumentException("Expected slotCount to be a positive integer, but found " + slotCount);
+        }
+        int start;
+        do {
+            start = allocated.get();
+            if (slotCount > capacity - start) {
+                throw new IllegalStateException("Cannot allocate " + slotCount + " slots, only " + (capacity - start) +
+                        " of " + capacity + " slots are free");
+            }
+        } while (!allocated.compareAndSet(start, start + slotCount));
+        return start;
+    }
+
+    private long addressOf(int slot) {
+        if (slot < 0 || slot >= capacity) {
+            throw new IndexOutOfBoundsException("Expected slot between 0 and " + (capacity - 1) + ", but found " +
+                    slot);
+        }
+        return address + ((long) slot) * SLOT_BYTES;
+    }
+
+    private long writableAddressOf(int slot) {
+        if (readOnly) {
+            throw new ReadOnlyBufferException();
+        }
+        return addressOf(slot);
+    }
+
+    public long get(int slot) {
+        return UNSAFE.getLongVolatile(null, addressOf(slot));
+    }
+
+    public void set(int slot, long value) {
+        UNSAFE.putLongVolatile(null, writableAddressOf(slot), value);
+    }
+
+    public boolean compareAndSet(int slot, long expect, long update) {
+        return UNSAFE.compareAndSwapLong(null, writableAddressOf(slot), expect, update);
+    }
+
+    public long addAndGet(int slot, long delta) {
+        final long slotAddress = writableAddressOf(slot);
+        long prev;
+        do {
+            prev = UNSAFE.getLongVolatile(null, slotAddress);
+        } while (!UNSAFE.compareAndSwapLong(null, slotAddress, prev, prev + delta));
+        return prev + delta;
+    }
+
+    /**
+     * Atomically set the slot to the specified value if it is higher than the current value.
+     * @param slot  slot index
+     * @param value value to compare and store
+     */
+    public void max(int slot, long value) {
+        final long slotAddress = writableAddressOf(slot);
+        long prev;
+        do {
+            prev = UNSAFE.getLongVolatile(null, slotAddress);
+        } while (value > prev && !UNSAFE.compareAndSwapLong(null, slotAddress, prev, value));
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + ':' + "{capacity=" + capacity + ", allocated=" + getAllocated() +
+                ", readOnly=" + readOnly + "}";
+    }
+
+}
@@ -0,0 +1,480 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable writer of metrics in the <a href="https://openmetrics.io/">OpenMetrics</a> (Prometheus compatible) text
+ * format into a growable byte array. Numbers, names and label values are encoded straight into the array, so that
+ * writing the samples of thousands of metrics allocates nothing once the array has grown to size. Reuse an instance
+ * (see {@link #reset()}) across scrapes, but not across threads.
+ * <p>
+ * Samples belong to the selected metric family and label (see {@link #select(Object, Object, Object, Object)}), whose
+ * name is rendered as {@code prefix_name}. A {@code # TYPE} line is written whenever the family (compared by identity)
+ * changes, so samples of a family must be written consecutively:
+ * <pre>
+ * # TYPE http_latency gaugehistogram
+ * http_latency_bucket{endpoint="/users",le="10"} 3
+ * http_latency_bucket{endpoint="/users",le="+Inf"} 5
+ * http_latency_gcount{endpoint="/users"} 5
+ * http_latency_gsum{endpoint="/users"} 120
+ * # EOF
+ * </pre>
+ * Name parts and label values may be strings, or other objects (e.g. Clojure keywords) rendered by their string form
+ * without a leading colon. Invalid name characters are written as underscores.
+ *
+ */
+public class OpenMetricsWriter {
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /** Number of fractional digits written for double values. */
+    private static final int FRACTION_DIGITS = 6;
+    private static final long FRACTION_SCALE = 1000000L;
+
+    /** Doubles of this magnitude or more are written via {@link Double#toString(double)}. */
+    private static final double MAX_FIXED_POINT = 1e15;
+
+    private byte[] bytes;
+    private int size = 0;
+
+    // selected family and label
+    private Object prefix;
+    private Object name;
+    private Object labelName;
+    private Object labelValue;
+
+    // family of the last TYPE line
+    private Object typedPrefix;
+    private Object typedName;
+
+    public OpenMetricsWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OpenMetricsWriter(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Expected initialCapacity to be a positive integer, but found " +
+                    initialCapacity);
+        }
+        this.bytes = new byte[initialCapacity];
+    }
+
+    /**
+     * Discard the written text, retaining the capacity.
+     * @return this writer
+     */
+    public OpenMetricsWriter reset() {
+        size = 0;
+        prefix = name = labelName = labelValue = null;
+        typedPrefix = typedName = null;
+        return this;
+    }
+
+    /**
+     * Return the number of bytes written.
+     * @return number of bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Write the written text into the specified stream.
+     * @param out output stream
+     * @throws IOException if the stream cannot be written to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    /**
+     * Put the written text into the specified buffer.
+     * @param buffer byte buffer with at least {@link #size()} bytes remaining
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(bytes, 0, size);
+    }
+
+    /**
+     * Return the written text as a read-only buffer backed by this writer, valid until the writer is written to again.
+     * @return byte buffer
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, size).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+
+    // ----- structure -----
+
+    /**
+     * Select the metric family and the label of the samples to follow.
+     * @param prefix     family name prefix, e.g. category, null implies none
+     * @param name       family name
+     * @param labelName  label name, null implies no label
+     * @param labelValue label value
+     * @return           this writer
+     */
+    public OpenMetricsWriter select(Object prefix, Object name, Object labelName, Object labelValue) {
+        this.prefix = prefix;
+        this.name = Args.notNull(name, "name");
+        this.labelName = labelName;
+        this.labelValue = labelValue;
+        return this;
+    }
+
+    /**
+     * Write the TYPE line of the selected family, unless already written for the family.
+     * @param type metric type, e.g. "gauge", "counter" or "histogram"
+     * @return     this writer
+     */
+    public OpenMetricsWriter type(String type) {
+        if (prefix != typedPrefix || name != typedName) {
+            writeAscii("# TYPE ");
+            writeFamilyName();
+            writeByte(' ');
+            writeAscii(type);
+            writeByte('\n');
+            typedPrefix = prefix;
+            typedName = name;
+        }
+        return this;
+    }
+
+    /**
+     * Write a sample of the selected family and label.
+     * @param suffix sample name suffix, e.g. "_total", or empty string
+     * @param value  sample value
+     * @return       this writer
+     */
+    public OpenMetricsWriter sample(String suffix, long value) {
+        writeSampleName(suffix);
+        writeLabels(null, 0);
+        writeByte(' ');
+        writeLong(value);
+        writeByte('\n');
+        return this;
+    }
+
+    /**
+     * Write a sample of the selected family and label.
+     * @param suffix sample name suffix, e.g. "_total", or empty string
+     * @param value  sample value
+     * @return       this writer
+     */
+    public OpenMetricsWriter sample(String suffix, double value) {
+        writeSampleName(suffix);
+        writeLabels(null, 0);
+        writeByte(' ');
+        writeDouble(value);
+        writeByte('\n');
+        return this;
+    }
+
+    /**
+     * Write a gauge with the selected family and label.
+     * @param value gauge value
+     * @return      this writer
+     */
+    public OpenMetricsWriter gauge(long value) {
+        return type("gauge").sample("", value);
+    }
+
+    /**
+     * Write the histogram array as a gauge histogram of the selected family and label, with a bucket per histogram
+     * slot. See {@link #histogram(LogLinearHistogram, long[], long[])}.
+     * @param histogram histogram layout
+     * @param elements  histogram array
+     * @return          this writer
+     */
+    public OpenMetricsWriter histogram(LogLinearHistogram histogram, long[] elements) {
+        return histogram(histogram, elements, null);
+    }
+
+    /**
+     * Write the histogram array as a gauge histogram of the selected family and label, i.e. cumulative counts per
+     * bucket upper bound (as {@code le}), the {@code +Inf} bucket, {@code _gcount} and {@code _gsum}. A gauge histogram
+     * is used as the counts of a rolling window go down as well as up. The same buckets are written every time, so
+     * that the layout of a family does not change between scrapes.
+     * @param histogram histogram layout
+     * @param elements  histogram array
+     * @param bounds    ascending bucket upper bounds, a bound counting the slots whose highest value is within it, or
+     *                  null to write a bucket per histogram slot (bounded by the highest value of the slot)
+     * @return          this writer
+     */
+    public OpenMetricsWriter histogram(LogLinearHistogram histogram, long[] elements, long[] bounds) {
+        type("gaugehistogram");
+        final int slotCount = histogram.getSlotCount();
+        long cumulative = 0;
+        if (bounds == null) {
+            for (int i = 0; i < slotCount; i++) {
+                cumulative += elements[i];
+                writeBucket(histogram.highestValueOf(i), cumulative);
+            }
+        } else {
+            int slot = 0;
+            for (final long bound: bounds) {
+                for (; slot < slotCount && histogram.highestValueOf(slot) <= bound; slot++) {
+                    cumulative += elements[slot];
+                }
+                writeBucket(bound, cumulative);
+            }
+            for (; slot < slotCount; slot++) {
+                cumulative += elements[slot];
+            }
+        }
+        writeBucket(Double.POSITIVE_INFINITY, cumulative);
+        sample("_gcount", cumulative);
+        sample("_gsum", histogram.sum(elements));
+        return this;
+    }
+
+    private void writeBucket(double le, long cumulative) {
+        writeSampleName("_bucket");
+        writeLabels("le", le);
+        writeByte(' ');
+        writeLong(cumulative);
+        writeByte('\n');
+    }
+
+    /**
+     * Write the quantiles of the selected family and label as a summary. Count and sum are left out, because they are
+     * counters that may only go up, unlike those of a rolling window.
+     * @param quantiles quantiles, e.g. 0.5 for the median
+     * @param values    value of each quantile, NaN if unknown (e.g. no values recorded)
+     * @return          this writer
+     */
+    public OpenMetricsWriter summary(double[] quantiles, double[] values) {
+        if (quantiles.length != values.length) {
+            throw new IllegalArgumentException("Expected as many values as quantiles (" + quantiles.length +
+                    "), but found " + values.length);
+        }
+        type("summary");
+        for (int i = 0; i < quantiles.length; i++) {
+            writeSampleName("");
+            writeLabels("quantile", quantiles[i]);
+            writeByte(' ');
+            writeDouble(values[i]);
+            writeByte('\n');
+        }
+        return this;
+    }
+
+    /**
+     * Write the end of the exposition.
+     * @return this writer
+     */
+    public OpenMetricsWriter finish() {
+        writeAscii("# EOF\n");
+        return this;
+    }
+
+    // ----- encoding -----
+
+    private void ensure(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    private void writeByte(char c) {
+        ensure(1);
+        bytes[size++] = (byte) c;
+    }
+
+    private void writeAscii(String s) {
+        final int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            bytes[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private static CharSequence textOf(Object part) {
+        return (part instanceof CharSequence)? (CharSequence) part: part.toString();
+    }
+
+    /** Return 1 if the text of the part should skip a leading colon (e.g. Clojure keyword), 0 otherwise. */
+    private static int startOf(Object part, CharSequence text) {
+        return (!(part instanceof CharSequence) && text.length() > 0 && text.charAt(0) == ':')? 1: 0;
+    }
+
+    private static boolean isNameChar(char c, boolean first) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' ||
+                (!first && c >= '0' && c <= '9');
+    }
+
+    private void writeNamePart(Object part, boolean first) {
+        final CharSequence text = textOf(part);
+        final int n = text.length();
+        ensure(n);
+        for (int i = startOf(part, text); i < n; i++) {
+            final char c = text.charAt(i);
+            bytes[size++] = (byte) (isNameChar(c, first)? c: '_');
+            first = false;
+        }
+    }
+
+    private void writeFamilyName() {
+        if (prefix != null) {
+            writeNamePart(prefix, true);
+            writeByte('_');
+            writeNamePart(name, false);
+        } else {
+            writeNamePart(name, true);
+        }
+    }
+
+    private void writeSampleName(String suffix) {
+        writeFamilyName();
+        writeAscii(suffix);
+    }
+
+    /** Write the selected label and the optional numeric label (e.g. le or quantile), if any. */
+    private void writeLabels(String extraName, double extraValue) {
+        if (labelName == null && extraName == null) {
+            return;
+        }
+        writeByte('{');
+        if (labelName != null) {
+            writeNamePart(labelName, true);
+            writeAscii("=\"");
+            writeLabelValue(labelValue);
+            writeByte('"');
+        }
+        if (extraName != null) {
+            if (labelName != null) {
+                writeByte(',');
+            }
+            writeAscii(extraName);
+            writeAscii("=\"");
+            writeDouble(extraValue);
+            writeByte('"');
+        }
+        writeByte('}');
+    }
+
+    private void writeLabelValue(Object value) {
+        if (value == null) {
+            return;
+        }
+        final CharSequence text = textOf(value);
+        final int n = text.length();
+        for (int i = startOf(value, text); i < n; i++) {
+            final char c = text.charAt(i);
+            if (c == '\\' || c == '"') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c == '\n') {
+                writeByte('\\');
+                writeByte('n');
+            } else {
+                writeChar(text, i, c);
+                if (Character.isHighSurrogate(c) && i + 1 < n) {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /** Write the character (or surrogate pair starting) at the index as UTF-8. */
+    private void writeChar(CharSequence text, int index, char c) {
+        ensure(4);
+        if (c < 0x80) {
+            bytes[size++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[size++] = (byte) (0xC0 | (c >> 6));
+            bytes[size++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < text.length() &&
+                Character.isLowSurrogate(text.charAt(index + 1))) {
+            final int cp = Character.toCodePoint(c, text.charAt(index + 1));
+            bytes[size++] = (byte) (0xF0 | (cp >> 18));
+            bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            bytes[size++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            bytes[size++] = (byte) (0xE0 | (c >> 12));
+            bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void writeLong(long value) {
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value;
+        }
+        // write the digits backwards, then reverse them
+        final int start = size;
+        do {
+            bytes[size++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            final byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+        }
+    }
+
+    private void writeDouble(double value) {
+        if (Double.isNaN(value)) {
+            writeAscii("NaN");
+        } else if (Double.isInfinite(value)) {
+            writeAscii(value > 0? "+Inf": "-Inf");
+        } else if (Math.abs(value) >= MAX_FIXED_POINT) {
+            writeAscii(Double.toString(value));
+        } else {
+            long scaled = Math.round(Math.abs(value) * FRACTION_SCALE);
+            if (value < 0 && scaled != 0) {
+                writeByte('-');
+            }
+            writeLong(scaled / FRACTION_SCALE);
+            long fraction = scaled % FRACTION_SCALE;
+            if (fraction != 0) {
+                writeByte('.');
+                int digits = FRACTION_DIGITS;
+                while (fraction % 10 == 0) {  // trim trailing zeros
+                    fraction /= 10;
+                    digits--;
+                }
+                // leading zeros of the fraction
+                for (; digits > 1 && fraction < pow10(digits - 1); digits--) {
+                    writeByte('0');
+                }
+                writeLong(fraction);
+            }
+        }
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+
+}
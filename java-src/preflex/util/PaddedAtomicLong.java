@@ -0,0 +1,34 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link AtomicLong} followed by a cache line worth of padding, so that objects allocated right after it (typically by
+ * other threads or for other shards) do not share the cache line holding the value.
+ *
+ */
+@SuppressWarnings("serial")
+public class PaddedAtomicLong extends AtomicLong {
+
+    /** Padding fields, never read or written. */
+    protected long p1, p2, p3, p4, p5, p6, p7;
+
+    public PaddedAtomicLong() {
+        super();
+    }
+
+    public PaddedAtomicLong(long initialValue) {
+        super(initialValue);
+    }
+
+}
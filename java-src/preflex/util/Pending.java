@@ -113,6 +113,16 @@ public class Pending {
         return actionQueue.isEmpty();
     }
 
+    /**
+     * Run the pending actions (until timeout) unless another thread is already running them. Never blocks, so it is
+     * safe for readers to call before reading the state the actions update.
+     * @return true if no pending actions are left, false otherwise
+     */
+    public boolean drain() {
+        clearPending();
+        return isEmpty();
+    }
+
     /**
      * Execute action without blocking for a lock. Try to run without a queue first.
      * @param action action to execute
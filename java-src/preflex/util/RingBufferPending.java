@@ -0,0 +1,208 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free alternative to {@link Pending}, backed by a bounded multi-producer/single-consumer ring buffer. A thread
+ * that finds no other thread running actions becomes the combiner: it runs its own action and drains the actions
+ * enqueued by the other threads meanwhile. Other threads only enqueue their action (no allocation) and leave. Actions
+ * are run one at a time, in the order they were enqueued.
+ * <pre>
+ *             consumerIndex (combiner only)        producerIndex (CAS by producers)
+ *                   |                                     |
+ *                   v                                     v
+ * +-----+-----+-----+--------+--------+-- ... --+--------+-----+-----+
+ * |     |     |     | action | action |         | action |     |     |   capacity = power of two
+ * +-----+-----+-----+--------+--------+-- ... --+--------+-----+-----+
+ * </pre>
+ * When the ring buffer is full the action is handed over to the overflow handler, which drops it by default.
+ *
+ */
+public class RingBufferPending extends Pending {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final int mask;
+
+    /** Duration (nanoseconds) to spend on running enqueued actions. */
+    private final long pendingTimeoutNanos;
+
+    /** Number of enqueued actions to run before checking for timeout. */
+    private final int pendingBurstSize;
+
+    private final FloodHandler overflowHandler;
+
+    private final AtomicReferenceArray<Runnable> slots;
+
+    /** Next index to claim by the producers. */
+    private final AtomicLong producerIndex = new PaddedAtomicLong(0);
+
+    /** Next index to run by the combiner. */
+    private final AtomicLong consumerIndex = new PaddedAtomicLong(0);
+
+    /** 1 while a thread is running actions, 0 otherwise. */
+    private final AtomicInteger combining = new AtomicInteger(0);
+
+    public RingBufferPending() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RingBufferPending(int capacity) {
+        this(capacity, DEFAULT_PENDING_TIMEOUT_NANOS, DEFAULT_PENDING_BURST_SIZE, DEFAULT_HARD_FLOOD_HANDLER);
+    }
+
+    public RingBufferPending(final int capacity, final long pendingTimeoutNanos, final int pendingBurstSize,
+            final FloodHandler overflowHandler) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Expected capacity to be a positive power of two, but found " +
+                    capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.pendingTimeoutNanos = pendingTimeoutNanos;
+        this.pendingBurstSize = pendingBurstSize;
+        this.overflowHandler = Args.notNull(overflowHandler, "overflowHandler");
+        this.slots = new AtomicReferenceArray<Runnable>(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Return the number of enqueued actions not run yet.
+     * @return number of enqueued actions
+     */
+    public int size() {
+        return (int) (producerIndex.get() - consumerIndex.get());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+
+    /**
+     * Execute action right away if no other thread is running actions, enqueue it otherwise.
+     * @param action action to execute
+     */
+    @Override
+    public void run(final Runnable action) {
+        if (combining.compareAndSet(0, 1)) {
+            try {
+                if (isEmpty()) {
+                    action.run();
+                } else if (offer(action)) {
+                    runEnqueued();
+                } else {
+                    runEnqueued();
+                    action.run();
+                }
+            } finally {
+                combining.set(0);
+            }
+            if (isPublished()) {
+                tryDrain();
+            }
+        } else {
+            runPending(action);
+        }
+    }
+
+    /**
+     * Enqueue action, and run the enqueued actions if no other thread is running them.
+     * @param action action to execute
+     */
+    @Override
+    public void runPending(final Runnable action) {
+        if (offer(action)) {
+            tryDrain();
+        } else {
+            overflowHandler.handle(this, action);
+        }
+    }
+
+    @Override
+    public boolean drain() {
+        tryDrain();
+        return isEmpty();
+    }
+
+    private boolean offer(final Runnable action) {
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        // volatile write, so that a combiner leaving after this point is guaranteed to find the action
+        slots.set((int) index & mask, action);
+        return true;
+    }
+
+    /**
+     * Return true if the next action to run has been published by its producer, false otherwise.
+     * @return whether the next action is ready to run
+     */
+    private boolean isPublished() {
+        return slots.get((int) consumerIndex.get() & mask) != null;
+    }
+
+    private void tryDrain() {
+        // re-check after leaving, so that actions published while leaving are not stranded
+        while (combining.compareAndSet(0, 1)) {
+            final boolean drained;
+            try {
+                drained = runEnqueued();
+            } finally {
+                combining.set(0);
+            }
+            if (!drained || !isPublished()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run enqueued actions until timeout. Must be called only by the combiner.
+     * @return true if stopped at an unpublished (or no) action, false if stopped due to timeout
+     */
+    private boolean runEnqueued() {
+        final long start = System.nanoTime();
+        do {
+            for (int i = 0; i < pendingBurstSize; i++) {
+                final long index = consumerIndex.get();
+                final int slot = (int) index & mask;
+                final Runnable r = slots.get(slot);
+                if (r == null) {
+                    // either empty, or claimed by a producer that is yet to publish - it drains after publishing
+                    return true;
+                }
+                slots.lazySet(slot, null);
+                consumerIndex.lazySet(index + 1);
+                r.run();  // if it throws RuntimeException, we just bubble the exception up
+            }
+        } while (System.nanoTime() - start < pendingTimeoutNanos);
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + ':' + "{actions=" + size() + ", capacity=" + capacity + "}";
+    }
+
+}
@@ -0,0 +1,319 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent registry of series (e.g. metrics collectors) labelled by category, name and key, created lazily on first
+ * lookup. Series are kept in nested concurrent maps (category, then name, then key), so that looking up an existing
+ * series is a few lock-free hash lookups with no allocation, plus an access time update at most once per clock tick.
+ * <pre>
+ * category --&gt; name --&gt; key --&gt; (series, last access time)
+ * </pre>
+ * The number of series is capped. When the cap is reached, series idle for longer than the idle timeout are evicted
+ * (by one thread at a time) to make room, and if none can be evicted the lookup returns the overflow series instead of
+ * creating a new one. The registry is not scanned again until the least recently used series it found may have become
+ * idle, so lookups of new series at the cap do not scan on every call. Nothing is allocated for a new series beyond
+ * the cap, and the category and name maps emptied by eviction are removed. Idle series may also be evicted periodically
+ * via {@link #evictIdle()}. A series evicted while in use keeps working, but is detached from the registry, i.e. a
+ * later lookup creates a fresh series.
+ *
+ * @param <V> type of the series
+ */
+public class SeriesRegistry<V> {
+
+    /** Factory of a series for the labels. */
+    public interface SeriesFactory<V> {
+        V create(Object category, Object name, Object key);
+    }
+
+    /** Visitor of the series, see {@link SeriesRegistry#forEach(SeriesVisitor)}. */
+    public interface SeriesVisitor<V> {
+        void visit(Object category, Object name, Object key, V series);
+    }
+
+    private static final class Entry<V> {
+        private final V series;
+        private volatile long lastAccess;
+
+        Entry(V series, long lastAccess) {
+            this.series = series;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /** Map of a level in the hierarchy, retired (and no longer written to) before it is removed when empty. */
+    private static final class Level<T> extends ConcurrentHashMap<Object, T> {
+        private static final long serialVersionUID = 1L;
+        private volatile boolean retired;
+    }
+
+    private final SeriesFactory<V> factory;
+    private final V overflowSeries;
+    private final int maxSeries;
+    private final long idleTimeout;
+    private final LongClock clock;
+
+    private final Level<Level<Level<Entry<V>>>> categories = new Level<>();
+    private final AtomicInteger seriesCount = new AtomicInteger();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    private volatile long nextEvictionTime = Long.MIN_VALUE;  // no series may be idle before this time
+
+    /**
+     * Create a series registry.
+     * @param factory        factory of a new series
+     * @param overflowSeries series to return when the cap is reached
+     * @param maxSeries      max number of series
+     * @param idleTimeout    time (as per clock) since the last lookup after which a series may be evicted
+     * @param clock          source of the current time, e.g. millis
+     */
+    public SeriesRegistry(SeriesFactory<V> factory, V overflowSeries, int maxSeries, long idleTimeout,
+            LongClock clock) {
+        if (maxSeries <= 0) {
+            throw new IllegalArgumentException("Expected maxSeries to be a positive integer, but found " + maxSeries);
+        }
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("Expected idleTimeout to be a positive integer, but found " +
+                    idleTimeout);
+        }
+        this.factory = Args.notNull(factory, "factory");
+        this.overflowSeries = Args.notNull(overflowSeries, "overflowSeries");
+        this.maxSeries = maxSeries;
+        this.idleTimeout = idleTimeout;
+        this.clock = Args.notNull(clock, "clock");
+    }
+
+    /**
+     * Return the series for the specified labels, creating it if it does not exist. Labels must be usable as hash keys,
+     * e.g. keywords or strings, and must not be null.
+     * @param category category label
+     * @param name     name label
+     * @param key      key label
+     * @return         series for the labels, or the overflow series if the cap is reached
+     */
+    public V get(Object category, Object name, Object key) {
+        final Entry<V> entry = find(category, name, key);
+        if (entry != null) {
+            final long now = clock.next();
+            if (entry.lastAccess != now) {  // avoid a volatile write on every lookup
+                entry.lastAccess = now;
+            }
+            return entry.series;
+        }
+        return create(category, name, key);
+    }
+
+    private Entry<V> find(Object category, Object name, Object key) {
+        final Level<Level<Entry<V>>> names = categories.get(category);
+        if (names != null) {
+            final Level<Entry<V>> keys = names.get(name);
+            if (keys != null) {
+                return keys.get(key);
+            }
+        }
+        return null;
+    }
+
+    private V create(Object category, Object name, Object key) {
+        final Entry<V> existing = find(category, name, key);  // may have been created since the lookup
+        if (existing != null) {
+            return existing.series;
+        }
+        if (!reserve()) {  // check the cap before allocating anything for the new series
+            overflowCount.incrementAndGet();
+            return overflowSeries;
+        }
+        final Entry<V> entry = new Entry<>(factory.create(category, name, key), clock.next());
+        while (true) {
+            final Level<Level<Entry<V>>> names = levelOf(categories, category);
+            final Level<Entry<V>> keys = levelOf(names, name);
+            final Entry<V> prev = keys.putIfAbsent(key, entry);
+            if (prev != null) {  // lost the race to another thread
+                seriesCount.decrementAndGet();
+                return prev.series;
+            }
+            if (!keys.retired && !names.retired) {
+                return entry.series;
+            }
+            if (!keys.remove(key, entry)) {  // added to a map being removed by evictIdle, retry with a live map
+                return entry.series;  // already evicted, and its room released
+            }
+        }
+    }
+
+    private static <T> Level<T> levelOf(Level<Level<T>> parent, Object label) {
+        Level<T> level = parent.get(label);
+        if (level == null || level.retired) {
+            final Level<T> fresh = new Level<>();
+            while (true) {
+                level = parent.putIfAbsent(label, fresh);
+                if (level == null) {
+                    return fresh;
+                }
+                if (!level.retired) {
+                    return level;
+                }
+                Thread.yield();  // wait for evictIdle to remove the retired map
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Remove the level from its parent if it is empty, such that a concurrent writer either sees it retired or has its
+     * mapping seen here. Emptiness is checked by iteration, as the size of a concurrent map is only an estimate.
+     */
+    private static <T> void removeIfEmpty(Level<Level<T>> parent, Object label, Level<T> level) {
+        if (!level.keySet().iterator().hasNext()) {
+            level.retired = true;
+            if (!level.keySet().iterator().hasNext()) {
+                parent.remove(label, level);
+            } else {  // a writer added to it in the meantime
+                level.retired = false;
+            }
+        }
+    }
+
+    /** Reserve room for a new series, evicting idle series if required. Return true on success, false otherwise. */
+    private boolean reserve() {
+        for (boolean evicted = false;; evicted = true) {
+            final int count = seriesCount.get();
+            if (count < maxSeries) {
+                if (seriesCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            } else if (evicted || clock.next() < nextEvictionTime || evictIdle() == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Evict the series that have not been looked up for longer than the idle timeout, and remove the emptied category
+     * and name maps, unless another thread is already evicting. Return the number of series evicted by this call.
+     * @return number of evicted series
+     */
+    public int evictIdle() {
+        if (!evicting.compareAndSet(false, true)) {
+            return 0;
+        }
+        try {
+            final long now = clock.next();
+            long oldestAccess = now;
+            int evicted = 0;
+            for (final Map.Entry<Object, Level<Level<Entry<V>>>> eachNames: categories.entrySet()) {
+                final Level<Level<Entry<V>>> names = eachNames.getValue();
+                for (final Map.Entry<Object, Level<Entry<V>>> eachKeys: names.entrySet()) {
+                    final Level<Entry<V>> keys = eachKeys.getValue();
+                    final Iterator<Map.Entry<Object, Entry<V>>> iter = keys.entrySet().iterator();
+                    while (iter.hasNext()) {
+                        final Map.Entry<Object, Entry<V>> each = iter.next();
+                        final Entry<V> entry = each.getValue();
+                        final long lastAccess = entry.lastAccess;
+                        if (now - lastAccess > idleTimeout) {
+                            if (keys.remove(each.getKey(), entry)) {
+                                seriesCount.decrementAndGet();
+                                evicted++;
+                            }
+                        } else {
+                            oldestAccess = Math.min(oldestAccess, lastAccess);
+                        }
+                    }
+                    removeIfEmpty(names, eachKeys.getKey(), keys);
+                }
+                removeIfEmpty(categories, eachNames.getKey(), names);
+            }
+            // series created later are accessed later, and access times only move forward
+            nextEvictionTime = oldestAccess + idleTimeout + 1;
+            evictionCount.addAndGet(evicted);
+            return evicted;
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Return the number of series in the registry.
+     * @return number of series
+     */
+    public int size() {
+        return seriesCount.get();
+    }
+
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    /**
+     * Return the total number of series evicted so far.
+     * @return number of evicted series
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Return the total number of lookups that returned the overflow series.
+     * @return number of overflowed lookups
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Return a point-in-time copy of the series as nested maps, category to name to key to series.
+     * @return nested map of series
+     */
+    public Map<Object, Map<Object, Map<Object, V>>> snapshot() {
+        final Map<Object, Map<Object, Map<Object, V>>> result = new LinkedHashMap<>();
+        for (final Map.Entry<Object, Level<Level<Entry<V>>>> names: categories.entrySet()) {
+            final Map<Object, Map<Object, V>> resultNames = new LinkedHashMap<>();
+            for (final Map.Entry<Object, Level<Entry<V>>> keys: names.getValue().entrySet()) {
+                final Map<Object, V> resultKeys = new LinkedHashMap<>();
+                for (final Map.Entry<Object, Entry<V>> each: keys.getValue().entrySet()) {
+                    resultKeys.put(each.getKey(), each.getValue().series);
+                }
+                if (!resultKeys.isEmpty()) {
+                    resultNames.put(keys.getKey(), resultKeys);
+                }
+            }
+            if (!resultNames.isEmpty()) {
+                result.put(names.getKey(), resultNames);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Visit every series in place, without copying, such that the series of a category and name are visited
+     * consecutively. Series added or evicted concurrently may or may not be visited.
+     * @param visitor series visitor
+     */
+    public void forEach(SeriesVisitor<V> visitor) {
+        for (final Map.Entry<Object, Level<Level<Entry<V>>>> names: categories.entrySet()) {
+            for (final Map.Entry<Object, Level<Entry<V>>> keys: names.getValue().entrySet()) {
+                for (final Map.Entry<Object, Entry<V>> each: keys.getValue().entrySet()) {
+                    visitor.visit(names.getKey(), keys.getKey(), each.getKey(), each.getValue().series);
+                }
+            }
+        }
+    }
+
+}
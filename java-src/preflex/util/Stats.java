@@ -10,6 +10,7 @@
 
 package preflex.util;
 
+import java.util.Arrays;
 
 /**
  * Basic statistics functions. Not for scientific use! They err in favor of speed over precision and accuracy.
@@ -25,6 +26,9 @@ public final class Stats {
     /** Internal constant for 100%. */
     private static final int HUNDRED_PERCENT = 100;
 
+    /** Runs shorter than this on average are not worth merging, see {@link #sortRuns(long[])}. */
+    private static final int MIN_AVERAGE_RUN_LENGTH = 8;
+
     /**
      * Throw exception if the specified array is NULL, or empty.
      * @param array long array
@@ -140,4 +144,63 @@ public final class Stats {
         return sortedArray[rankIndex];
     }
 
+    /**
+     * Sort the specified array in ascending order, taking advantage of ascending runs already present in it (e.g. a
+     * concatenation of sorted arrays). The runs are merged pairwise, so that k runs of n elements in total are sorted
+     * in O(n log k) time. Arrays with many short runs (e.g. random order) are sorted with {@link Arrays#sort(long[])}.
+     * @param array long array
+     * @return      the same array, sorted
+     */
+    public static long[] sortRuns(final long[] array) {
+        assertNotNull(array);
+        final int n = array.length;
+        // find the start of every run, followed by the end of the array
+        int[] bounds = new int[16];
+        int runCount = 0;
+        bounds[runCount++] = 0;
+        for (int i = 1; i < n; i++) {
+            if (array[i] < array[i - 1]) {
+                if (runCount > n / MIN_AVERAGE_RUN_LENGTH) {
+                    Arrays.sort(array);
+                    return array;
+                }
+                if (runCount + 1 >= bounds.length) {
+                    bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+                }
+                bounds[runCount++] = i;
+            }
+        }
+        bounds[runCount] = n;
+        long[] src = array;
+        long[] dest = new long[n];
+        while (runCount > 1) {
+            int merged = 0;
+            for (int r = 0; r < runCount; r += 2) {
+                final int lo = bounds[r];
+                final int mid = bounds[r + 1];
+                if (r + 1 < runCount) {
+                    final int hi = bounds[r + 2];
+                    int i = lo, j = mid, k = lo;
+                    while (i < mid && j < hi) {
+                        dest[k++] = (src[j] < src[i])? src[j++]: src[i++];
+                    }
+                    System.arraycopy(src, i, dest, k, mid - i);
+                    System.arraycopy(src, j, dest, k + mid - i, hi - j);
+                } else {
+                    System.arraycopy(src, lo, dest, lo, mid - lo);  // odd one out
+                }
+                bounds[merged++] = lo;
+            }
+            bounds[merged] = n;
+            runCount = merged;
+            final long[] temp = src;
+            src = dest;
+            dest = temp;
+        }
+        if (src != array) {
+            System.arraycopy(src, 0, array, 0, n);
+        }
+        return array;
+    }
+
 }
@@ -0,0 +1,302 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Contention-adaptive alternative to {@link RandomLocal}, modeled after {@code java.util.concurrent.atomic.Striped64}.
+ * Every thread keeps a probe hash to select an element from the pool, and re-hashes only when it runs into contention
+ * on the selected element. The pool starts with a few elements (one by default) and doubles, up to a cap, when a thread
+ * runs into contention for the second time. Uncontended use hence stays on one element, whereas hot paths spread
+ * across up to as many elements as there are CPU cores. The owner may shrink the pool back when the extra elements are
+ * no longer needed (see {@link #shrink(int)}).
+ * <p>
+ * Contention is what the callers observe, in one of two ways:
+ * <ul>
+ *   <li>{@link #get()} selects an element without writing any shared state, and the caller reports a failed CAS on the
+ *       element (i.e. another thread updated it concurrently) via {@link #contended()}.</li>
+ *   <li>{@link #enter()} selects an element and marks it occupied until {@link Cell#exit()}, for callers that cannot
+ *       observe contention themselves. Finding the element occupied by another thread counts as contention.</li>
+ * </ul>
+ * Threads that merely take turns on an element do not count as contending.
+ * The operations on the pool elements should be commutative, associative and likely inconsistency tolerant for the
+ * arrangement to work.
+ *
+ * @param <T> type of the element
+ */
+public class StripedLocal<T> {
+
+    private static final int MAX_DEFAULT_COUNT = 128;
+
+    /** Golden ratio increment to spread the initial probe hashes of threads. */
+    private static final int PROBE_INCREMENT = 0x9e3779b9;
+
+    private static final AtomicInteger PROBE_SEED = new AtomicInteger();
+
+    private static final ThreadLocal<Probe> PROBE = new ThreadLocal<Probe>() {
+        @Override
+        protected Probe initialValue() {
+            return new Probe(PROBE_SEED.addAndGet(PROBE_INCREMENT));
+        }
+    };
+
+    /** Per-thread selection state. */
+    private static final class Probe {
+        private int hash;
+        private boolean collided = false;
+
+        Probe(int hash) {
+            this.hash = (hash == 0)? 1: hash;  // xorshift needs a non-zero seed
+        }
+
+        void rehash() {
+            int h = hash;
+            h ^= h << 13;
+            h ^= h >>> 17;
+            h ^= h << 5;
+            hash = h;
+        }
+    }
+
+    /**
+     * Element of the pool with the number of threads using it, see {@link StripedLocal#enter()}. Padded so that the
+     * occupancy of adjacent cells does not share a cache line.
+     */
+    public static final class Cell<T> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Cell> OCCUPANCY =
+                AtomicIntegerFieldUpdater.newUpdater(Cell.class, "occupancy");
+
+        private final T element;
+        private volatile int occupancy = 0;
+
+        /** Padding fields, never read or written. */
+        protected long p1, p2, p3, p4, p5, p6, p7;
+
+        Cell(T element) {
+            this.element = element;
+        }
+
+        /** Mark the cell occupied, and return true if no other thread was using it. */
+        @SuppressWarnings("unchecked")
+        boolean enter() {
+            return OCCUPANCY.getAndIncrement(this) == 0;
+        }
+
+        public T get() {
+            return element;
+        }
+
+        /** Stop using the element, see {@link StripedLocal#enter()}. */
+        @SuppressWarnings("unchecked")
+        public void exit() {
+            OCCUPANCY.decrementAndGet(this);
+        }
+    }
+
+    /** Immutable snapshot of the pool, replaced as a whole when the pool grows. */
+    private static final class Table<T> {
+        private final List<Cell<T>> cells;
+        private final List<T> elements;
+        private final int length;
+        /** Bit mask to select an element when length is a power of two, -1 otherwise. */
+        private final int mask;
+
+        Table(List<Cell<T>> cells) {
+            final List<T> elements = new ArrayList<>(cells.size());
+            for (final Cell<T> each: cells) {
+                elements.add(each.element);
+            }
+            this.cells = cells;
+            this.elements = Collections.unmodifiableList(elements);
+            this.length = cells.size();
+            this.mask = (Integer.bitCount(length) == 1)? length - 1: -1;
+        }
+
+        int indexOf(int hash) {
+            return (mask >= 0)? (hash & mask): ((hash & Integer.MAX_VALUE) % length);
+        }
+    }
+
+    private final Callable<T> supplier;
+    private final int maxCount;
+    private final AtomicBoolean growing = new AtomicBoolean(false);
+    private volatile Table<T> table;
+
+    public StripedLocal(int initialCount, int maxCount, Callable<T> supplier) {
+        if (initialCount <= 0) {
+            throw new IllegalArgumentException("Expected initialCount to be a positive integer, but found " +
+                    initialCount);
+        }
+        if (maxCount < initialCount) {
+            throw new IllegalArgumentException("Expected maxCount to be at least initialCount (" + initialCount +
+                    "), but found " + maxCount);
+        }
+        this.supplier = Args.notNull(supplier, "supplier");
+        this.maxCount = maxCount;
+        this.table = new Table<T>(createCells(initialCount, supplier));
+    }
+
+    /**
+     * Return the smallest power of two not less than the number of CPU processors (maximum 128), which is the pool size
+     * beyond which growing cannot reduce contention any further.
+     * @return default maximum number of elements
+     */
+    public static int defaultMaxCount() {
+        final int processors = Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_COUNT);
+        return (processors <= 1)? 1: Integer.highestOneBit(processors - 1) << 1;
+    }
+
+    /**
+     * Create an instance that starts with a single element and grows up to {@link #defaultMaxCount()} elements.
+     * @param supplier supplier of an element
+     * @return         contention-adaptive instance
+     */
+    public static <T> StripedLocal<T> create(Callable<T> supplier) {
+        return new StripedLocal<T>(1, defaultMaxCount(), supplier);
+    }
+
+    /**
+     * Create an instance with fixed number of elements, selected by probe hash instead of random numbers.
+     * @param count    number of elements
+     * @param supplier supplier of an element
+     * @return         fixed size instance
+     */
+    public static <T> StripedLocal<T> create(int count, Callable<T> supplier) {
+        return new StripedLocal<T>(count, count, supplier);
+    }
+
+    private static <T> List<Cell<T>> createCells(int count, Callable<T> supplier) {
+        final List<Cell<T>> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            try {
+                list.add(new Cell<T>(supplier.call()));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Return the element selected for the current thread, without writing any shared state. Report contention on the
+     * element (e.g. a failed CAS) via {@link #contended()}.
+     * @return selected element
+     */
+    public T get() {
+        final Table<T> t = table;
+        return t.elements.get(t.indexOf(PROBE.get().hash));
+    }
+
+    /**
+     * Report that an operation on the element last selected for the current thread ran into contention, so that the
+     * thread moves to another element (growing the pool if the thread ran into contention before), and return the
+     * element to retry the operation with.
+     * @return newly selected element
+     */
+    public T contended() {
+        final Probe probe = PROBE.get();
+        final Table<T> t = contended(probe, table);
+        return t.elements.get(t.indexOf(probe.hash));
+    }
+
+    /**
+     * Select an element for the current thread and mark it occupied, for callers that cannot observe contention on the
+     * element themselves. Finding the element occupied by another thread counts as contention, i.e. the thread moves
+     * to another element for the next time. The cell must be exited after use, e.g. in a finally block.
+     * @return cell holding the selected element
+     */
+    public Cell<T> enter() {
+        final Probe probe = PROBE.get();
+        final Table<T> t = table;
+        final Cell<T> cell = t.cells.get(t.indexOf(probe.hash));
+        if (!cell.enter()) {
+            contended(probe, t);  // use the cell anyway, the elements are thread-safe
+        }
+        return cell;
+    }
+
+    /** Move the probe to another element, growing the pool if the thread ran into contention before. */
+    private Table<T> contended(Probe probe, Table<T> t) {
+        probe.rehash();
+        if (probe.collided && t.length < maxCount) {
+            probe.collided = false;
+            return grow(t);
+        }
+        probe.collided = true;
+        return t;
+    }
+
+    private Table<T> grow(Table<T> t) {
+        if (growing.compareAndSet(false, true)) {
+            try {
+                if (table == t) {
+                    final int newCount = (int) Math.min(2L * t.length, maxCount);
+                    final List<Cell<T>> cells = new ArrayList<>(newCount);
+                    cells.addAll(t.cells);
+                    cells.addAll(createCells(newCount - t.length, supplier));
+                    table = new Table<T>(cells);
+                }
+            } finally {
+                growing.set(false);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Shrink the pool back to the specified number of elements (if bigger), dropping the elements beyond. This is safe
+     * only when the state of the dropped elements is not of interest, because they are no longer returned by
+     * {@link #getAll()}. To reset all elements, shrink first and then reset the retained elements: threads that
+     * selected a dropped element before the shrink may still update it, whereas an element dropped after being reset
+     * would lose the updates made after the reset. The pool may grow again under contention.
+     * @param count number of elements to retain
+     * @return      true if the pool was shrunk, false otherwise (including when it was growing concurrently)
+     */
+    public boolean shrink(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Expected count to be a positive integer, but found " + count);
+        }
+        if (table.length > count && growing.compareAndSet(false, true)) {
+            try {
+                final Table<T> t = table;
+                if (t.length > count) {
+                    table = new Table<T>(new ArrayList<Cell<T>>(t.cells.subList(0, count)));
+                    return true;
+                }
+            } finally {
+                growing.set(false);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return all elements of the pool at this point of time. Growing the pool only ever appends elements, so the
+     * returned list remains a subset of any later snapshot unless the pool is shrunk (see {@link #shrink(int)}).
+     * @return unmodifiable list of all elements
+     */
+    public List<T> getAll() {
+        return table.elements;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coarse clock that reads the system clock on a single daemon thread at a fixed resolution and publishes the values
+ * via volatile fields, so that high frequency callers pay for a volatile read instead of a clock read. The published
+ * values lag the system clock by up to the resolution (plus scheduling delay), which is fine for bucketing events into
+ * rolling metrics buckets that are much wider than the resolution.
+ *
+ */
+public class TickingClock {
+
+    public static final long DEFAULT_RESOLUTION_MILLIS = 1;
+
+    private static final String THREAD_NAME = "preflex-ticking-clock";
+
+    /** Lazily started shared instance at default resolution. */
+    private static final class Shared {
+        static final TickingClock INSTANCE = new TickingClock(DEFAULT_RESOLUTION_MILLIS, TimeUnit.MILLISECONDS, true);
+    }
+
+    private final long resolutionNanos;
+    private final boolean shared;
+    private final Thread ticker;
+
+    private volatile long millis;
+    private volatile long nanos;
+    private volatile boolean running = true;
+
+    private final LongClock millisClock = new LongClock() {
+        @Override
+        public long next() {
+            return millis;
+        }
+    };
+
+    private final LongClock nanosClock = new LongClock() {
+        @Override
+        public long next() {
+            return nanos;
+        }
+    };
+
+    public TickingClock(long resolution, TimeUnit unit) {
+        this(resolution, unit, false);
+    }
+
+    private TickingClock(long resolution, TimeUnit unit, boolean shared) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Expected resolution to be a positive integer, but found " + resolution);
+        }
+        this.resolutionNanos = Args.notNull(unit, "unit").toNanos(resolution);
+        this.shared = shared;
+        tick();
+        this.ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    LockSupport.parkNanos(resolutionNanos);
+                    tick();
+                }
+            }
+        }, THREAD_NAME);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Return the shared instance ticking at {@link #DEFAULT_RESOLUTION_MILLIS} milliseconds resolution, starting it on
+     * first call. The shared instance cannot be stopped.
+     * @return shared ticking clock
+     */
+    public static TickingClock getShared() {
+        return Shared.INSTANCE;
+    }
+
+    private void tick() {
+        nanos = System.nanoTime();
+        millis = System.currentTimeMillis();
+    }
+
+    /**
+     * Return the cached value of {@link System#currentTimeMillis()}.
+     * @return milliseconds since epoch, as of the last tick
+     */
+    public long millis() {
+        return millis;
+    }
+
+    /**
+     * Return the cached value of {@link System#nanoTime()}.
+     * @return nanoseconds from an arbitrary origin, as of the last tick
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+    public LongClock millisClock() {
+        return millisClock;
+    }
+
+    public LongClock nanosClock() {
+        return nanosClock;
+    }
+
+    public long getResolutionNanos() {
+        return resolutionNanos;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop the ticker thread. The cached values stop advancing afterwards.
+     * @throws IllegalStateException when invoked on the shared instance
+     */
+    public void stop() {
+        if (shared) {
+            throw new IllegalStateException("The shared ticking clock cannot be stopped");
+        }
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + ':' + "{resolutionNanos=" + resolutionNanos + ", running=" + running +
+                ", shared=" + shared + "}";
+    }
+
+}
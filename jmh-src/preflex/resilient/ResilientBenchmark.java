@@ -0,0 +1,76 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.resilient;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+/**
+ * Per-call cost of the resilience primitives of {@code preflex.resilient}, each alone and composed as a stack, in the
+ * success path and in the rejection path (see the {@code preflex.resilient.bench} namespace for the targets). Run with
+ * the GC profiler to see the allocation per call:
+ * <pre>
+ * lein with-profile +jmh run ResilientBenchmark -prof gc
+ * lein with-profile +jmh run ResilientBenchmark -p target=stack -p path=success,reject -prof gc
+ * lein with-profile +jmh run ResilientBenchmark -t 8
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResilientBenchmark {
+
+    private static final Object ARGUMENT = "result";
+
+    @Param({"bare", "partial-invokable", "latency-tracker", "success-failure-tracker", "circuit-breaker", "semaphore",
+        "fallback", "stack"})
+    public String target;
+
+    @Param({"success", "reject"})
+    public String path;
+
+    private IFn targetFn;
+
+    @Setup
+    public void setup() {
+        Clojure.var("clojure.core", "require").invoke(Clojure.read("preflex.resilient.bench"));
+        final IFn makeTarget = Clojure.var("preflex.resilient.bench", "make-target");
+        targetFn = (IFn) makeTarget.invoke(Clojure.read(":" + target), Clojure.read(":" + path));
+    }
+
+    /** Return the result, or the exception thrown in the rejection path, so that neither is optimized away. */
+    @Benchmark
+    public Object call() {
+        try {
+            return targetFn.invoke(ARGUMENT);
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+;   Copyright (c) Shantanu Kumar. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file LICENSE at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+
+(ns preflex.resilient.bench
+  "Benchmark targets for preflex.resilient.ResilientBenchmark. Every target is an arity-1 fn wrapping a task that
+  returns its argument (success path), or fails by being rejected or throwing ex-info (rejection path). Trackers do
+  nothing, so that only the cost of the resilience primitives is measured."
+  (:require
+    [preflex.invokable :as iv]
+    [preflex.resilient :as r]
+    [preflex.type      :as t]))
+
+
+(defn- task-fn
+  [path]
+  (case path
+    :success identity
+    :reject  (fn [_] (throw (ex-info "Task failed" {:cause :benchmark})))))
+
+
+(defn- nop-tracker
+  ([_])
+  ([_ _]))
+
+
+(defn- make-tripped-circuit-breaker
+  "Make a circuit breaker that always detects a fault and never retries, and trip it."
+  []
+  (let [cb (r/make-circuit-breaker
+             (reify
+               t/IMetricsRecorder   (record! [_])
+                                    (record! [_ status?])
+               t/IReinitializable   (reinit! [_])
+               clojure.lang.Counted (count   [_] 1)
+               clojure.lang.IDeref  (deref   [_] {:count 1})
+               t/IFaultDetector     (fault?  [_] true))
+             (reify
+               clojure.lang.IDeref (deref   [_] {})
+               t/IReinitializable  (reinit! [_])
+               t/IRetryResolver    (retry?  [_] false)))]
+    (try
+      (r/via-circuit-breaker cb #(throw (ex-info "Trip" {})))
+      (catch Exception _))
+    cb))
+
+
+(defn make-target
+  "Given target name (keyword) and path (:success or :reject), return an arity-1 benchmark target fn. Targets:
+    :bare                    - task alone, i.e. the cost of an ex-info throw in the rejection path
+    :partial-invokable       - task invoked via preflex.invokable/partial-invokable
+    :latency-tracker         - via-latency-tracker, task fails in the rejection path
+    :success-failure-tracker - via-success-failure-tracker, task fails in the rejection path
+    :circuit-breaker         - via-circuit-breaker, tripped circuit breaker in the rejection path
+    :semaphore               - via-semaphore, no permits in the rejection path
+    :fallback                - via-fallback, task fails and falls back in the rejection path
+    :stack                   - wrap-* composed as fallback(latency(success/failure(circuit-breaker(semaphore(task)))))
+                               with the semaphore rejecting in the rejection path"
+  [target path]
+  (let [task   (task-fn path)
+        reject? (= :reject path)]
+    (case target
+      :bare                    task
+      :partial-invokable       (fn [x] (t/apply-noarg (iv/partial-invokable task [x])))
+      :latency-tracker         (fn [x] (r/via-latency-tracker nop-tracker #(task x)))
+      :success-failure-tracker (fn [x] (r/via-success-failure-tracker nop-tracker #(task x)))
+      :circuit-breaker         (let [cb (if reject?
+                                          (make-tripped-circuit-breaker)
+                                          (r/make-circuit-breaker (r/make-serial-fault-detector Integer/MAX_VALUE)
+                                            (r/make-half-open-retry-resolver [1 :minutes])))]
+                                 (fn [x] (r/via-circuit-breaker cb #(identity x))))
+      :semaphore               (let [sem (r/make-counting-semaphore (if reject? 0 Integer/MAX_VALUE))]
+                                 (fn [x] (r/via-semaphore sem #(identity x))))
+      :fallback                (fn [x] (r/via-fallback [#(identity x)] #(task x)))
+      :stack                   (let [sem (r/make-counting-semaphore (if reject? 0 Integer/MAX_VALUE))
+                                     cb  (r/make-circuit-breaker (r/make-serial-fault-detector Integer/MAX_VALUE)
+                                           (r/make-half-open-retry-resolver [1 :minutes]))]
+                                 (->> identity
+                                   (r/wrap-semaphore sem)
+                                   (r/wrap-circuit-breaker cb)
+                                   (r/wrap-success-failure-tracker nop-tracker)
+                                   (r/wrap-latency-tracker nop-tracker)
+                                   (r/wrap-fallback [(constantly :fallback)]))))))
@@ -0,0 +1,85 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import preflex.util.LongClock;
+
+/**
+ * Record throughput of unpadded versus cache-line padded rolling sum/max under heavy contention. The event ID is
+ * fixed, so that no bucket rotation happens and only the cost of updating the head buckets of the shards is measured.
+ * <pre>
+ * lein with-profile +jmh run PaddingBenchmark -t 32
+ * lein with-profile +jmh run PaddingBenchmark -t 64
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(32)
+public class PaddingBenchmark {
+
+    private static final LongClock FIXED_CLOCK = new LongClock() {
+        @Override
+        public long next() {
+            return 1488033798157L;
+        }
+    };
+
+    @Param({"false", "true"})
+    public boolean padded;
+
+    @Param({"16", "64", "128"})
+    public int shardCount;
+
+    private IRollingRecord rollingSum;
+
+    private IRollingRecord rollingMax;
+
+    @Setup
+    public void setup() {
+        rollingSum = RollingMetrics.createRollingSum(11, 1000, FIXED_CLOCK, shardCount, padded);
+        rollingMax = RollingMetrics.createRollingMax(11, 1000, FIXED_CLOCK, shardCount, padded);
+    }
+
+    @Benchmark
+    public void recordSum() {
+        rollingSum.record(1);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadValue {
+        public long value;
+    }
+
+    @Benchmark
+    public void recordMax(ThreadValue threadValue) {
+        rollingMax.record(++threadValue.value);
+    }
+
+}
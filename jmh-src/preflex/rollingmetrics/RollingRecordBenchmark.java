@@ -0,0 +1,159 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.rollingmetrics;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import preflex.util.LongClock;
+import preflex.util.StripedLocal;
+
+/**
+ * Throughput and latency (sampled) of the rolling metrics engine for sum, max and store buckets across shard counts:
+ * <ul>
+ * <li>{@code record} - record at a fixed event ID, i.e. updating the head buckets only</li>
+ * <li>{@code recordRotating} - record at an event ID one bucket interval later than the previous record, i.e. every
+ *     record rotates the head (includes a shared atomic increment of the event ID)</li>
+ * <li>{@code readAll} and {@code readPrevious} - read and reduce the buckets of all shards</li>
+ * </ul>
+ * Run at 1 to 64 threads, and save the results with the commit ID to compare against later:
+ * <pre>
+ * lein with-profile +jmh run RollingRecordBenchmark -t 1  -rf json -rff rolling-record-t1.json
+ * lein with-profile +jmh run RollingRecordBenchmark -t 8  -rf json -rff rolling-record-t8.json
+ * lein with-profile +jmh run RollingRecordBenchmark -t 64 -rf json -rff rolling-record-t64.json
+ * lein with-profile +jmh run RollingRecordBenchmark.record -p kind=sum -p shardCount=0,16 -t 32
+ * </pre>
+ * Baseline results are recorded in {@code doc/benchmarks.md}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RollingRecordBenchmark {
+
+    private static final int BUCKET_COUNT = 11;
+    private static final int BUCKET_INTERVAL = 1000;
+    private static final int STORE_BUCKET_SIZE = 1024;
+
+    private static final long ORIGIN_EVENT_ID = 1488033798157L;
+
+    private static final LongClock FIXED_CLOCK = new LongClock() {
+        @Override
+        public long next() {
+            return ORIGIN_EVENT_ID;
+        }
+    };
+
+    @Param({"sum", "max", "store"})
+    public String kind;
+
+    /** 0 implies grow with contention. */
+    @Param({"0", "1", "4", "16"})
+    public int shardCount;
+
+    private IRollingRecord fixedRecord;
+
+    private IRollingRecord rotatingRecord;
+
+    private final AtomicLong rotatingEventID = new AtomicLong(ORIGIN_EVENT_ID);
+
+    private IRollingRecord create(LongClock clock) {
+        switch (kind) {
+        case "sum":   return RollingMetrics.createRollingSum(BUCKET_COUNT, BUCKET_INTERVAL, clock, shardCount);
+        case "max":   return RollingMetrics.createRollingMax(BUCKET_COUNT, BUCKET_INTERVAL, clock, shardCount);
+        case "store": return RollingMetrics.createRollingStore(BUCKET_COUNT, BUCKET_INTERVAL, STORE_BUCKET_SIZE,
+                clock, shardCount);
+        default:      throw new IllegalArgumentException("Expected kind to be sum, max or store, but found " + kind);
+        }
+    }
+
+    @Setup
+    public void setup() throws InterruptedException {
+        fixedRecord = create(FIXED_CLOCK);
+        rotatingRecord = create(new LongClock() {
+            @Override
+            public long next() {
+                return rotatingEventID.addAndGet(BUCKET_INTERVAL);
+            }
+        });
+        // fill all buckets of all shards, so that reads have data to reduce - a shard is selected per thread, hence
+        // fill from several threads started together (which also grows the shards when shard count is 0)
+        final long[] eventIDs = new long[BUCKET_COUNT * STORE_BUCKET_SIZE];
+        final long[] values = new long[eventIDs.length];
+        for (int i = 0; i < eventIDs.length; i++) {
+            eventIDs[i] = ORIGIN_EVENT_ID - (i % BUCKET_COUNT) * BUCKET_INTERVAL;
+            values[i] = i;
+        }
+        final int threadCount = 2 * (shardCount > 0 ? shardCount : StripedLocal.defaultMaxCount());
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    fixedRecord.record(eventIDs, values, 0, eventIDs.length);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (final Thread each: threads) {
+            each.join();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadValue {
+        public long value;
+    }
+
+    @Benchmark
+    public void record(ThreadValue threadValue) {
+        fixedRecord.record(++threadValue.value);
+    }
+
+    @Benchmark
+    public void recordRotating(ThreadValue threadValue) {
+        rotatingRecord.record(++threadValue.value);
+    }
+
+    @Benchmark
+    public long[] readAll() {
+        return fixedRecord.getAllElements();
+    }
+
+    @Benchmark
+    public long[] readPrevious() {
+        return fixedRecord.getPreviousElements();
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import preflex.rollingmetrics.IRollingRecord;
+import preflex.rollingmetrics.RollingMetrics;
+
+/**
+ * Cost of reading the system clock directly versus reading the cached value of a {@link TickingClock}, both bare and
+ * as the event ID source of a rolling sum.
+ * <pre>
+ * lein with-profile +jmh run ClockBenchmark
+ * lein with-profile +jmh run ClockBenchmark -t 8
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClockBenchmark {
+
+    private LongClock tickingMillis;
+
+    private LongClock tickingNanos;
+
+    private IRollingRecord directSum;
+
+    private IRollingRecord tickingSum;
+
+    @Setup
+    public void setup() {
+        tickingMillis = TickingClock.getShared().millisClock();
+        tickingNanos = TickingClock.getShared().nanosClock();
+        directSum = RollingMetrics.createRollingSum(11, 1000, RollingMetrics.MILLI_TIME_CLOCK, 1);
+        tickingSum = RollingMetrics.createRollingSum(11, 1000, tickingMillis, 1);
+    }
+
+    @Benchmark
+    public long directMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public long directNanos() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public long tickingMillis() {
+        return tickingMillis.next();
+    }
+
+    @Benchmark
+    public long tickingNanos() {
+        return tickingNanos.next();
+    }
+
+    @Benchmark
+    public void recordDirectMillis() {
+        directSum.record(1);
+    }
+
+    @Benchmark
+    public void recordTickingMillis() {
+        tickingSum.record(1);
+    }
+
+}
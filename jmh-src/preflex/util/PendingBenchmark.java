@@ -0,0 +1,69 @@
+/**
+ *   Copyright (c) Shantanu Kumar. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file LICENSE at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ *   the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package preflex.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link Pending} versus {@link RingBufferPending} running a tiny action, to be run at several thread
+ * counts since the difference shows only under contention.
+ * <pre>
+ * lein with-profile +jmh run PendingBenchmark -t 1
+ * lein with-profile +jmh run PendingBenchmark -t 8
+ * lein with-profile +jmh run PendingBenchmark -t 32
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PendingBenchmark {
+
+    @Param({"pending", "ring"})
+    public String impl;
+
+    private Pending pending;
+
+    /** Mutated only by actions, which are mutually exclusive. */
+    private long counter;
+
+    private final Runnable action = new Runnable() {
+        @Override
+        public void run() {
+            counter++;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        pending = "ring".equals(impl)? new RingBufferPending(): new Pending();
+    }
+
+    @Benchmark
+    public void run() {
+        pending.run(action);
+    }
+
+}
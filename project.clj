@@ -20,6 +20,11 @@
                                       [cheshire "5.8.0"]]
                        :source-paths ["test-hystrix"]
                        :main ^:skip-aot preflex.hystrix-main}
+             :jmh {:dependencies [[org.openjdk.jmh/jmh-core "1.21"]
+                                  [org.openjdk.jmh/jmh-generator-annprocess "1.21"]]
+                   :source-paths ["jmh-src"]
+                   :java-source-paths ["jmh-src"]
+                   :main org.openjdk.jmh.Main}
              :c17 {:dependencies [[org.clojure/clojure "1.7.0"]]}
              :c18 {:dependencies [[org.clojure/clojure "1.8.0"]]}
              :c19 {:dependencies [[org.clojure/clojure "1.9.0"]]}
@@ -9,16 +9,20 @@
 
 (ns preflex.metrics
   (:require
+    [clojure.java.io :as io]
     [preflex.type :as t]
     [preflex.util :as u])
   (:import
-    [java.util                   Arrays]
-    [java.util.concurrent        ArrayBlockingQueue BlockingQueue ExecutionException Future Semaphore
-                                 ThreadPoolExecutor ThreadLocalRandom TimeUnit RejectedExecutionException
-                                 TimeoutException]
-    [java.util.concurrent.atomic AtomicBoolean AtomicLong]
-    [preflex.rollingmetrics      IRollingCount IRollingRecord RollingMetrics]
-    [preflex.util                Stats]))
+    [java.util.concurrent               ArrayBlockingQueue BlockingQueue Callable ExecutionException Future Semaphore
+                                        ThreadPoolExecutor ThreadLocalRandom TimeUnit RejectedExecutionException
+                                        TimeoutException]
+    [java.util.concurrent.atomic        AtomicBoolean AtomicLong AtomicReferenceArray]
+    [clojure.lang                       IFn$L]
+    [preflex.rollingmetrics             CascadingRollingRecord EwmaRate IRollingCount IRollingRecord RollingMetrics]
+    [preflex.rollingmetrics.bucketstore HyperLogLogBucketStore StatsBucketStore TopKBucketStore]
+    [preflex.util                       KllSketch LogLinearHistogram LongClock OffHeapSlab OpenMetricsWriter
+                                        SeriesRegistry SeriesRegistry$SeriesFactory SeriesRegistry$SeriesVisitor
+                                        Stats StripedLocal StripedLocal$Cell]))
 
 
 ;; ----- dummy collectors -----
@@ -82,12 +86,47 @@
       clojure.lang.IDeref  (deref         [_] (reduce f collectors)))))
 
 
+(defn make-adaptive-sharding-collector
+  "Create a unified collector that starts with one collector, created by calling no-arg fn `g`, and adds collectors (up
+  to the number of CPU cores) only when concurrent `record!` calls contend, after which every thread sticks to a
+  collector until it runs into contention again. Re-initializing drops the collectors added so far, then re-initializes
+  the first one; records concurrent with it may be discarded, later ones are kept. Calling `deref` reduces the `deref`
+  results of all collectors using fn `f`, and `count` adds up their counts.
+  NOTE: Works only when `record!` operations on all collectors are associative and commutative, e.g. shared counters."
+  [f g]
+  (let [^StripedLocal striped (StripedLocal/create ^Callable g)]
+    (reify
+      t/IMetricsRecorder   (record!       [_] (let [^StripedLocal$Cell cell (.enter striped)]
+                                                (try
+                                                  (t/record! (.get cell))
+                                                  (finally
+                                                    (.exit cell)))))
+                           (record! [_ value] (let [^StripedLocal$Cell cell (.enter striped)]
+                                                (try
+                                                  (t/record! (.get cell) value)
+                                                  (finally
+                                                    (.exit cell)))))
+      t/IReinitializable   (reinit!       [_] (do
+                                                ;; drop before reinit, so no later record lands in a dropped one
+                                                (.shrink striped 1)
+                                                (doseq [each (.getAll striped)]
+                                                  (t/reinit! each))))
+      clojure.lang.Counted (count         [_] (->> (.getAll striped)
+                                                (map count)
+                                                (reduce +)))
+      clojure.lang.IDeref  (deref         [_] (->> (.getAll striped)
+                                                (map deref)
+                                                (reduce f))))))
+
+
 (defn resolve-shard-count
   "Resolve shard count. Arguments `:detect` and `:detect-java7` return a value up to 128 based on the number of
-  available CPU cores."
+  available CPU cores. Argument `:adaptive` returns 0, i.e. start with one shard and add shards (up to the number of
+  CPU cores) only when recording threads contend."
   ^long [shard-count]
-  (let [detected (* (max (.availableProcessors (Runtime/getRuntime)) 64) 2)] ; max 128 shards
+  (let [detected (* (min (.availableProcessors (Runtime/getRuntime)) 64) 2)] ; max 128 shards
     (case shard-count
+      :adaptive     0
       :detect       detected
       :detect-java7 (if (u/java8-or-higher?)  ; shard only when version lower than Java 8
                       1
@@ -96,6 +135,35 @@
       (int shard-count))))
 
 
+(defn- slab-shard-count
+  "Return the shard count for slab-backed buckets: one shard instead of growing with contention (0), because every
+  grown shard would allocate slab slots that are never freed."
+  ^long [^long shard-count]
+  (if (zero? shard-count)
+    1
+    shard-count))
+
+
+(defn resolve-long-clock
+  "Resolve event ID source as a preflex.util.LongClock instance. Argument may be a LongClock instance, or a no-arg fn
+  that returns a long integer. Fns with ^long return type hint (e.g. preflex.util/now-millis) are invoked unboxed."
+  ^LongClock [event-id-fn]
+  (cond
+    (instance? LongClock event-id-fn) event-id-fn
+    (instance? IFn$L event-id-fn)     (let [^IFn$L f event-id-fn]
+                                        (reify LongClock
+                                          (next [_] (.invokePrim f))))
+    :else                             (reify LongClock
+                                        (next [_] (long (event-id-fn))))))
+
+
+(defn record-rolling-batch
+  "Record a batch of values (long array) into a preflex.rollingmetrics.IRollingRecord instance, each value with its own
+  event ID (long array), in the index range from (inclusive) to (exclusive)."
+  [^IRollingRecord rolling-record event-ids values from to]
+  (.record rolling-record ^longs event-ids ^longs values (int from) (int to)))
+
+
 ;; ----- single-state recorders -----
 
 
@@ -108,7 +176,8 @@
     deref-key - the reporting keyword to associate the value with upon `deref`
   Optional arguments:
     :initial-value (long) - Value to initialize the counter with; default 0.
-    :shard-count   (int)  - Number of shards to create to reduce contention; auto-detect by default.
+    :shard-count   (int)  - Number of shards to create to reduce contention; auto-detect by default, :adaptive to
+                            start with one shard and add shards only under contention.
     :counter-shard-count  - overrides :shard-count"
   ([deref-key]
     (make-integer-counter deref-key default-counter-options))
@@ -123,9 +192,10 @@
                   t/IReinitializable   (reinit!       [_] (.set counter initial-value))
                   clojure.lang.Counted (count         [_] (.get counter))
                   clojure.lang.IDeref  (deref         [_] {deref-key (.get counter)}))))]
-      (if (> n 1)
-        (make-sharding-collector + (vec (repeatedly n f)))
-        (f)))))
+      (cond
+        (> n 1)   (make-sharding-collector + (vec (repeatedly n f)))
+        (zero? n) (make-adaptive-sharding-collector (partial merge-with +) f)
+        :else     (f)))))
 
 
 (defn make-boolean-collector
@@ -162,6 +232,50 @@
                                                 deref-falsy-key  (count falsy-counter)})))))
 
 
+;; ----- exponentially weighted moving rates -----
+
+
+(def default-ewma-windows {:m1  60000    ; 1 minute
+                           :m5  300000   ; 5 minutes
+                           :m15 900000}) ; 15 minutes
+
+
+(defn make-ewma-rate-collector
+  "Create a lock-free collector of exponentially weighted moving average (EWMA) rates of recorded values, like the Unix
+  load averages. Recorded values are accumulated in stripes and folded into the averages once per tick, so the rates
+  decay smoothly instead of dropping with buckets. Optional args default to 1, 5 and 15 minute rates per second.
+  Arguments:
+    deref-key (keyword) key to associate the rates map with (upon deref)
+  Options:
+    :event-id-fn   (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :rate-unit     (integer)  event IDs per rate unit (default 1000 = per second)
+    :shard-count   (integer)  number of accumulator shards to split write-load across (default 0: grow with contention)
+    :tick-interval (integer)  event IDs per tick to fold the accumulated values in at (default 5000 = 5 seconds)
+    :windows       (map)      rate key to window size in event IDs (default {:m1 60000 :m5 300000 :m15 900000})"
+  ([deref-key]
+    (make-ewma-rate-collector deref-key {}))
+  ([deref-key {:keys [event-id-fn
+                      ^long rate-unit
+                      shard-count
+                      ^long tick-interval
+                      windows]
+               :or {event-id-fn   RollingMetrics/MILLI_TIME_CLOCK
+                    rate-unit     EwmaRate/DEFAULT_RATE_UNIT
+                    shard-count   0
+                    tick-interval EwmaRate/DEFAULT_TICK_INTERVAL
+                    windows       default-ewma-windows}}]
+    (let [rate-keys (vec (keys windows))
+          ewma-rate (EwmaRate. tick-interval rate-unit (long-array (map windows rate-keys))
+                      (resolve-long-clock event-id-fn) (int shard-count))]
+      (reify
+        t/IMetricsRecorder  (record!   [_] (.record ewma-rate 1))
+                            (record! [_ v] (.record ewma-rate v))
+        t/IMetricsBatchRecorder (record-batch! [_ ids vs] (.record ewma-rate ^longs vs 0 (alength ^longs vs)))
+                                (record-batch! [_ ids vs from to] (.record ewma-rate ^longs vs (int from) (int to)))
+        t/IReinitializable  (reinit!   [_] (.reset  ewma-rate))
+        clojure.lang.IDeref (deref     [_] {deref-key (zipmap rate-keys (.getRates ewma-rate))})))))
+
+
 ;; ----- rolling count and percentiles -----
 
 
@@ -174,33 +288,74 @@
     :bucket-interval (integer)  diff between min and max possible event IDs in any bucket (default 1000 = 1 second)
     :buckets-key     (keyword)  key to associate the buckets data in the deref result (nil omits bucket data)
     :deref-head?     (boolean)  query even the current/head bucket during deref? (false by default)
-    :event-id-fn     (function) no-arg fn to return latest event ID (returns current time in milliseconds by default)
-    :shard-count     (integer)  number of shards to split write-load across"
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :ewma-key        (keyword)  key to associate EWMA rates with in the deref result (default nil: no EWMA rates)
+    :ewma-options    (map)      options for make-ewma-rate-collector, inheriting :event-id-fn and :shard-count
+    :padded?         (boolean)  pad buckets and shards against false sharing, for heavily contended use (default false)
+    :persist-file    (path/File) keep buckets in this memory-mapped file to survive restarts and to be readable by
+                                 other processes, ignores :padded?, :shard-count and :slab (default nil: in memory)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)
+    :slab            (OffHeapSlab) keep buckets in this shared off-heap slab, ignores :padded? (default nil: on heap)
+                                   - every shard allocates its slots upfront, slots are never freed; hence :shard-count
+                                   0 (grow with contention) is treated as 1, and a full slab fails at creation"
   ([deref-key ^long bucket-count]
     (make-rolling-integer-counter deref-key bucket-count {}))
   ([deref-key ^long bucket-count {:keys [^long bucket-interval
                                          buckets-key
                                          deref-head?
                                          event-id-fn
-                                         shard-count]
+                                         ewma-key
+                                         ewma-options
+                                         padded?
+                                         persist-file
+                                         shard-count
+                                         slab]
                                   :or {bucket-interval 1000  ; 1 second
                                        deref-head?     false ; do not return current bucket
-                                       event-id-fn     u/now-millis
+                                       event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+                                       padded?         false
                                        shard-count     0}}]
-    (let [^IRollingRecord rolling-sum (RollingMetrics/createRollingSum
-                                        bucket-count bucket-interval event-id-fn shard-count)
+    (let [ewma-collector (when ewma-key
+                           (make-ewma-rate-collector ewma-key (merge {:event-id-fn event-id-fn
+                                                                      :shard-count shard-count}
+                                                                ewma-options)))
+          ^IRollingRecord rolling-sum (cond
+                                        persist-file (RollingMetrics/createPersistentRollingSum
+                                                       (io/file persist-file) bucket-count bucket-interval
+                                                       (resolve-long-clock event-id-fn))
+                                        slab         (RollingMetrics/createRollingSum
+                                                       bucket-count bucket-interval (resolve-long-clock event-id-fn)
+                                                       (int (slab-shard-count shard-count)) ^OffHeapSlab slab)
+                                        :else        (RollingMetrics/createRollingSum
+                                                       bucket-count bucket-interval (resolve-long-clock event-id-fn)
+                                                       (int shard-count) (boolean padded?)))
           find-elems (if deref-head?
                        (fn ^longs [] (.getAllElements rolling-sum))
                        (fn ^longs [] (.getPreviousElements rolling-sum)))]
       (reify
-        t/IMetricsRecorder   (record!   [_] (.record rolling-sum 1))
-                             (record! [_ v] (.record rolling-sum v))
-        t/IReinitializable   (reinit!   [_] (.reset  rolling-sum))
+        t/IMetricsRecorder   (record!   [_] (do
+                                              (.record rolling-sum 1)
+                                              (when ewma-collector (t/record! ewma-collector 1))))
+                             (record! [_ v] (do
+                                              (.record rolling-sum v)
+                                              (when ewma-collector (t/record! ewma-collector v))))
+        t/IMetricsBatchRecorder (record-batch! [this ids vs] (t/record-batch! this ids vs 0 (alength ^longs ids)))
+                                (record-batch! [_ ids vs from to] (do
+                                                                    (record-rolling-batch rolling-sum ids vs from to)
+                                                                    (when ewma-collector
+                                                                      (t/record-batch! ewma-collector ids vs
+                                                                        from to))))
+        t/IReinitializable   (reinit!   [_] (do
+                                              (.reset  rolling-sum)
+                                              (when ewma-collector (t/reinit! ewma-collector))))
         clojure.lang.Counted (count     [_] (Stats/sum (find-elems)))
         clojure.lang.IDeref  (deref     [_] (let [^longs elems (find-elems)
-                                                  deref-result {deref-key (Stats/sum elems)}]
-                                              (if buckets-key
-                                                (assoc deref-result buckets-key (vec elems))
+                                                  deref-result {deref-key (Stats/sum elems)}
+                                                  deref-result (if buckets-key
+                                                                 (assoc deref-result buckets-key (vec elems))
+                                                                 deref-result)]
+                                              (if ewma-collector
+                                                (merge deref-result (deref ewma-collector))
                                                 deref-result)))))))
 
 
@@ -216,8 +371,12 @@
     :buckets-truthy-key (keyword)  key to associate the truthy buckets data in the deref result (nil omits bucket data)
     :buckets-falsy-key  (keyword)  key to associate the falsy buckets data in the deref result (nil omits bucket data)
     :deref-head?     (boolean)  query even the current bucket during deref? (false by default)
-    :event-id-fn     (function) no-arg fn to return latest event ID (returns current time in milliseconds by default)
-    :shard-count     (integer)  number of shards to split write-load across"
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :padded?         (boolean)  pad buckets and shards against false sharing, for heavily contended use (default false)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)
+    :slab            (OffHeapSlab) keep buckets in this shared off-heap slab, ignores :padded? (default nil: on heap)
+                                   - every shard allocates its slots upfront, slots are never freed; hence :shard-count
+                                   0 (grow with contention) is treated as 1, and a full slab fails at creation"
   ([deref-truthy-key deref-falsy-key ^long bucket-count]
     (make-rolling-boolean-counter deref-truthy-key deref-falsy-key bucket-count {}))
   ([deref-truthy-key deref-falsy-key ^long bucket-count
@@ -226,15 +385,24 @@
             buckets-falsy-key
             deref-head?
             event-id-fn
-            shard-count]
+            padded?
+            shard-count
+            slab]
      :or {bucket-interval 1000  ; 1 second
           deref-head?     false ; do not return current bucket
-          event-id-fn     u/now-millis
+          event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+          padded?         false
           shard-count     0}}]
-    (let [^IRollingRecord rolling-truthy-sum (RollingMetrics/createRollingSum
-                                               bucket-count bucket-interval event-id-fn shard-count)
-          ^IRollingRecord rolling-falsy-sum  (RollingMetrics/createRollingSum
-                                               bucket-count bucket-interval event-id-fn shard-count)
+    (let [^LongClock event-id-clock (resolve-long-clock event-id-fn)
+          make-rolling-sum (fn ^IRollingRecord []
+                             (if slab
+                               (RollingMetrics/createRollingSum
+                                 bucket-count bucket-interval event-id-clock (int (slab-shard-count shard-count))
+                                 ^OffHeapSlab slab)
+                               (RollingMetrics/createRollingSum
+                                 bucket-count bucket-interval event-id-clock (int shard-count) (boolean padded?))))
+          ^IRollingRecord rolling-truthy-sum (make-rolling-sum)
+          ^IRollingRecord rolling-falsy-sum  (make-rolling-sum)
           find-elems (if deref-head?
                        (fn [] {deref-truthy-key (.getAllElements rolling-truthy-sum)
                                deref-falsy-key  (.getAllElements rolling-falsy-sum)})
@@ -266,24 +434,55 @@
     :bucket-interval (integer)  diff between min and max possible event IDs in any bucket (default 1000 = 1 second)
     :buckets-key     (keyword)  key to associate the buckets data in the deref result (nil omits bucket data)
     :deref-head?     (boolean)  query even the current bucket during deref? (false by default)
-    :event-id-fn     (function) no-arg fn to return latest event ID (returns current time in milliseconds by default)
-    :shard-count     (integer)  number of shards to split write-load across"
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :padded?         (boolean)  pad buckets and shards against false sharing, for heavily contended use (default false)
+    :persist-file    (path/File) keep buckets in this memory-mapped file to survive restarts and to be readable by
+                                 other processes, ignores :padded?, :shard-count and :slab (default nil: in memory)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)
+    :slab            (OffHeapSlab) keep buckets in this shared off-heap slab, ignores :padded? (default nil: on heap)
+                                   - every shard allocates its slots upfront, slots are never freed; hence :shard-count
+                                   0 (grow with contention) is treated as 1, and a full slab fails at creation"
   ([deref-key ^long bucket-count {:keys [^long bucket-interval
                                          buckets-key
                                          deref-head?
                                          event-id-fn
-                                         shard-count]
+                                         padded?
+                                         persist-file
+                                         shard-count
+                                         slab]
                                   :or {bucket-interval 1000  ; 1 second
                                        deref-head?     false ; do not return current bucket
-                                       event-id-fn     u/now-millis
+                                       event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+                                       padded?         false
                                        shard-count     0}}]
-    (let [^IRollingRecord rolling-max (RollingMetrics/createRollingMax
-                                        bucket-count bucket-interval event-id-fn shard-count)]
+    (let [^IRollingRecord rolling-max (cond
+                                        persist-file (RollingMetrics/createPersistentRollingMax
+                                                       (io/file persist-file) bucket-count bucket-interval
+                                                       (resolve-long-clock event-id-fn))
+                                        slab         (RollingMetrics/createRollingMax
+                                                       bucket-count bucket-interval (resolve-long-clock event-id-fn)
+                                                       (int (slab-shard-count shard-count)) ^OffHeapSlab slab)
+                                        :else        (RollingMetrics/createRollingMax
+                                                       bucket-count bucket-interval (resolve-long-clock event-id-fn)
+                                                       (int shard-count) (boolean padded?)))]
       (reify
         t/IMetricsRecorder  (record!   [_] (throw (UnsupportedOperationException.
                                                     "Arity-0 is not allowed, must pass value argument")))
                             (record! [_ v] (.record rolling-max v))
+        t/IMetricsBatchRecorder (record-batch! [_ ids vs] (record-rolling-batch rolling-max ids vs 0
+                                                            (alength ^longs ids)))
+                                (record-batch! [_ ids vs from to] (record-rolling-batch rolling-max ids vs from to))
         t/IReinitializable  (reinit!   [_] (.reset  rolling-max))
+        t/IOpenMetricsExposable (expose-open-metrics! [_ w] (let [^longs elements (if deref-head?
+                                                                                    (.getAllElements rolling-max)
+                                                                                    (.getPreviousElements rolling-max))
+                                                                  n (alength elements)]
+                                                              (.gauge ^OpenMetricsWriter w
+                                                                (loop [i 0
+                                                                       m 0]
+                                                                  (if (< i n)
+                                                                    (recur (unchecked-inc i) (max m (aget elements i)))
+                                                                    m)))))
         clojure.lang.IDeref (deref     [_] (let [^ints elements (if deref-head?
                                                                   (.getAllElements rolling-max)
                                                                   (.getPreviousElements rolling-max))
@@ -305,8 +504,13 @@
     :bucket-capacity (integer) max number of values in every bucket
     :buckets-key     (keyword)  key to associate the buckets data in the deref result (nil omits bucket data)
     :deref-head?     (boolean)  query the current bucket during deref? (false by default)
-    :event-id-fn     (function) no-arg fn to return latest event ID (returns current time in milliseconds by default)
-    :shard-count     (integer)  number of shards to split write-load across"
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :sampling        (keyword)  values to keep when a bucket exceeds capacity (default :last)
+                                :last      - the last bucket-capacity values
+                                :reservoir - uniform random sample of all values in the bucket
+                                :sketch    - KLL quantile sketch of all values (ignores bucket-capacity, buckets-key)
+    :sketch-k        (integer)  accuracy of :sketch, ~1.7/k rank error using ~3k values per bucket (default 200)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)"
   ([deref-key percentiles ^long bucket-count]
     (make-rolling-percentile-collector deref-key percentiles bucket-count {}))
   ([deref-key percentiles ^long bucket-count
@@ -315,34 +519,468 @@
             buckets-key
             deref-head?
             event-id-fn
+            sampling
+            ^long sketch-k
             shard-count]
      :or {bucket-interval 1000  ; 1 second
           bucket-capacity 128   ; max 128 values in every bucket
           deref-head?     false ; do not return current bucket
-          event-id-fn     u/now-millis
+          event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+          sampling        :last
+          sketch-k        KllSketch/DEFAULT_K
           shard-count     0}}]
-    (let [^IRollingRecord rolling-store (RollingMetrics/createRollingStore
-                                          bucket-count bucket-interval bucket-capacity event-id-fn shard-count)]
+    (let [^LongClock clock (resolve-long-clock event-id-fn)
+          ^IRollingRecord rolling-store (case sampling
+                                          :last      (RollingMetrics/createRollingStore
+                                                       bucket-count bucket-interval bucket-capacity clock
+                                                       (int shard-count))
+                                          :reservoir (RollingMetrics/createRollingReservoir
+                                                       bucket-count bucket-interval bucket-capacity clock
+                                                       (int shard-count))
+                                          :sketch    (RollingMetrics/createRollingSketch
+                                                       bucket-count bucket-interval sketch-k clock
+                                                       (int shard-count))
+                                          (throw (IllegalArgumentException.
+                                                   (str "Expected :sampling to be :last, :reservoir or :sketch,"
+                                                     " but found " (pr-str sampling)))))
+          sample-metrics (if (= :sketch sampling)
+                           (fn [^longs sketch]
+                             (when (pos? (KllSketch/count sketch))
+                               (t/->SampleMetrics
+                                 (KllSketch/max  sketch) ; max
+                                 (KllSketch/mean sketch) ; mean
+                                 (double (KllSketch/percentile sketch 50)) ; median
+                                 (KllSketch/min  sketch) ; min
+                                 ;; percentiles
+                                 (->> percentiles
+                                   (map #(KllSketch/percentile sketch %))
+                                   (zipmap percentiles)))))
+                           (fn [^longs elements]  ; rolling store and reservoir return sorted elements
+                             (when (pos? (alength elements))
+                               (t/->SampleMetrics
+                                 (Stats/last    elements) ; max
+                                 (Stats/average elements) ; mean
+                                 (Stats/median  elements) ; median
+                                 (Stats/first   elements) ; min
+                                 ;; percentiles
+                                 (->> percentiles
+                                   (map #(Stats/percentile elements %))
+                                   (zipmap percentiles))))))
+          buckets-key (when-not (= :sketch sampling)
+                        buckets-key)
+          quantiles   (double-array (map #(/ (double %) 100.0) percentiles))
+          find-elems  (if deref-head?
+                        (fn ^longs [] (.getAllElements rolling-store))
+                        (fn ^longs [] (.getPreviousElements rolling-store)))]
       (reify
         t/IMetricsRecorder  (record!   [_] (throw (UnsupportedOperationException.
                                                     "Arity-0 is not allowed, must pass value argument")))
                             (record! [_ v] (.record rolling-store v))
+        t/IMetricsBatchRecorder (record-batch! [_ ids vs] (record-rolling-batch rolling-store ids vs 0
+                                                            (alength ^longs ids)))
+                                (record-batch! [_ ids vs from to] (record-rolling-batch rolling-store ids vs from to))
         t/IReinitializable  (reinit!   [_] (.reset  rolling-store))
-        clojure.lang.IDeref (deref     [_] (let [^longs elements (if deref-head?
-                                                                   (.getAllElements rolling-store)
-                                                                   (.getPreviousElements rolling-store))
+        t/IOpenMetricsExposable (expose-open-metrics! [_ w] (let [pvals (some-> (find-elems) sample-metrics
+                                                                              :percentiles)]
+                                                              (.summary ^OpenMetricsWriter w quantiles
+                                                                (double-array (map #(double (get pvals % Double/NaN))
+                                                                                percentiles)))))
+        clojure.lang.IDeref (deref     [_] (let [^longs elements (find-elems)
                                                  assoc-when (fn [m k] (if k
                                                                         (assoc m k (vec elements))
                                                                         m))]
-                                             (Arrays/sort elements)
-                                             (-> {deref-key (when (pos? (alength elements))
+                                             (-> {deref-key (sample-metrics elements)}
+                                               (assoc-when buckets-key))))))))
+
+
+(defn make-rolling-histogram-collector
+  "Create bucketed rolling percentile collector that counts every recorded value in a fixed-size log-linear histogram
+  per bucket, instead of storing a limited number of values per bucket. Percentiles are accurate to the histogram
+  precision. Optional args default to making a per-second counter.
+  Arguments:
+    deref-key    (keyword) key to associate the count with (upon deref)
+    percentiles  (seqable) list of percentiles to calculate
+    bucket-count (integer) number of buckets in the buffer
+  Options:
+    :bucket-interval (integer)  diff between min and max possible event IDs in any bucket (default 1000 = 1 second)
+    :buckets-key     (keyword)  key to associate the {value count} histogram data in the deref result (nil omits it)
+    :deref-head?     (boolean)  query the current bucket during deref? (false by default)
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :exposed-bounds  (seqable)  ascending upper bounds of the OpenMetrics buckets, each counting the histogram slots
+                                whose highest value is within it (default nil: a bucket per histogram slot)
+    :max-value       (integer)  highest value tracked with precision, higher values are clamped (default 1 hour in ms)
+    :precision-bits  (integer)  linear sub-buckets per power of two = 2^precision-bits (default 5, i.e. ~3% error)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)"
+  ([deref-key percentiles ^long bucket-count]
+    (make-rolling-histogram-collector deref-key percentiles bucket-count {}))
+  ([deref-key percentiles ^long bucket-count
+    {:keys [^long bucket-interval
+            buckets-key
+            deref-head?
+            event-id-fn
+            exposed-bounds
+            ^long max-value
+            ^long precision-bits
+            shard-count]
+     :or {bucket-interval 1000    ; 1 second
+          deref-head?     false   ; do not return current bucket
+          event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+          max-value       3600000 ; 1 hour in milliseconds
+          precision-bits  5       ; 32 linear sub-buckets per power of two
+          shard-count     0}}]
+    (let [^LogLinearHistogram histogram (LogLinearHistogram. max-value precision-bits)
+          ^IRollingRecord rolling-histogram (RollingMetrics/createRollingHistogram
+                                              bucket-count bucket-interval histogram (resolve-long-clock event-id-fn)
+                                              (int shard-count))
+          slot-count (.getSlotCount histogram)
+          ^longs bounds (when (seq exposed-bounds)
+                          (when-not (apply < exposed-bounds)
+                            (throw (IllegalArgumentException.
+                                     (str "Expected :exposed-bounds to be ascending, but found "
+                                       (pr-str exposed-bounds)))))
+                          (long-array exposed-bounds))
+          count-map  (fn [^longs elements]
+                       (loop [i 0
+                              m (sorted-map)]
+                         (if (< i slot-count)
+                           (let [n (aget elements i)]
+                             (recur (unchecked-inc i) (if (pos? n)
+                                                        (assoc m (.highestValueOf histogram i) n)
+                                                        m)))
+                           m)))]
+      (reify
+        t/IMetricsRecorder  (record!   [_] (throw (UnsupportedOperationException.
+                                                    "Arity-0 is not allowed, must pass value argument")))
+                            (record! [_ v] (.record rolling-histogram v))
+        t/IMetricsBatchRecorder (record-batch! [_ ids vs] (record-rolling-batch rolling-histogram ids vs 0
+                                                            (alength ^longs ids)))
+                                (record-batch! [_ ids vs from to] (record-rolling-batch rolling-histogram ids vs
+                                                                    from to))
+        t/IReinitializable  (reinit!   [_] (.reset  rolling-histogram))
+        t/IOpenMetricsExposable (expose-open-metrics! [_ w] (let [^longs elements (if deref-head?
+                                                                                    (.getAllElements rolling-histogram)
+                                                                                    (.getPreviousElements
+                                                                                      rolling-histogram))]
+                                                              (.histogram ^OpenMetricsWriter w histogram elements
+                                                                bounds)))
+        clojure.lang.IDeref (deref     [_] (let [^longs elements (if deref-head?
+                                                                   (.getAllElements rolling-histogram)
+                                                                   (.getPreviousElements rolling-histogram))
+                                                 assoc-when (fn [m k] (if k
+                                                                        (assoc m k (count-map elements))
+                                                                        m))]
+                                             (-> {deref-key (when (pos? (.count histogram elements))
                                                               (t/->SampleMetrics
-                                                                (Stats/last    elements) ; max
-                                                                (Stats/average elements) ; mean
-                                                                (Stats/median  elements) ; median
-                                                                (Stats/first   elements) ; min
+                                                                (.max  histogram elements) ; max
+                                                                (.mean histogram elements) ; mean
+                                                                (double (.percentile histogram elements 50)) ; median
+                                                                (.min  histogram elements) ; min
                                                                 ;; percentiles
                                                                 (->> percentiles
-                                                                  (map #(Stats/percentile elements %))
+                                                                  (map #(.percentile histogram elements %))
                                                                   (zipmap percentiles))))}
                                                (assoc-when buckets-key))))))))
+
+
+(defn make-rolling-stats-collector
+  "Create bucketed rolling summary statistics (count, mean, standard deviation, min and max) collector that keeps no
+  samples, so deref costs O(bucket-count) without sorting. Optional args default to making a per-second collector.
+  Arguments:
+    deref-key    (keyword) key to associate the stats with (upon deref)
+    bucket-count (integer) number of buckets in the buffer
+  Options:
+    :bucket-interval (integer)  diff between min and max possible event IDs in any bucket (default 1000 = 1 second)
+    :deref-head?     (boolean)  query even the current bucket during deref? (false by default)
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)
+  Deref returns {deref-key {:count n :max x :mean m :min y :stddev s}}."
+  ([deref-key ^long bucket-count]
+    (make-rolling-stats-collector deref-key bucket-count {}))
+  ([deref-key ^long bucket-count {:keys [^long bucket-interval
+                                         deref-head?
+                                         event-id-fn
+                                         shard-count]
+                                  :or {bucket-interval 1000  ; 1 second
+                                       deref-head?     false ; do not return current bucket
+                                       event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+                                       shard-count     0}}]
+    (let [^IRollingRecord rolling-stats (RollingMetrics/createRollingStats
+                                          bucket-count bucket-interval (resolve-long-clock event-id-fn)
+                                          (int shard-count))
+          find-elems (if deref-head?
+                       (fn ^longs [] (.getAllElements rolling-stats))
+                       (fn ^longs [] (.getPreviousElements rolling-stats)))
+          min-max    (double-array [0.0 1.0])]
+      (reify
+        t/IMetricsRecorder   (record!   [_] (throw (UnsupportedOperationException.
+                                                     "Arity-0 is not allowed, must pass value argument")))
+                             (record! [_ v] (.record rolling-stats v))
+        t/IMetricsBatchRecorder (record-batch! [_ ids vs] (record-rolling-batch rolling-stats ids vs 0
+                                                            (alength ^longs ids)))
+                                (record-batch! [_ ids vs from to] (record-rolling-batch rolling-stats ids vs from to))
+        t/IReinitializable   (reinit!   [_] (.reset  rolling-stats))
+        t/IOpenMetricsExposable (expose-open-metrics! [_ w] (let [^longs elems (find-elems)]
+                                                              (.summary ^OpenMetricsWriter w min-max
+                                                                (if (pos? (StatsBucketStore/count elems))
+                                                                  (double-array [(StatsBucketStore/min elems)
+                                                                                 (StatsBucketStore/max elems)])
+                                                                  (double-array [Double/NaN Double/NaN])))))
+        clojure.lang.Counted (count     [_] (StatsBucketStore/count (find-elems)))
+        clojure.lang.IDeref  (deref     [_] (let [^longs elems (find-elems)]
+                                              {deref-key {:count  (StatsBucketStore/count  elems)
+                                                          :max    (StatsBucketStore/max    elems)
+                                                          :mean   (StatsBucketStore/mean   elems)
+                                                          :min    (StatsBucketStore/min    elems)
+                                                          :stddev (StatsBucketStore/stddev elems)}}))))))
+
+
+(defn key-hash
+  "Return a well distributed 64-bit hash of the given value, hashing integers within the long range as long integers and
+  other values (including larger integers) by their Clojure hash."
+  ^long [v]
+  (HyperLogLogBucketStore/hash (if (and (integer? v) (<= Long/MIN_VALUE v Long/MAX_VALUE))
+                                 (long v)
+                                 (hash v))))
+
+
+(defn make-rolling-cardinality-collector
+  "Create bucketed rolling distinct-count collector that estimates the number of distinct values (e.g. users, tenants
+  or keys) recorded, using a fixed-size HyperLogLog sketch per bucket instead of storing the values. Values are hashed
+  by `key-hash`. Optional args default to making a per-second collector.
+  Arguments:
+    deref-key    (keyword) key to associate the estimated distinct count with (upon deref)
+    bucket-count (integer) number of buckets in the buffer
+  Options:
+    :bucket-interval (integer)  diff between min and max possible event IDs in any bucket (default 1000 = 1 second)
+    :deref-head?     (boolean)  query even the current bucket during deref? (false by default)
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :precision       (integer)  2^precision bytes per bucket, 4 to 14, ~1.04/sqrt(2^precision) error (default 12)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)"
+  ([deref-key ^long bucket-count]
+    (make-rolling-cardinality-collector deref-key bucket-count {}))
+  ([deref-key ^long bucket-count {:keys [^long bucket-interval
+                                         deref-head?
+                                         event-id-fn
+                                         ^long precision
+                                         shard-count]
+                                  :or {bucket-interval 1000  ; 1 second
+                                       deref-head?     false ; do not return current bucket
+                                       event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+                                       precision       HyperLogLogBucketStore/DEFAULT_PRECISION
+                                       shard-count     0}}]
+    (let [^IRollingRecord rolling-registers (RollingMetrics/createRollingCardinality
+                                              bucket-count bucket-interval precision (resolve-long-clock event-id-fn)
+                                              (int shard-count))
+          find-elems (if deref-head?
+                       (fn ^longs [] (.getAllElements rolling-registers))
+                       (fn ^longs [] (.getPreviousElements rolling-registers)))]
+      (reify
+        t/IMetricsRecorder   (record!   [_] (throw (UnsupportedOperationException.
+                                                     "Arity-0 is not allowed, must pass value argument")))
+                             (record! [_ v] (.record rolling-registers (key-hash v)))
+        t/IReinitializable   (reinit!   [_] (.reset  rolling-registers))
+        clojure.lang.Counted (count     [_] (HyperLogLogBucketStore/estimate (find-elems)))
+        clojure.lang.IDeref  (deref     [_] {deref-key (HyperLogLogBucketStore/estimate (find-elems))})))))
+
+
+(defn make-rolling-top-k-collector
+  "Create bucketed rolling heavy-hitters collector that tracks the top K most frequent keys (e.g. tenants, SQL
+  fingerprints or endpoints) recorded, using a count-min sketch and up to K candidate keys per bucket. Memory is fixed
+  regardless of the number of distinct keys. Estimated counts may overcount by about total * 2.72 / sketch-width.
+  Keys are recorded by their `key-hash`, and resolved back on deref via a direct-mapped cache of recently recorded keys;
+  a key evicted from the cache by a colliding key (unlikely for a heavy hitter) is reported as its hash. Optional args
+  default to making a per-second collector.
+  Arguments:
+    deref-key    (keyword) key to associate the top keys with (upon deref)
+    k            (integer) number of top keys to track
+    bucket-count (integer) number of buckets in the buffer
+  Options:
+    :bucket-interval (integer)  diff between min and max possible event IDs in any bucket (default 1000 = 1 second)
+    :deref-head?     (boolean)  query even the current bucket during deref? (false by default)
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :key-cache-size  (integer)  number of recently recorded keys to resolve hashes (default 64 * k, min 1024)
+    :shard-count     (integer)  number of shards to split write-load across (default 0: grow with contention)
+    :sketch-depth    (integer)  number of count-min sketch rows (default 4)
+    :sketch-width    (integer)  number of count-min sketch counters per row, power of two (default 512)
+  Deref returns {deref-key {:total n :top [[key estimated-count] ...]}}, most frequent key first."
+  ([deref-key ^long k ^long bucket-count]
+    (make-rolling-top-k-collector deref-key k bucket-count {}))
+  ([deref-key ^long k ^long bucket-count {:keys [^long bucket-interval
+                                                 deref-head?
+                                                 event-id-fn
+                                                 key-cache-size
+                                                 shard-count
+                                                 ^long sketch-depth
+                                                 ^long sketch-width]
+                                          :or {bucket-interval 1000  ; 1 second
+                                               deref-head?     false ; do not return current bucket
+                                               event-id-fn     RollingMetrics/MILLI_TIME_CLOCK
+                                               shard-count     0
+                                               sketch-depth    TopKBucketStore/DEFAULT_DEPTH
+                                               sketch-width    TopKBucketStore/DEFAULT_WIDTH}}]
+    (let [^IRollingRecord rolling-top-k (RollingMetrics/createRollingTopK
+                                          bucket-count bucket-interval k sketch-depth sketch-width
+                                          (resolve-long-clock event-id-fn) (int shard-count))
+          find-elems (if deref-head?
+                       (fn ^longs [] (.getAllElements rolling-top-k))
+                       (fn ^longs [] (.getPreviousElements rolling-top-k)))
+          cache-size (let [n (long (or key-cache-size (max 1024 (* 64 k))))]  ; round up to a power of two
+                       (if (= 1 (Long/bitCount n))
+                         n
+                         (bit-shift-left (Long/highestOneBit n) 1)))
+          cache-mask (dec cache-size)
+          key-cache  (AtomicReferenceArray. (int cache-size))
+          cache-slot (fn ^long [^long h] (bit-and h cache-mask))
+          resolve-key (fn [^long h]
+                        (let [v (.get key-cache (cache-slot h))]
+                          (if (and (some? v) (= h (key-hash v)))
+                            v
+                            h)))]
+      (reify
+        t/IMetricsRecorder   (record!   [_] (throw (UnsupportedOperationException.
+                                                     "Arity-0 is not allowed, must pass value argument")))
+                             (record! [_ v] (let [h (key-hash v)]
+                                              (.lazySet key-cache (cache-slot h) v)
+                                              (.record rolling-top-k h)))
+        t/IReinitializable   (reinit!   [_] (.reset  rolling-top-k))
+        clojure.lang.Counted (count     [_] (TopKBucketStore/total (find-elems)))
+        clojure.lang.IDeref  (deref     [_] (let [^longs elems (find-elems)]
+                                              {deref-key {:total (TopKBucketStore/total elems)
+                                                          :top   (mapv (fn [i]
+                                                                         (let [i (int i)]
+                                                                           [(resolve-key
+                                                                              (TopKBucketStore/topHash elems i))
+                                                                            (TopKBucketStore/topEstimate elems i)]))
+                                                                   (range (TopKBucketStore/topCount elems)))}}))))))
+
+
+(defn make-cascading-rolling-counter
+  "Create a rolling count collector at several resolutions, e.g. [[60 1000] [60 60000] [24 3600000]] for per-second
+  counts over the last minute, per-minute counts over the last hour and per-hour counts over the last day. Events are
+  recorded only at the finest resolution; buckets falling off a resolution roll up into the next coarser one.
+  Arguments:
+    deref-key   (keyword) key to associate the resolutions with (upon deref)
+    resolutions (seqable) list of [bucket-count bucket-interval] pairs, finest first, every bucket-interval a multiple
+                          of the previous one
+  Options:
+    :deref-head?     (boolean)  query even the current/head bucket during deref? (false by default)
+    :event-id-fn     (function) no-arg fn or preflex.util.LongClock returning latest event ID (default: current millis)
+    :shard-count     (integer)  number of shards to split finest write-load across (default 0: grow with contention)
+  Deref returns {deref-key {bucket-interval buckets-vector}}, buckets ordered latest first. Count returns the total
+  count at the finest resolution."
+  ([deref-key resolutions]
+    (make-cascading-rolling-counter deref-key resolutions {}))
+  ([deref-key resolutions {:keys [deref-head?
+                                  event-id-fn
+                                  shard-count]
+                           :or {deref-head? false ; do not return current bucket
+                                event-id-fn RollingMetrics/MILLI_TIME_CLOCK
+                                shard-count 0}}]
+    (let [^CascadingRollingRecord rolling-sum (RollingMetrics/createCascadingRollingSum
+                                                (int-array (map first resolutions))
+                                                (int-array (map second resolutions))
+                                                (resolve-long-clock event-id-fn) (int shard-count))
+          level-count (.getLevelCount rolling-sum)
+          find-elems  (if deref-head?
+                        (fn ^longs [level] (.getAllElements rolling-sum (int level)))
+                        (fn ^longs [level] (.getPreviousElements rolling-sum (int level))))]
+      (reify
+        t/IMetricsRecorder   (record!   [_] (.record rolling-sum 1))
+                             (record! [_ v] (.record rolling-sum v))
+        t/IMetricsBatchRecorder (record-batch! [_ ids vs] (record-rolling-batch rolling-sum ids vs 0
+                                                            (alength ^longs ids)))
+                                (record-batch! [_ ids vs from to] (record-rolling-batch rolling-sum ids vs from to))
+        t/IReinitializable   (reinit!   [_] (.reset  rolling-sum))
+        clojure.lang.Counted (count     [_] (Stats/sum ^longs (find-elems 0)))
+        clojure.lang.IDeref  (deref     [_] {deref-key (reduce (fn [m level]
+                                                                 (assoc m (.getBucketInterval rolling-sum (int level))
+                                                                   (vec (find-elems level))))
+                                                         (sorted-map) (range level-count))})))))
+
+
+;; ----- metrics store -----
+
+
+(defn make-metrics-store
+  "Create a concurrent metrics store (preflex.type/IMetricsStore) that lazily creates a collector per label set,
+  i.e. category, name and key (none of them nil), on first get-collector call. Looking up an existing collector is
+  lock-free and allocation-free. The number of collectors is capped, and collectors idle (not looked up) for longer than
+  the idle timeout are evicted when the cap is reached, or on calling preflex.type/evict-idle! (e.g. periodically).
+  Deref returns a nested map {category {name {key collector}}} of the current collectors, and count returns the number
+  of collectors. The store exposes its collectors in the OpenMetrics text format (see write-open-metrics!) as families
+  named category_name, with the key as label.
+  Arguments:
+    collector-fn (function) fn accepting category, name and key, returning a new collector
+  Options:
+    :idle-millis        (integer)   idle time in milliseconds after which a collector may be evicted (default 15 mins)
+    :label-name         (string)    name of the key label in OpenMetrics exposition (default \"key\")
+    :max-series         (integer)   max number of collectors (default 10000)
+    :millis-fn          (function)  no-arg fn or preflex.util.LongClock returning current millis (default: system clock)
+    :overflow-collector (collector) collector to return when the cap is reached (default: dummy collector)"
+  ([collector-fn]
+    (make-metrics-store collector-fn {}))
+  ([collector-fn {:keys [^long idle-millis
+                         label-name
+                         ^long max-series
+                         millis-fn
+                         overflow-collector]
+                  :or {idle-millis 900000  ; 15 minutes
+                       label-name  "key"
+                       max-series  10000
+                       millis-fn   RollingMetrics/MILLI_TIME_CLOCK}}]
+    (let [^SeriesRegistry registry (SeriesRegistry.
+                                     (reify SeriesRegistry$SeriesFactory
+                                       (create [_ category name k] (collector-fn category name k)))
+                                     (or overflow-collector (make-dummy-collector))
+                                     (int max-series) idle-millis (resolve-long-clock millis-fn))
+          writer-holder (object-array 1)  ; writer of the current exposition, the visitor is created only once
+          expose-visitor (reify SeriesRegistry$SeriesVisitor
+                           (visit [_ category name k collector]
+                             (let [^OpenMetricsWriter w (aget writer-holder 0)]
+                               (.select w category name label-name k)
+                               (t/expose-open-metrics! collector w))))]
+      (reify
+        t/IMetricsStore      (get-collector [_ category name k] (.get registry category name k))
+        t/IEvictable         (evict-idle!   [_] (.evictIdle registry))
+        t/IOpenMetricsExposable (expose-open-metrics! [_ w] (locking writer-holder
+                                                              (aset writer-holder 0 w)
+                                                              (try
+                                                                (.forEach registry expose-visitor)
+                                                                (finally
+                                                                  (aset writer-holder 0 nil)))))
+        clojure.lang.Counted (count         [_] (.size registry))
+        clojure.lang.IDeref  (deref         [_] (into {} (for [[category names] (.snapshot registry)]
+                                                           [category (into {} (for [[name ks] names]
+                                                                                [name (into {} ks)]))])))))))
+
+
+;; ----- OpenMetrics exposition -----
+
+
+(extend-protocol t/IOpenMetricsExposable
+  clojure.lang.Counted  ; e.g. rolling integer counter
+  (expose-open-metrics! [this w] (.gauge ^OpenMetricsWriter w (long (.count ^clojure.lang.Counted this))))
+  Object                ; not exposable, e.g. dummy collector
+  (expose-open-metrics! [_ _]))
+
+
+(defn write-open-metrics!
+  "Write the metrics of the given metrics store (see make-metrics-store), or any other OpenMetrics exposable, in the
+  OpenMetrics text format (served by Prometheus scrape endpoints) and return the writer. The writer is reset first, so
+  the same writer may be reused across scrapes (not concurrently) to avoid allocation. Collectors are exposed as:
+    rolling max collector        - gauge of the max
+    rolling histogram collector  - gauge histogram with a bucket per histogram slot, or per :exposed-bounds bound
+    rolling percentile collector - summary with a quantile per percentile, NaN when there are no values
+    rolling stats collector      - summary with the min and max as quantiles 0 and 1 (count, mean and stddev left out)
+    counted collectors           - gauge of the count, e.g. rolling integer counter
+  Summaries carry no count and sum, as those must only go up unlike in a rolling window. Other collectors are
+  skipped. Write the result with (.writeTo writer output-stream) or get it as text by calling str.
+  Arguments:
+    exposable (object) metrics store, or other preflex.type/IOpenMetricsExposable that writes families of its own
+    writer    (object) reusable preflex.util.OpenMetricsWriter instance (default: new writer)"
+  (^OpenMetricsWriter [exposable]
+    (write-open-metrics! exposable (OpenMetricsWriter.)))
+  (^OpenMetricsWriter [exposable ^OpenMetricsWriter writer]
+    (.reset writer)
+    (t/expose-open-metrics! exposable writer)
+    (.finish writer)))
@@ -288,7 +288,8 @@
 
 (defn make-rolling-fault-detector
   "Create a protocols-instance that detects faults based on threshold specified as connected-until-errcount errors in
-  connected-until-duration (converted to millis) time. This follows the X errors in Y duration measurement.
+  connected-until-duration (converted to millis) time. This follows the X errors in Y duration measurement. Other
+  options are passed on to the error counter, e.g. :persist-file to remember the errors across restarts.
   See also: preflex.metrics/make-rolling-integer-counter"
   ([^long connected-until-errcount connected-until-duration]
     (make-rolling-fault-detector connected-until-errcount connected-until-duration {}))
@@ -115,16 +115,24 @@
 
 
 (defn make-command-metrics-collectors
-  "Make the default collectors as options for resilient primitives, required for Hystrix reporting."
+  "Make the default collectors as options for resilient primitives, required for Hystrix reporting.
+  Options:
+    :bucket-count (integer)  number of rolling buckets (default 11)
+    :event-id-fn  (function) no-arg fn or preflex.util.LongClock returning current millis for all collectors, e.g.
+                             (preflex.util/ticking-millis-clock) to read the clock once per tick (default :now-finder)
+    :now-finder   (function) no-arg fn returning current millis (default preflex.util/now-millis)
+    :percentiles  (list)     latency percentiles to report"
   ([]
     (make-command-metrics-collectors {}))
   ([{:keys [bucket-count
+            event-id-fn
             now-finder
             percentiles]
      :or {bucket-count 11
           now-finder   u/now-millis
           percentiles  hystrix-latency-percentiles}}]
-    (let [;; success-failure tracking
+    (let [now-finder          (m/resolve-long-clock (or event-id-fn now-finder))
+          ;; success-failure tracking
           success-failure     (m/make-union-collector
                                 [(m/make-boolean-counter :cumulative-count-success :cumulative-count-failure)
                                  (m/make-rolling-boolean-counter :rolling-count-success :rolling-count-failure
@@ -17,7 +17,10 @@
   * ICircuitBreaker   - a circuit breaker interface
   Metrics:
   * IMetricsRecorder  - an interface for metrics event capturing
+  * IMetricsBatchRecorder - an interface for capturing a batch of metrics events
   * IMetricsStore     - a metrics store interface
+  * IEvictable        - evicts idle entries, e.g. of a metrics store
+  * IOpenMetricsExposable - writes metrics in the OpenMetrics text format
   * SampleMetrics     - stats for sample metrics data"
   (:import
     [java.util List Map]
@@ -98,10 +101,25 @@
   (record! [this] [this v] "Record metrics event. Not guaranteed to be synchronous."))
 
 
+(defprotocol IMetricsBatchRecorder
+  (record-batch! [this event-ids values] [this event-ids values from to]
+    "Record a batch of values (long array), each with its own event ID (long array), optionally in the index range
+    from (inclusive) to (exclusive). Not guaranteed to be synchronous."))
+
+
 (defprotocol IMetricsStore
   (^IMetricsRecorder get-collector [this category name k] "Return metrics collector for given category, name and key"))
 
 
+(defprotocol IEvictable
+  (evict-idle! [this] "Evict the entries idle for too long, and return the number of entries evicted"))
+
+
+(defprotocol IOpenMetricsExposable
+  (expose-open-metrics! [this writer] "Write the metrics as samples of the family and label selected in the given
+  preflex.util.OpenMetricsWriter instance, or as families of its own (e.g. a metrics store)."))
+
+
 (defprotocol IReinitializable
   (reinit! [this] "Reset the configuration. Not guaranteed to be synchronous."))
 
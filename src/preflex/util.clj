@@ -15,7 +15,8 @@
   (:import
     [java.text SimpleDateFormat]
     [java.util Calendar List Map UUID]
-    [java.util.concurrent ExecutorService Future TimeoutException TimeUnit]))
+    [java.util.concurrent ExecutorService Future TimeoutException TimeUnit]
+    [preflex.util LongClock TickingClock]))
 
 
 ;; ----- runtime -----
@@ -49,6 +50,31 @@
     (unchecked-subtract (System/nanoTime) start-nanos)))
 
 
+(defn make-ticking-clock
+  "Start and return a preflex.util.TickingClock that caches current millis/nanos on a daemon thread at specified
+  resolution (duration, e.g. [2 :millis]). Stop it with `(.stop clock)` when no longer needed."
+  ^TickingClock [resolution]
+  (TickingClock. (t/nanos resolution) TimeUnit/NANOSECONDS))
+
+
+(defn ticking-millis-clock
+  "Return a preflex.util.LongClock that returns milliseconds since epoch as cached by the specified ticking clock, or
+  the shared one ticking every millisecond. Suitable as :event-id-fn for the rolling metrics collectors."
+  (^LongClock []
+    (.millisClock (TickingClock/getShared)))
+  (^LongClock [^TickingClock clock]
+    (.millisClock clock)))
+
+
+(defn ticking-nanos-clock
+  "Return a preflex.util.LongClock that returns System/nanoTime as cached by the specified ticking clock, or the shared
+  one ticking every millisecond."
+  (^LongClock []
+    (.nanosClock (TickingClock/getShared)))
+  (^LongClock [^TickingClock clock]
+    (.nanosClock clock)))
+
+
 (defn now-iso-8601
   "Return current ISO 8601 compliant date."
   ^String []
@@ -14,7 +14,13 @@
     [preflex.type    :as t]
     [preflex.util    :as u])
   (:import
-    [preflex.rollingmetrics RollingMetrics]))
+    [java.util.concurrent               CountDownLatch]
+    [java.util.concurrent.atomic        AtomicLong]
+    [preflex.rollingmetrics             IRollingRecord RollingMetrics RollingSnapshot]
+    [preflex.rollingmetrics.bucketstore AbstractMappedBucketStore AbstractOffHeapBucketStore CyclicBucketBuffer
+                                        IBucketEvictionListener IReducibleCyclicBucketBuffer SummingBucketStore]
+    [preflex.util                       LongClock OffHeapSlab Pending RingBufferPending Stats StripedLocal
+                                        StripedLocal$Cell TickingClock]))
 
 
 (deftest test-dummy
@@ -51,6 +57,59 @@
           (deref c)))))
 
 
+(deftest test-adaptive-integer-counter
+  (is (= 0 (m/resolve-shard-count :adaptive)))
+  (is (<= 2 (m/resolve-shard-count :detect) 128))
+  (let [c (m/make-integer-counter :foo {:shard-count :adaptive})
+        thread-count 8
+        record-count 10000  ; per thread
+        workers (doall (repeatedly thread-count
+                         #(future
+                            (dotimes [_ record-count]
+                              (t/record! c)))))]
+    (run! deref workers)
+    (t/record! c 5)
+    (is (= (+ 5 (* thread-count record-count)) (count c)) "no record is lost across grown shards")
+    (is (= {:foo (+ 5 (* thread-count record-count))} (deref c)))
+    (t/reinit! c)
+    (is (zero? (count c)))
+    (is (= {:foo 0} (deref c)))
+    (t/record! c 3)
+    (is (= 3 (count c)) "records after re-initializing are kept")))
+
+
+(deftest test-adaptive-off-heap-rolling-sum
+  (let [bucket-count 10
+        ;; room for the most shards a rolling sum can grow, each allocating its buckets once
+        slab (OffHeapSlab. (* (StripedLocal/defaultMaxCount) (+ AbstractOffHeapBucketStore/HEADER_LENGTH bucket-count)))
+        ^IRollingRecord r (RollingMetrics/createRollingSum bucket-count 1000 RollingMetrics/MILLI_TIME_CLOCK 0 slab)
+        thread-count 8
+        record-count 10000]  ; per thread
+    (dotimes [_ 10]  ; reinit, then contend
+      (.reset r)
+      (run! deref (doall (repeatedly thread-count
+                           #(future
+                              (dotimes [_ record-count]
+                                (.record r 1))))))
+      ;; a regrown shard allocating new slots would overflow the slab, failing the records
+      (is (= (* thread-count record-count) (Stats/sum (.getAllElements r))) "shards are reused after reset"))))
+
+
+(deftest test-off-heap-counter-shard-count
+  (let [slab (OffHeapSlab. (+ AbstractOffHeapBucketStore/HEADER_LENGTH 10))  ; room for one shard only
+        c (m/make-rolling-integer-counter :foo 10 {:deref-head? true
+                                                   :slab        slab})
+        thread-count 8
+        record-count 10000]  ; per thread
+    (is (= (.getCapacity slab) (.getAllocated slab)) "one shard allocated upfront")
+    (run! deref (doall (repeatedly thread-count
+                         #(future
+                            (dotimes [_ record-count]
+                              (t/record! c))))))
+    (is (= {:foo (* thread-count record-count)} (deref c)) "contention does not grow shards")
+    (is (thrown? RuntimeException (m/make-rolling-integer-counter :bar 10 {:slab slab})) "full slab")))
+
+
 (deftest test-boolean-collector
   (let [c (m/make-boolean-collector :foo)]
     (is (= {:foo false}
@@ -88,8 +147,10 @@
 
 
 (deftest test-rolling-integer-counter
-  (doseq [shard-count [0 1 8]]
-    (testing (str "shard count " shard-count)
+  (doseq [shard-count [0 1 8]
+          padded?     [false true]
+          off-heap?   [false true]]
+    (testing (str "shard count " shard-count ", padded " padded? ", off-heap " off-heap?)
       (let [bi 100  ; bucket interval
             vlong (volatile! 1488033798157)
             long+ (fn ([^long x ^long y] (+ x y))
@@ -99,6 +160,8 @@
                                                         :buckets-key     :buckets
                                                         :deref-head?     false ; do not return head bucket
                                                         :event-id-fn     eifn
+                                                        :padded?         padded?
+                                                        :slab            (when off-heap? (OffHeapSlab. 2048))
                                                         :shard-count     shard-count})]
         (testing "individual operations"
           (is (= {:foo 0 :buckets [0 0 0 0 0 0 0 0 0 0]} (deref c)))
@@ -124,6 +187,272 @@
                 (deref c))))))))
 
 
+(deftest test-ewma-rate-collector
+  (let [vlong (volatile! 1488033798157)
+        eifn #(deref vlong)
+        c (m/make-ewma-rate-collector :rate {:event-id-fn eifn})]
+    (testing "empty"
+      (is (= {:rate {:m1 0.0 :m5 0.0 :m15 0.0}} (deref c))))
+    (testing "steady rate of 100 per second"
+      (dotimes [_ 1200]  ; 20 minutes
+        (dotimes [_ 100] (t/record! c))
+        (vswap! vlong + 1000))
+      (let [{:keys [m1 m5 m15]} (:rate (deref c))]
+        (is (< 99.9 m1 100.0))
+        (is (< 97.0 m5 99.0))
+        (is (< 72.0 m15 75.0))))
+    (testing "decay when idle"
+      (vswap! vlong + 60000)
+      (is (< 36.0 (get-in (deref c) [:rate :m1]) 37.0)))
+    (testing "reinit"
+      (t/reinit! c)
+      (is (= {:rate {:m1 0.0 :m5 0.0 :m15 0.0}} (deref c)))))
+  (testing "attached to rolling integer counter"
+    (let [vlong (volatile! 1488033798157)
+          c (m/make-rolling-integer-counter :foo 10 {:event-id-fn  #(deref vlong)
+                                                     :ewma-key     :rate
+                                                     :ewma-options {:windows {:m1 60000}}})]
+      (dotimes [_ 120]
+        (t/record! c 10)
+        (vswap! vlong + 1000))
+      (is (= 90 (:foo (deref c))) "head bucket is excluded from the count")
+      (is (< 8.0 (get-in (deref c) [:rate :m1]) 10.0)))))
+
+
+(deftest test-rolling-record-batch
+  (let [bi 100  ; bucket interval
+        t0 1488033798157
+        ids  (long-array [(+ t0 250) t0 (+ t0 120) (- t0 5000) (+ t0 130) (+ t0 260) (+ t0 10) 0])
+        vals (long-array [5          1  7          100         2          3          4          9])]
+    (doseq [shard-count [0 1 8]]
+      (testing (str "shard count " shard-count)
+        (let [vlong (volatile! t0)
+              eifn #(deref vlong)
+              c (m/make-rolling-integer-counter :foo 5 {:bucket-interval bi
+                                                        :buckets-key     :buckets
+                                                        :deref-head?     true
+                                                        :event-id-fn     eifn
+                                                        :shard-count     shard-count})
+              x (m/make-rolling-max-collector :max 5 {:bucket-interval bi
+                                                      :buckets-key     :buckets
+                                                      :deref-head?     true
+                                                      :event-id-fn     eifn
+                                                      :shard-count     shard-count})]
+          (testing "batch, ignoring events that fell off the tail"
+            (t/record-batch! c ids vals 0 7)
+            (t/record-batch! x ids vals 0 7)
+            (vreset! vlong (+ t0 260))
+            (is (= {:foo 22 :buckets [8 9 4 1 0]} (deref c)))
+            (is (= {:max 7 :buckets [5 7 4 1 0]} (deref x))))
+          (testing "whole arrays"
+            (t/reinit! c)
+            (t/record-batch! c (long-array [(+ t0 260) (+ t0 150)]) (long-array [1 2]))
+            (is (= {:foo 3 :buckets [1 2 0 0 0]} (deref c)))))))))
+
+
+;; NOTE: The window (bucket-count x bucket-interval) is wider than the total clock advance, so no recorded event falls
+;; off the tail and the sum must account for every record while threads race each other across bucket rotations.
+(deftest test-rolling-sum-concurrent-rotation
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [^AtomicLong clock (AtomicLong. 1488033798157)
+            thread-count 8
+            record-count 50000  ; per thread
+            ^IRollingRecord rolling-sum (RollingMetrics/createRollingSum 1000 10
+                                          (reify LongClock (next [_] (.get clock))) (int shard-count))
+            ^CountDownLatch start-latch (CountDownLatch. 1)
+            workers (doall (repeatedly thread-count
+                             #(future
+                                (.await start-latch)
+                                (dotimes [i record-count]
+                                  (.record rolling-sum 1)
+                                  (when (zero? (rem i 64))  ; advance clock to force rotation every ~10 advances
+                                    (.incrementAndGet clock))))))]
+        (.countDown start-latch)
+        (run! deref workers)
+        (is (> (- (.get clock) 1488033798157) 1000) "clock advanced across many buckets")
+        (is (= (* thread-count record-count) (Stats/sum (.getAllElements rolling-sum)))
+          "no record is lost or double-counted")))))
+
+
+(deftest test-rolling-integer-counter-persistent
+  (let [bi 100  ; bucket interval
+        vlong (volatile! 1488033798157)
+        eifn #(deref vlong)
+        file (doto (java.io.File/createTempFile "preflex-metrics" ".bin") (.delete) (.deleteOnExit))
+        make (fn [] (m/make-rolling-integer-counter :foo 11 {:bucket-interval bi
+                                                             :buckets-key     :buckets
+                                                             :event-id-fn     eifn
+                                                             :persist-file    (.getPath file)}))
+        c (make)]
+    (testing "record"
+      (dotimes [i 3]
+        (dotimes [_ (inc i)] (t/record! c))
+        (vswap! vlong + bi))
+      (is (= {:foo 6 :buckets [3 2 1 0 0 0 0 0 0 0]} (deref c))))
+    (testing "buckets survive a restart, realigned to the current time"
+      (vswap! vlong + bi)
+      (let [c2 (make)]
+        (is (= {:foo 6 :buckets [0 3 2 1 0 0 0 0 0 0]} (deref c2)))
+        (t/record! c2 5)
+        (vswap! vlong + bi)
+        (is (= {:foo 11 :buckets [5 0 3 2 1 0 0 0 0 0]} (deref c2)))))
+    (testing "readable by other processes"
+      (let [slab (OffHeapSlab/mapReadOnly file)]
+        (is (= [5 0 3 2 1 0 0 0 0 0] (vec (AbstractMappedBucketStore/readElements slab 0 (eifn) false))))
+        (is (= [0 5 0 3 2 1 0 0 0 0] (vec (AbstractMappedBucketStore/readElements slab 0 (+ (eifn) 50) false)))
+          "non-aligned event ID begins the next bucket, like in the owning buffer")))))
+
+
+(deftest test-striped-local
+  (testing "uncontended use stays on one element"
+    (let [^StripedLocal sl (StripedLocal. 1 8 #(AtomicLong.))]
+      (dotimes [_ 10000]
+        (let [^StripedLocal$Cell cell (.enter sl)]
+          (try
+            (.incrementAndGet ^AtomicLong (.get cell))
+            (finally
+              (.exit cell)))))
+      (dotimes [_ 10000]
+        (.incrementAndGet ^AtomicLong (.get sl)))
+      (is (= 1 (count (.getAll sl))))
+      (is (= 20000 (.get ^AtomicLong (first (.getAll sl)))))))
+  (testing "finding the element occupied by another thread grows the pool"
+    (let [^StripedLocal sl (StripedLocal. 1 8 #(AtomicLong.))
+          ^CountDownLatch entered (CountDownLatch. 1)
+          ^CountDownLatch release (CountDownLatch. 1)
+          holder (future
+                   (let [^StripedLocal$Cell cell (.enter sl)]
+                     (.countDown entered)
+                     (.await release)
+                     (.exit cell)))]
+      (.await entered)
+      (dotimes [_ 2]  ; the second contention grows the pool
+        (let [^StripedLocal$Cell cell (.enter sl)]
+          (.incrementAndGet ^AtomicLong (.get cell))
+          (.exit cell)))
+      (.countDown release)
+      @holder
+      (is (= 2 (count (.getAll sl))))
+      (is (= 2 (reduce + (map #(.get ^AtomicLong %) (.getAll sl)))))))
+  (testing "reported contention grows the pool up to the cap"
+    (let [^StripedLocal sl (StripedLocal. 1 4 #(AtomicLong.))]
+      (dotimes [_ 2]
+        (.contended sl))
+      (is (= 2 (count (.getAll sl))))
+      (dotimes [_ 10]
+        (.contended sl))
+      (is (= 4 (count (.getAll sl))))))
+  (testing "concurrent use does not lose updates"
+    (let [^StripedLocal sl (StripedLocal. 1 4 #(AtomicLong.))
+          ^CountDownLatch start-latch (CountDownLatch. 1)
+          workers (doall (repeatedly 8 #(future
+                                          (.await start-latch)
+                                          (dotimes [_ 100000]
+                                            (let [^StripedLocal$Cell cell (.enter sl)]
+                                              (try
+                                                (.incrementAndGet ^AtomicLong (.get cell))
+                                                (finally
+                                                  (.exit cell))))))))]
+      (.countDown start-latch)
+      (run! deref workers)
+      (is (= 800000 (reduce + (map #(.get ^AtomicLong %) (.getAll sl)))))))
+  (testing "fixed size"
+    (is (= 5 (count (.getAll (StripedLocal/create 5 #(AtomicLong.))))))))
+
+
+(deftest test-ring-buffer-pending
+  (let [^RingBufferPending pending (RingBufferPending. 65536)
+        counter (long-array 1)
+        action  #(aset-long counter 0 (inc (aget counter 0)))  ; not thread-safe, relies on mutual exclusion
+        ^CountDownLatch start-latch (CountDownLatch. 1)
+        workers (doall (repeatedly 4 #(future
+                                        (.await start-latch)
+                                        (dotimes [_ 10000]
+                                          (.run pending action)))))]
+    (.countDown start-latch)
+    (run! deref workers)
+    (while (not (.isEmpty pending))
+      (.run pending (fn [])))
+    (is (= 40000 (aget counter 0)) "every action runs exactly once, one at a time"))
+  (testing "as deferred action executor of cyclic bucket buffer"
+    (let [^IReducibleCyclicBucketBuffer buffer (RollingMetrics/cyclicBucketBuffer
+                                                 10 (RollingMetrics/summingBucketsFactory 5) 1000
+                                                 (RingBufferPending.) false)]
+      (.record buffer 1000 7)
+      (.reset buffer 2000)
+      (.record buffer 2000 3)
+      (is (= 3 (Stats/sum (.getAllElements buffer)))))))
+
+
+(deftest test-cyclic-bucket-buffer-read-does-not-wait-for-pending
+  (let [^RingBufferPending pending (RingBufferPending.)
+        reset-counter (AtomicLong.)
+        buffer  (CyclicBucketBuffer. 10 (SummingBucketStore. 5) 1000 pending false nil reset-counter)
+        ^CountDownLatch entered (CountDownLatch. 1)
+        ^CountDownLatch release (CountDownLatch. 1)
+        busy (future (.run pending #(do (.countDown entered) (.await release))))]  ; hold the pending executor
+    (.await entered)
+    (.record buffer 1000 7)
+    (.reset buffer 2000)  ; deferred, because another thread is running pending actions
+    (is (not (.isEmpty pending)))
+    (is (= 0 (.get reset-counter)) "reset not counted until applied")
+    (is (= 7 (some-> (deref (future (.getAllElements buffer 1000)) 1000 nil) Stats/sum))
+      "reader returns a consistent snapshot instead of waiting for the pending reset")
+    (.countDown release)
+    @busy
+    (is (.isEmpty pending) "the pending reset ran when the executor was released")
+    (is (= 1 (.get reset-counter)))
+    (is (zero? (Stats/sum (.getAllElements buffer 2000))))))
+
+
+(deftest test-cyclic-bucket-buffer-failing-eviction-listener
+  (let [evicted (atom [])
+        buffer  (CyclicBucketBuffer. 10 (SummingBucketStore. 5) 1000 (Pending.) false
+                  (reify IBucketEvictionListener
+                    (evicted [_ latest-event-id elements]
+                      (swap! evicted conj latest-event-id)
+                      (throw (IllegalStateException. "listener failed")))))]
+    (.record buffer 1000 7)
+    (is (thrown? IllegalStateException (.record buffer 1030 1)) "listener failure is rethrown to the rotating thread")
+    (is (= 3 (count @evicted)) "every evicted bucket reaches the listener despite failures")
+    (is (= 8 (Stats/sum (.getAllElements buffer 1030))) "the rotating record is not lost")
+    (is (thrown? IllegalStateException (.record buffer (long-array [1041 1042]) (long-array [2 3]) 0 2)))
+    (is (= 6 (Stats/sum (.getAllElements buffer 1042))) "the rotating batch is not lost")
+    (is (= 8 (Stats/sum (deref (future (.record buffer 1042 2) (.getAllElements buffer 1042)) 1000 nil)))
+      "buffer keeps working after listener failures")))
+
+
+(deftest test-ticking-clock
+  (let [^TickingClock clock (u/make-ticking-clock [2 :millis])
+        ^LongClock millis-clock (u/ticking-millis-clock clock)
+        ^LongClock nanos-clock  (u/ticking-nanos-clock clock)
+        millis (.next millis-clock)
+        nanos  (.next nanos-clock)]
+    (try
+      (is (<= (- (System/currentTimeMillis) millis) 1000) "cached millis is close to current millis")
+      (Thread/sleep 20)
+      (is (> (.next millis-clock) millis) "clock ticks")
+      (is (> (.next nanos-clock) nanos) "clock ticks")
+      (testing "as event ID source"
+        (let [rc (m/make-rolling-integer-counter :foo 10 {:deref-head? true
+                                                          :event-id-fn millis-clock})]
+          (dotimes [_ 5] (t/record! rc))
+          (is (= {:foo 5} @rc))))
+      (finally
+        (.stop clock)))
+    (is (not (.isRunning clock)))
+    (is (thrown? IllegalStateException (.stop (TickingClock/getShared))))))
+
+
+(deftest test-resolve-long-clock
+  (let [vlong (volatile! 1488033798157)]
+    (is (= 1488033798157 (.next (m/resolve-long-clock #(deref vlong)))) "plain fn")
+    (is (= 1488033798157 (.next (m/resolve-long-clock (fn ^long [] (long @vlong))))) "fn with primitive return")
+    (is (identical? RollingMetrics/MILLI_TIME_CLOCK (m/resolve-long-clock RollingMetrics/MILLI_TIME_CLOCK))
+      "LongClock instance")))
+
+
 (deftest test-rolling-boolean-counter
   (doseq [shard-count [0 1 8]]
     (testing (str "shard count " shard-count)
@@ -164,8 +493,10 @@
 
 
 (deftest test-rolling-max-collector
-  (doseq [shard-count [0 1 8]]
-    (testing (str "shard count " shard-count)
+  (doseq [shard-count [0 1 8]
+          padded?     [false true]
+          off-heap?   [false true]]
+    (testing (str "shard count " shard-count ", padded " padded? ", off-heap " off-heap?)
       (let [bi 100
             vlong (volatile! 1488033798157)
             long+ (fn ([^long x ^long y] (+ x y))
@@ -175,6 +506,8 @@
                                                      :buckets-key     :buckets
                                                      :deref-head?     false ; do not return head bucket
                                                      :event-id-fn     eifn
+                                                     :padded?         padded?
+                                                     :slab            (when off-heap? (OffHeapSlab. 2048))
                                                      :shard-count     shard-count})]
         (testing "init"
           (is (= {:foo 0
@@ -285,3 +618,461 @@
           (is (= {:foo nil
                   :buckets []}
                 (deref c))))))))
+
+
+(deftest test-rolling-percentile-collector-reservoir
+  (let [bi 100
+        vlong (volatile! 1488033798157)
+        eifn #(deref vlong)
+        make (fn [sampling]
+               (m/make-rolling-percentile-collector :foo [50 99] 11
+                 {:bucket-interval bi
+                  :bucket-capacity 100
+                  :buckets-key     :buckets
+                  :event-id-fn     eifn
+                  :sampling        sampling
+                  :shard-count     1}))
+        last-c (make :last)
+        res-c  (make :reservoir)]
+    (is (thrown? IllegalArgumentException (make :foo)) "unknown sampling mode")
+    (vswap! vlong + 10)  ; push a little inside into the bucket
+    (doseq [i (range 1 1001)]
+      (t/record! last-c i)
+      (t/record! res-c i))
+    (vswap! vlong + bi)
+    (let [last-buckets (:buckets @last-c)
+          res-buckets  (:buckets @res-c)]
+      (is (= (range 901 1001) (sort last-buckets)) "only the last values are kept")
+      (is (= 100 (count res-buckets)) "sample size capped at bucket capacity")
+      (is (= 100 (count (set res-buckets))) "every value sampled at most once")
+      (is (every? #(<= 1 % 1000) res-buckets))
+      (is (< (get-in @res-c [:foo :min]) 500) "early values are retained"))
+    (t/reinit! res-c)
+    (is (= {:foo nil
+            :buckets []}
+          (deref res-c)))))
+
+
+(deftest test-rolling-percentile-collector-sorted
+  (testing "runs of sorted values are merged"
+    (is (= [] (vec (Stats/sortRuns (long-array [])))))
+    (is (= [1 2 3 4 5 6 7 8 9] (vec (Stats/sortRuns (long-array [4 6 9 1 2 8 3 5 7]))))))
+  (doseq [sampling [:last :reservoir]
+          shard-count [0 1 8]]
+    (testing (str "sampling " sampling ", shard count " shard-count)
+      (let [bi 100
+            vlong (volatile! 1488033798157)
+            eifn #(deref vlong)
+            c (m/make-rolling-percentile-collector :foo [50 99] 11
+                {:bucket-interval bi
+                 :buckets-key     :buckets
+                 :event-id-fn     eifn
+                 :sampling        sampling
+                 :shard-count     shard-count})]
+        (vswap! vlong + 10)  ; push a little inside into the bucket
+        (doseq [v [30 10 20]]
+          (t/record! c v))
+        (vswap! vlong + bi)
+        (doseq [v [25 5 15]]
+          (t/record! c v))
+        (vswap! vlong + bi)
+        (let [result (deref c)]
+          (is (= [5 10 15 20 25 30] (:buckets result)) "elements of all buckets sorted")
+          (is (= 5 (get-in result [:foo :min])))
+          (is (= 30 (get-in result [:foo :max])))
+          (t/record! c 1)  ; head bucket, not visible until the next bucket interval
+          (is (= result (deref c)) "snapshot reused within the bucket interval"))
+        (vswap! vlong + bi)
+        (is (= [1 5 10 15 20 25 30] (:buckets (deref c))) "snapshot refreshed in the next bucket interval")
+        (t/reinit! c)
+        (is (= [] (:buckets (deref c))) "snapshot discarded upon reinit")))))
+
+
+(deftest test-rolling-percentile-collector-sketch
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [bi 100
+            vlong (volatile! 1488033798157)
+            eifn #(deref vlong)
+            c (m/make-rolling-percentile-collector :foo [50 99] 11
+                {:bucket-interval bi
+                 :buckets-key     :buckets  ; ignored for sketch
+                 :event-id-fn     eifn
+                 :sampling        :sketch
+                 :sketch-k        100
+                 :shard-count     shard-count})]
+        (is (= {:foo nil} (deref c)) "no data collected because nothing recorded")
+        (vswap! vlong + 10)  ; push a little inside into the bucket
+        (dotimes [i 10000]
+          (t/record! c (inc i)))
+        (vswap! vlong + bi)
+        (let [foo (:foo @c)]
+          (is (= #{:foo} (set (keys @c))) "no bucket data for sketch")
+          (is (= 1 (:min foo)) "exact min")
+          (is (= 10000 (:max foo)) "exact max")
+          (is (= 5000.5 (:mean foo)) "exact mean")
+          (is (<= 4700 (get-in foo [:percentiles 50]) 5300) "median within sketch rank error")
+          (is (<= 9600 (get-in foo [:percentiles 99]) 10000) "p99 within sketch rank error"))
+        (t/reinit! c)
+        (is (= {:foo nil} (deref c)))))))
+
+
+(deftest test-rolling-histogram-collector
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [bi 100
+            vlong (volatile! 1488033798157)
+            long+ (fn ([^long x ^long y] (+ x y))
+                    ([^long x ^long y ^long z] (+ x y z)))
+            eifn #(deref vlong)
+            c (m/make-rolling-histogram-collector :foo [50 90 95 99 99.9] 11
+                {:bucket-interval bi    ; bucket width in milis
+                 :buckets-key     :buckets
+                 :deref-head?     false ; do not return head bucket
+                 :event-id-fn     eifn
+                 :shard-count     shard-count})]
+        (testing "init"
+          (is (= {:foo nil
+                  :buckets {}}
+                (deref c)) "no data collected because nothing recorded"))
+        (testing "first bucket"
+          (vswap! vlong long+ 10)  ; push a little inside into the bucket
+          (is (thrown? UnsupportedOperationException (t/record! c)) "single arity is disallowed")
+          (t/record! c 10)
+          (t/record! c 20)
+          (t/record! c 30)
+          (vswap! vlong long+ bi)
+          (is (= {:foo (t/map->SampleMetrics {:max (int 30)
+                                              :mean (double 20)
+                                              :median (double 20)
+                                              :min (int 10)
+                                              :percentiles {50 20
+                                                            90 30
+                                                            95 30
+                                                            99 30
+                                                            99.9 30}})
+                  :buckets {10 1 20 1 30 1}}
+                (deref c)) "after shift"))
+        (testing "first history bucket"
+          (vswap! vlong long+ bi)
+          (is (= 3 (reduce + (vals (:buckets (deref c))))) "after double shift"))
+        (testing "beyond bucket capacity"
+          (dotimes [i 1000]
+            (t/record! c (inc i)))
+          (vswap! vlong long+ bi)  ; push to next bucket
+          (let [{:keys [foo buckets]} (deref c)]
+            (is (= 1003 (reduce + (vals buckets))) "every value is counted")
+            (is (= 1000 (:max foo)))
+            (is (<= 480 (get-in foo [:percentiles 50]) 520) "median within histogram precision")
+            (is (<= 980 (get-in foo [:percentiles 99]) 1000) "p99 within histogram precision")))
+        (testing "reinit"
+          (t/reinit! c)
+          (is (= {:foo nil
+                  :buckets {}}
+                (deref c))))))))
+
+
+(deftest test-rolling-stats-collector
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [bi 100
+            vlong (volatile! 1488033798157)
+            eifn  #(deref vlong)
+            c (m/make-rolling-stats-collector :foo 11 {:bucket-interval bi
+                                                       :event-id-fn     eifn
+                                                       :shard-count     shard-count})]
+        (testing "init"
+          (is (= {:foo {:count 0 :max 0 :mean 0.0 :min 0 :stddev 0.0}} @c)))
+        (testing "first bucket"
+          (vswap! vlong + 10)
+          (is (thrown? UnsupportedOperationException (t/record! c)) "single arity is disallowed")
+          (t/record! c 10)
+          (t/record! c 20)
+          (t/record! c 30)
+          (is (zero? (count c)) "head bucket is not queried by default")
+          (vswap! vlong + bi)
+          (let [{:keys [count max mean min stddev]} (:foo @c)]
+            (is (= [3 30 20.0 10] [count max mean min]))
+            (is (< (Math/abs (- (Math/sqrt (/ 200.0 3)) ^double stddev)) 1e-9))))
+        (testing "merged across buckets"
+          (t/record! c -4)
+          (vswap! vlong + bi)
+          (is (= {:count 4 :max 30 :mean 14.0 :min -4} (dissoc (:foo @c) :stddev))))
+        (testing "reinit"
+          (t/reinit! c)
+          (is (= {:foo {:count 0 :max 0 :mean 0.0 :min 0 :stddev 0.0}} @c)))))))
+
+
+(deftest test-key-hash
+  (is (= (m/key-hash 5) (m/key-hash 5N) (m/key-hash (int 5))) "integers in the long range hash as long integers")
+  (is (= (m/key-hash Long/MAX_VALUE) (m/key-hash (bigint Long/MAX_VALUE))))
+  (is (= (m/key-hash (bigint 1e30)) (m/key-hash (bigint 1e30))) "integers beyond the long range hash by Clojure hash")
+  (is (= (m/key-hash "user-1") (m/key-hash "user-1"))))
+
+
+(deftest test-rolling-cardinality-collector
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [bi 100
+            vlong (volatile! 1488033798157)
+            eifn #(deref vlong)
+            c (m/make-rolling-cardinality-collector :users 10 {:bucket-interval bi
+                                                               :event-id-fn     eifn
+                                                               :shard-count     shard-count})]
+        (is (= {:users 0} (deref c)) "nothing recorded")
+        (vswap! vlong + 10)  ; push a little inside into the bucket
+        (dotimes [_ 3]
+          (doseq [i (range 100)]
+            (t/record! c i)
+            (t/record! c (str "user-" i))))
+        (is (= {:users 0} (deref c)) "head bucket not included")
+        (vswap! vlong + bi)
+        (is (<= 190 (count c) 210) "duplicates across values and shards are counted once")
+        (doseq [i (range 50)]
+          (t/record! c i))
+        (vswap! vlong + bi)
+        (is (<= 190 (:users @c) 210) "union across buckets")
+        (vswap! vlong + (* 10 bi))
+        (is (= {:users 0} (deref c)) "all buckets rolled off")
+        (t/record! c 1)
+        (vswap! vlong + bi)
+        (is (= 1 (count c)))
+        (t/reinit! c)
+        (is (= {:users 0} (deref c)))))))
+
+
+(deftest test-rolling-top-k-collector
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [bi 100
+            vlong (volatile! 1488033798157)
+            eifn #(deref vlong)
+            c (m/make-rolling-top-k-collector :tenants 3 10 {:bucket-interval bi
+                                                              :event-id-fn     eifn
+                                                              :shard-count     shard-count})]
+        (is (= {:tenants {:total 0 :top []}} (deref c)) "nothing recorded")
+        (vswap! vlong + 10)  ; push a little inside into the bucket
+        (dotimes [i 1000]
+          (t/record! c (str "cold-" i))
+          (when (even? i) (t/record! c "hot-a"))
+          (when (zero? (mod i 4)) (t/record! c :hot-b)))
+        (vswap! vlong + bi)
+        (dotimes [_ 100]
+          (t/record! c "hot-a"))
+        (vswap! vlong + bi)
+        (let [{:keys [total top]} (:tenants @c)]
+          (is (= 1850 total (count c)))
+          (is (= 3 (count top)) "at most k keys")
+          (is (= ["hot-a" :hot-b] (mapv first (take 2 top))) "heavy hitters first, merged across buckets")
+          (is (<= 600 (second (first top)) 650) "estimate never undercounts, overcounts a little")
+          (is (<= 250 (second (second top)) 300)))
+        (vswap! vlong + (* 10 bi))
+        (is (= {:tenants {:total 0 :top []}} (deref c)) "all buckets rolled off")
+        (t/record! c "hot-a")
+        (t/reinit! c)
+        (is (= {:tenants {:total 0 :top []}} (deref c)))))))
+
+
+(deftest test-cascading-rolling-counter
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [vlong (volatile! 1488033798000)
+            eifn  #(deref vlong)
+            c (m/make-cascading-rolling-counter :foo [[3 10] [3 100] [2 1000]]
+                {:deref-head? true
+                 :event-id-fn eifn
+                 :shard-count shard-count})
+            elapse (fn [^long n] (vswap! vlong + n))]
+        (testing "init"
+          (is (= {:foo {10 [0 0 0] 100 [0 0 0] 1000 [0 0]}} @c))
+          (is (zero? (count c))))
+        (testing "recorded only at the finest resolution, read at all"
+          (t/record! c)
+          (t/record! c 2)
+          (is (= {:foo {10 [3 0 0] 100 [3 0 0] 1000 [3 0]}} @c))
+          (is (= 3 (count c))))
+        (testing "rolled up into coarser resolutions"
+          (elapse 10)  ; start time is the last event ID of a coarse bucket, so this begins the next coarse bucket
+          (t/record! c)
+          (elapse 30)  ; first buckets fall off the finest resolution
+          (is (= {:foo {10 [0 0 0] 100 [1 3 0] 1000 [1 3]}} @c))
+          (elapse 100)
+          (t/record! c 5)
+          (is (= {:foo {10 [5 0 0] 100 [5 1 3] 1000 [6 3]}} @c))
+          (elapse 1000)  ; everything falls off the finer resolutions, the first coarsest bucket off the window
+          (is (= {:foo {10 [0 0 0] 100 [0 0 0] 1000 [0 6]}} @c)))
+        (testing "reinit"
+          (t/reinit! c)
+          (is (= {:foo {10 [0 0 0] 100 [0 0 0] 1000 [0 0]}} @c)))))))
+
+
+(deftest test-cascading-rolling-sum-coarse-read
+  (doseq [shard-count [0 1 8]]
+    (testing (str "shard count " shard-count)
+      (let [clock (AtomicLong. 0)
+            r (RollingMetrics/createCascadingRollingSum (int-array [3 3 3]) (int-array [10 30 90])
+                (reify LongClock (next [_] (.get clock))) (int shard-count))]
+        (.set clock 5)
+        (.record r 3)
+        (.set clock 35)  ; past a finest bucket boundary, the value falls off the finest level
+        (is (= [0 3 0] (vec (.getAllElements r (int 1)))) "first read of a coarse level includes rolled up value")
+        (.set clock 95)  ; the value falls off the middle level too
+        (is (= [0 3 0] (vec (.getAllElements r (int 2)))) "first read of the coarsest level includes rolled up value")
+        (is (= [0 0 0] (vec (.getAllElements r (int 1)))))))))
+
+
+(deftest test-metrics-store
+  (let [vlong (volatile! 1488033798157)
+        ms (m/make-metrics-store (fn [category name k] (m/make-integer-counter :count {:shard-count 1}))
+             {:idle-millis        1000
+              :max-series         3
+              :millis-fn          #(deref vlong)
+              :overflow-collector (m/make-dummy-collector {:count-val -1})})]
+    (testing "lazy creation and lookup"
+      (is (= 0 (count ms)))
+      (let [c (t/get-collector ms :http :requests "/users")]
+        (t/record! c)
+        (is (identical? c (t/get-collector ms :http :requests "/users")))
+        (is (= 1 (count (t/get-collector ms :http :requests "/users")))))
+      (t/record! (t/get-collector ms :http :requests "/orders"))
+      (t/record! (t/get-collector ms :db :queries :tenant-a))
+      (is (= 3 (count ms)))
+      (is (= {:http {:requests #{"/users" "/orders"}}
+              :db   {:queries #{:tenant-a}}}
+            (reduce-kv (fn [m category names]
+                         (assoc m category (reduce-kv (fn [nm name ks] (assoc nm name (set (keys ks)))) {} names)))
+              {} (deref ms)))))
+    (testing "cardinality cap"
+      (is (= -1 (count (t/get-collector ms :db :queries :tenant-b))))
+      (is (= 3 (count ms))))
+    (testing "idle eviction"
+      (vswap! vlong + 500)
+      (t/get-collector ms :http :requests "/users")  ; keep it alive
+      (vswap! vlong + 400)
+      (is (= 0 (t/evict-idle! ms)) "not idle for long enough")
+      (vswap! vlong + 500)
+      (is (= 0 (count (t/get-collector ms :db :queries :tenant-b))) "idle series evicted to make room")
+      (is (= 2 (count ms)))
+      (is (= 1 (count (t/get-collector ms :http :requests "/users"))))
+      (vswap! vlong + 2000)
+      (is (= 2 (t/evict-idle! ms)))
+      (is (= 0 (count ms))))
+    (testing "lookups at the cap"
+      (doseq [k [:a :b :c]]
+        (t/get-collector ms :cache :hits k))
+      (is (= -1 (count (t/get-collector ms :queue :depth :q1))) "nothing idle, overflow")
+      (vswap! vlong + 1000)
+      (is (= -1 (count (t/get-collector ms :queue :depth :q1))) "not idle for long enough")
+      (vswap! vlong + 1)
+      (is (= 0 (count (t/get-collector ms :queue :depth :q1))) "evicted as soon as the oldest series may be idle")
+      (is (= {:queue {:depth #{:q1}}}
+            (reduce-kv (fn [m category names]
+                         (assoc m category (reduce-kv (fn [nm name ks] (assoc nm name (set (keys ks)))) {} names)))
+              {} (deref ms)))))))
+
+
+(deftest test-write-open-metrics
+  (let [ms (m/make-metrics-store (fn [category name k]
+                                   (case name
+                                     :latency (m/make-rolling-histogram-collector :latency [50] 10 {:deref-head? true})
+                                     :size    (m/make-rolling-histogram-collector :size [50] 10
+                                                {:deref-head? true :exposed-bounds [10 100]})
+                                     :wait    (m/make-rolling-percentile-collector :wait [50 99] 10 {:deref-head? true})
+                                     :stats   (m/make-rolling-stats-collector :stats 10 {:deref-head? true})
+                                     (m/make-integer-counter :count {:shard-count 1})))
+             {:label-name "endpoint"})
+        w  (preflex.util.OpenMetricsWriter. 16)]
+    (t/record! (t/get-collector ms :http :requests "/users"))
+    (t/record! (t/get-collector ms :http :requests "/users"))
+    (t/record! (t/get-collector ms :http :requests "/orders"))
+    (doseq [v [3 3 20]]
+      (t/record! (t/get-collector ms :http :latency "/users") v)
+      (t/record! (t/get-collector ms :http :size "/users") v)
+      (t/record! (t/get-collector ms :http :wait "/users") v)
+      (t/record! (t/get-collector ms :http :stats "/users") v))
+    (t/get-collector ms :http :wait "/orders")  ; no values
+    (let [text (str (m/write-open-metrics! ms w))
+          lines (set (.split ^String text "\n"))]
+      (is (= 1 (count (re-seq #"# TYPE http_requests gauge" text))) "TYPE line once per family")
+      (is (contains? lines "http_requests{endpoint=\"/users\"} 2"))
+      (is (contains? lines "http_requests{endpoint=\"/orders\"} 1"))
+      (testing "gauge histogram with a bucket per slot"
+        (is (contains? lines "# TYPE http_latency gaugehistogram"))
+        (is (contains? lines "http_latency_bucket{endpoint=\"/users\",le=\"2\"} 0") "empty slots are written too")
+        (is (contains? lines "http_latency_bucket{endpoint=\"/users\",le=\"3\"} 2"))
+        (is (contains? lines "http_latency_bucket{endpoint=\"/users\",le=\"20\"} 3"))
+        (is (contains? lines "http_latency_bucket{endpoint=\"/users\",le=\"+Inf\"} 3"))
+        (is (contains? lines "http_latency_gcount{endpoint=\"/users\"} 3"))
+        (is (contains? lines "http_latency_gsum{endpoint=\"/users\"} 26")))
+      (testing "gauge histogram with configured bounds"
+        (is (= ["http_size_bucket{endpoint=\"/users\",le=\"10\"} 2"
+                "http_size_bucket{endpoint=\"/users\",le=\"100\"} 3"
+                "http_size_bucket{endpoint=\"/users\",le=\"+Inf\"} 3"]
+              (re-seq #"http_size_bucket.*" text))))
+      (testing "summaries"
+        (is (contains? lines "# TYPE http_wait summary"))
+        (is (contains? lines "http_wait{endpoint=\"/users\",quantile=\"0.5\"} 3"))
+        (is (contains? lines "http_wait{endpoint=\"/users\",quantile=\"0.99\"} 20"))
+        (is (contains? lines "http_wait{endpoint=\"/orders\",quantile=\"0.5\"} NaN"))
+        (is (contains? lines "# TYPE http_stats summary"))
+        (is (contains? lines "http_stats{endpoint=\"/users\",quantile=\"0\"} 3"))
+        (is (contains? lines "http_stats{endpoint=\"/users\",quantile=\"1\"} 20"))
+        (is (not (re-find #"_count|_sum" text)) "no counters for rolling windows"))
+      (is (.endsWith text "# EOF\n"))
+      (is (= text (str (m/write-open-metrics! ms w))) "writer is reusable"))))
+
+
+(deftest test-rolling-snapshot
+  (let [^AtomicLong clock (AtomicLong. 1000)
+        event-id-fn (reify LongClock (next [_] (.get clock)))
+        ^IRollingRecord node-a (RollingMetrics/createRollingSum 5 10 event-id-fn 1)
+        ^IRollingRecord node-b (RollingMetrics/createRollingSum 5 10 event-id-fn 1)
+        file (doto (java.io.File/createTempFile "preflex-snapshot" ".bin") (.deleteOnExit))]
+    (.record node-a 4)
+    (.set clock 1003)
+    (let [^IRollingRecord node-c (RollingMetrics/createRollingSum 5 10 event-id-fn 1)]  ; bucket boundaries differ
+      (.set clock 1010)
+      (.record node-a 1)
+      (.record node-b 7)
+      (.record node-b -3)
+      (.record node-c 2)
+      (.set clock 1025)
+      (testing "encode and decode via file"
+        (with-open [out (java.io.FileOutputStream. file)]
+          (.writeTo (RollingSnapshot/capture node-a 10 (.get clock) false) out)
+          (.writeTo (RollingSnapshot/capture node-b 10 (+ 3 (.get clock)) false) out)
+          (.writeTo (RollingSnapshot/capture node-c 10 (.get clock) false) out))
+        (let [snapshots (with-open [in (java.io.BufferedInputStream. (java.io.FileInputStream. file))]
+                          (doall (repeatedly 3 #(RollingSnapshot/readFrom in))))
+              ^RollingSnapshot a (first snapshots)
+              ^RollingSnapshot c (last snapshots)]
+          (is (= 10 (.getBucketInterval a)))
+          (is (= 1030 (.getHeadEventID a)) "head is the last event ID of the head bucket")
+          (is (= [0 1 4 0] (vec (.getElements a))))
+          (is (= 1033 (.getHeadEventID c)) "head aligned to the bucket boundaries of the rolling metrics")
+          (is (= [0 2 0 0] (vec (.getElements c))))
+          (testing "merge"
+            (let [^RollingSnapshot merged (RollingSnapshot/merge (SummingBucketStore. 5) snapshots)]
+              (is (= 1033 (.getHeadEventID merged)))
+              (is (= [0 7 4 0] (vec (.getElements merged))) "snapshots within one bucket interval merged")))
+          (testing "stale snapshot"
+            (is (thrown? IllegalArgumentException
+                  (RollingSnapshot/merge (SummingBucketStore. 5)
+                    (conj (vec snapshots) (RollingSnapshot. 10 1020 false (long-array [100 100 100 100])))))
+              "rejected rather than silently dropped"))))
+      (testing "capture with elements and head of the same event ID"
+        (let [^RollingSnapshot snapshot (RollingSnapshot/capture node-c 10 1045 false)]
+          (is (= 1053 (.getHeadEventID snapshot)))
+          (is (= [0 0 0 2] (vec (.getElements snapshot))) "elements aligned to the captured head, not the clock"))))
+    (testing "bad input"
+      (is (thrown? IllegalArgumentException (RollingSnapshot/fromBytes (byte-array [1 2 3 4]))))
+      (let [encoded (.toBytes (RollingSnapshot. 10 0 false (long-array [1 2])))]
+        (is (thrown? IllegalArgumentException (RollingSnapshot/fromBytes (java.util.Arrays/copyOf encoded 6)))
+          "truncated"))
+      (let [header (butlast (.toBytes (RollingSnapshot. 10 0 false (long-array 0))))  ; all but the element count
+            stream (fn [count-varint] (java.io.ByteArrayInputStream. (byte-array (concat header count-varint))))]
+        (is (thrown? java.io.IOException (RollingSnapshot/readFrom (stream [-128 -128 -128 16])))
+          "element count above the max rejected before allocating")
+        (is (thrown? java.io.EOFException (RollingSnapshot/readFrom (stream [-128 -128 -128 8])))
+          "max element count claimed by a truncated stream fails without allocating all of it"))
+      (is (thrown? IllegalArgumentException (RollingSnapshot/merge (SummingBucketStore. 5) []))))))
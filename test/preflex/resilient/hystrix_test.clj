@@ -11,9 +11,12 @@
   (:require
     [clojure.test :refer :all]
     [preflex.resilient         :as r]
-    [preflex.resilient.hystrix :as hystrix])
+    [preflex.resilient.hystrix :as hystrix]
+    [preflex.util              :as u])
   (:import
-    [preflex.type SampleMetrics]))
+    [java.util.concurrent.atomic AtomicLong]
+    [preflex.type                SampleMetrics]
+    [preflex.util                LongClock]))
 
 
 (deftest test-make-command-metrics-collectors
@@ -81,6 +84,22 @@
                :rolling-count-short-circuited]))))))
 
 
+(deftest test-command-metrics-collectors-event-id-fn
+  (let [clock (AtomicLong. 1488033798157)
+        {:keys [success-failure-tracker
+                success-failure-options
+                metrics-collectors]} (hystrix/make-command-metrics-collectors
+                                       {:event-id-fn (reify LongClock (next [_] (.get clock)))})]
+    (r/via-success-failure-tracker success-failure-tracker success-failure-options #(+ 10 20))
+    (let [{:keys [cumulative-count-success rolling-count-success]} @(:success-failure metrics-collectors)]
+      (is (= 1 cumulative-count-success))
+      (is (= 0 rolling-count-success) "recorded in the head bucket, which is excluded"))
+    (.addAndGet clock 1000)  ; move past the bucket interval
+    (let [{:keys [cumulative-count-success rolling-count-success]} @(:success-failure metrics-collectors)]
+      (is (= 1 cumulative-count-success))
+      (is (= 1 rolling-count-success)))))
+
+
 (deftest test-command-metrics
   )
 